@@ -0,0 +1,112 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import application.OfflineQueue;
+import domain.Message;
+import domain.MessageType;
+import domain.User;
+import domain.UserData;
+
+/**
+ * <p>Hammers the shared state of the server from many threads at once: senders queue messages in an {@code OfflineQueue} while others drain it, 
+ * and users are registered, updated, removed, validated and serialized in a {@code UserData}.</p>
+ * <p>At the end it checks that no {@code Message} has been lost or duplicated (queued = drained + evicted + remaining) and that no thread failed, 
+ * for example with a {@code ConcurrentModificationException}.</p>
+ * <p>Usage: {@code java -cp bin bench.ConcurrencyStressTest [threads] [seconds]}</p>
+ */
+public class ConcurrencyStressTest {
+
+	private static final int USERS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 4;
+		final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+		
+		final OfflineQueue queue = new OfflineQueue(50, USERS * 20, OfflineQueue.EVICT_OLDEST);
+		final UserData userData = new UserData();
+		for (int i = 0; i < USERS; i++) {
+			userData.registerUser(new User("user"+i, "password"));
+		}
+		final AtomicLong queued = new AtomicLong();
+		final AtomicLong drained = new AtomicLong();
+		final AtomicLong operations = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int t = 0; t < threads; t++) {
+			final int role = t % 4;
+			new Thread() {
+				public void run() {
+					Random random = new Random();
+					try {
+						while (System.nanoTime() < end && failure.get() == null) {
+							String name = "user"+random.nextInt(USERS);
+							switch (role) {
+							case 0:
+								Message message = new Message(MessageType.USER_MESSAGE);
+								message.setDestinationName(name);
+								message.setContent("stress");
+								if (queue.add(message)) queued.incrementAndGet();
+								break;
+								
+							case 1:
+								drained.addAndGet(queue.drain(name).size());
+								break;
+								
+							case 2:
+								User user = new User(name, "password");
+								String contact = "user"+random.nextInt(USERS);
+								user.addContact(contact);
+								if (random.nextInt(10) == 0) {
+									userData.removeUser(name);
+									userData.registerUser(user);
+								}
+								else {
+									userData.updateUser(user);
+									userData.addToChat(name, contact, "text");
+								}
+								break;
+								
+							default:
+								userData.isPasswordValid(name, "password");
+								if (random.nextInt(1000) == 0) serialize(userData);
+								break;
+							}
+							operations.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		
+		long remaining = queue.size();
+		boolean consistent = queued.get() == drained.get() + queue.getEvicted() + remaining;
+		System.out.println(threads+" threads, "+operations.get() / seconds+" operations/s");
+		System.out.println("Queued "+queued.get()+", drained "+drained.get()+", evicted "+queue.getEvicted()+", remaining "+remaining+": "+(consistent ? "consistent" : "LOST OR DUPLICATED MESSAGES"));
+		System.out.println("Registered users: "+userData.getAllUserNames().size());
+		if (failure.get() != null) {
+			System.out.println("FAILED");
+			failure.get().printStackTrace();
+		}
+		System.exit(failure.get() == null && consistent ? 0 : 1);
+	}
+
+	private static void serialize(UserData userData) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream());
+		out.writeObject(userData);
+		out.close();
+	}
+}
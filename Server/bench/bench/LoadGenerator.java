@@ -0,0 +1,439 @@
+package bench;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import domain.Histogram;
+import domain.Message;
+import domain.MessageCodec;
+import domain.MessageType;
+import domain.ReaderExecutor;
+
+/**
+ * <p>End-to-end load test of a server running in this machine, made of simulated Clients that speak its protocol through Object Streams just like the real one:
+ * every Client logs in with a {@code LOGIN_REQUEST} that asks for the serialized protocol, which registers it the first time, confirms it with a {@code LOGIN_CONFIRMATION}, sends an {@code ADDING_REQUEST}
+ * to its contacts and accepts the ones it receives, and then sends {@code USER_MESSAGE}s to all its contacts at the configured rate.
+ * From time to time Clients go offline with a {@code USER_LOGOUT} and log in again some seconds later, receiving the messages queued meanwhile.</p>
+ * <p>Every message carries the time it was sent, so the delivery latency is measured by the Client that receives it. Deliveries of messages sent before the receiver
+ * logged in were queued by the server and are reported apart. Every second the throughput, the delivery latency percentiles and, if the server can be reached,
+ * its heap and thread count are printed, and a summary at the end.</p>
+ * <p>Usage: {@code java -cp bin bench.LoadGenerator [name=value ...]}, with the options (defaults in brackets): {@code port} of the server (4444),
+ * {@code clients} (1000), {@code seconds} of the test (60), {@code rate} of messages of every Client per second (0.2), {@code fanout} contacts of every Client (5),
+ * {@code churn} percentage of the online Clients that go offline every second (1), {@code offline} seconds they stay away (5), {@code connectRate} logins per second
+ * while starting (200), {@code size} characters of every message (64), {@code threads} of the readers, platform or virtual (virtual if available),
+ * {@code senders} threads (2), {@code prefix} of the user names (load), and either {@code jmx} port of the JMX agent of the server,
+ * started with {@code -Dcom.sun.management.jmxremote.port}, to report its heap, or {@code pid} of the server to report its resident memory.</p>
+ * <p>The server must use the {@code blocking} transport and allow at least as many {@code loginAttemptsPerMinute} as Clients, since all of them log in from the same address.
+ * Logins are verified with {@code passwordIterations}, so lowering it lets the Clients start faster. Big counts need a high open files limit ({@code ulimit -n}).</p>
+ */
+public class LoadGenerator {
+
+	private static final String PASSWORD = "load";
+	private static final int CONNECTING = 0, ONLINE = 1, OFFLINE = 2, STOPPED = 3;
+
+	private static int port;
+	private static int offlineSeconds;
+	private static String padding;
+	private static Executor readers;
+	private static volatile boolean running = true;
+
+	private static final LongAdder sent = new LongAdder(), delivered = new LongAdder(), queued = new LongAdder(), rejected = new LongAdder(),
+			logins = new LongAdder(), failedLogins = new LongAdder(), dropped = new LongAdder();
+	private static final Histogram latency = new Histogram(), queuedLatency = new Histogram();
+	private static final AtomicReference<Histogram> intervalLatency = new AtomicReference<Histogram>(new Histogram());
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) throw new IllegalArgumentException("Options must be name=value: "+arg);
+			options.put(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+		}
+		port = Integer.parseInt(option(options, "port", "4444"));
+		final int clients = Integer.parseInt(option(options, "clients", "1000"));
+		int seconds = Integer.parseInt(option(options, "seconds", "60"));
+		double rate = Double.parseDouble(option(options, "rate", "0.2"));
+		int fanout = Math.min(Integer.parseInt(option(options, "fanout", "5")), clients - 1);
+		double churn = Double.parseDouble(option(options, "churn", "1"));
+		offlineSeconds = Integer.parseInt(option(options, "offline", "5"));
+		final int connectRate = Integer.parseInt(option(options, "connectRate", "200"));
+		int size = Integer.parseInt(option(options, "size", "64"));
+		String threads = option(options, "threads", ReaderExecutor.isVirtualAvailable() ? ReaderExecutor.VIRTUAL_THREADS : ReaderExecutor.PLATFORM_THREADS);
+		int senders = Integer.parseInt(option(options, "senders", "2"));
+		String prefix = option(options, "prefix", "load");
+		if (clients < 2 || rate <= 0) throw new IllegalArgumentException("There must be at least 2 clients and a positive rate.");
+
+		char[] fill = new char[Math.max(0, size - 20)];
+		Arrays.fill(fill, 'x');
+		padding = new String(fill);
+		readers = ReaderExecutor.create(threads);
+		ServerProbe probe = ServerProbe.create(options.get("jmx"), options.get("pid"));
+
+		final List<SimulatedClient> all = new ArrayList<SimulatedClient>(clients);
+		for (int i = 0; i < clients; i++) {
+			String[] contacts = new String[fanout];
+			for (int j = 0; j < fanout; j++) contacts[j] = prefix+((i + j + 1) % clients);
+			all.add(new SimulatedClient(prefix+i, contacts, churn / 100 / rate));
+		}
+
+		System.out.println("Load of "+clients+" clients on port "+port+" for "+seconds+" s: "+rate+" messages/s to "+fanout+" contacts, "
+				+churn+"% offline every second for "+offlineSeconds+" s, "+threads+" reader threads.");
+		System.out.println(String.format("%5s %8s %10s %10s %9s %9s %9s %8s %8s %10s %8s",
+				"s", "online", "sent/s", "recv/s", "p50 ms", "p99 ms", "p999 ms", "queued", "errors", probe.getMemoryName(), "threads"));
+
+		ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(senders);
+		long period = (long) (1000000000 / rate);
+		for (SimulatedClient client : all) {
+			scheduler.scheduleAtFixedRate(client.ticker, ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+		}
+		Thread ramp = new Thread(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				for (int i = 0; i < all.size() && running; i++) {
+					readers.execute(all.get(i).connector);
+					long wait = start + i * 1000000000L / connectRate - System.nanoTime();
+					if (wait > 0) sleep(wait / 1000000);
+				}
+			}
+		}, "Load-Ramp");
+		ramp.setDaemon(true);
+		ramp.start();
+
+		long start = System.nanoTime();
+		long lastSent = 0, lastDelivered = 0;
+		for (int second = 1; second <= seconds; second++) {
+			sleep((start + second * 1000000000L - System.nanoTime()) / 1000000);
+			Histogram interval = intervalLatency.getAndSet(new Histogram());
+			long totalSent = sent.sum(), totalDelivered = delivered.sum();
+			long[] server = probe.read();
+			System.out.println(String.format("%5d %8d %10d %10d %9.2f %9.2f %9.2f %8d %8d %10s %8s", second, online(all), totalSent - lastSent, totalDelivered - lastDelivered,
+					millis(interval.getPercentile(50)), millis(interval.getPercentile(99)), millis(interval.getPercentile(99.9)), queued.sum(),
+					rejected.sum() + failedLogins.sum() + dropped.sum(), server == null ? "n/a" : String.format("%.1f", server[0] / 1048576.0), server == null ? "n/a" : server[1]));
+			lastSent = totalSent;
+			lastDelivered = totalDelivered;
+		}
+		running = false;
+		scheduler.shutdownNow();
+		for (SimulatedClient client : all) {
+			client.stop();
+		}
+
+		System.out.println();
+		System.out.println(String.format("Sent %d messages (%.1f/s), delivered %d (%.1f/s), %d of them queued while the receiver was offline.",
+				sent.sum(), sent.sum() / (double) seconds, delivered.sum(), delivered.sum() / (double) seconds, queued.sum()));
+		System.out.println(String.format("Delivery latency ms: p50 %.2f, p99 %.2f, p999 %.2f, max %.2f. Queued deliveries: p50 %.2f, p99 %.2f, max %.2f.",
+				millis(latency.getPercentile(50)), millis(latency.getPercentile(99)), millis(latency.getPercentile(99.9)), millis(latency.getMax()),
+				millis(queuedLatency.getPercentile(50)), millis(queuedLatency.getPercentile(99)), millis(queuedLatency.getMax())));
+		System.out.println("Logins "+logins.sum()+", failed logins "+failedLogins.sum()+", dropped connections "+dropped.sum()+", rejected messages "+rejected.sum()+".");
+		probe.close();
+		if (readers instanceof ExecutorService) ((ExecutorService) readers).shutdownNow();
+		System.exit(0);
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private static int online(List<SimulatedClient> clients) {
+		int online = 0;
+		for (SimulatedClient client : clients) {
+			if (client.state == ONLINE) online++;
+		}
+		return online;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * <p>Client of a user. Its {@code connector}, run by a reader, logs in and then reads until the {@code Socket} is closed,
+	 * and its {@code ticker}, run by the scheduler, sends its messages, goes offline or, once its time away is over, starts logging in again.</p>
+	 */
+	private static class SimulatedClient {
+
+		private final Runnable connector = new Runnable() {
+			public void run() {
+				connect();
+			}
+		};
+		private final Runnable ticker = new Runnable() {
+			public void run() {
+				tick();
+			}
+		};
+
+		private String name;
+		private String[] contacts;
+		private double churnPerTick;
+		private volatile int state;
+		private volatile long loginStart;
+		private long backAt;
+		private boolean contactsAdded;
+		private Socket socket;
+		private ObjectOutputStream out;
+
+		public SimulatedClient(String name, String[] contacts, double churnPerTick) {
+			this.name = name;
+			this.contacts = contacts;
+			this.churnPerTick = churnPerTick;
+			state = CONNECTING;
+		}
+
+		/**
+		 * Logs in, reading the messages queued meanwhile, and reads until the {@code Socket} is closed. If the login fails the Client tries again after its time away.
+		 */
+		private void connect() {
+			loginStart = System.nanoTime();
+			Socket socket = null;
+			try {
+				socket = new Socket(InetAddress.getLoopbackAddress(), port);
+				socket.setTcpNoDelay(true);
+				synchronized (this) {
+					this.socket = socket;
+					out = new ObjectOutputStream(socket.getOutputStream());
+				}
+				ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+				Message login = new Message(MessageType.LOGIN_REQUEST);
+				login.setContent(PASSWORD);
+				login.setProtocol(MessageCodec.SERIALIZED.getProtocol());
+				send(login);
+				Message reply;
+				while ((reply = (Message) in.readObject()).getMessageType() != MessageType.LOGIN_REPLY);
+				if (!reply.getCondition()) throw new IOException(reply.getContent());
+				send(new Message(MessageType.LOGIN_CONFIRMATION));
+				Message message;
+				while ((message = (Message) in.readObject()).getMessageType() != MessageType.HISTORY_SUMMARY) handle(message);
+				if (!contactsAdded) {
+					for (String contact : contacts) {
+						Message adding = new Message(MessageType.ADDING_REQUEST);
+						adding.setDestinationName(contact);
+						send(adding);
+					}
+					contactsAdded = true;
+				}
+				logins.increment();
+				state = ONLINE;
+				while (true) handle((Message) in.readObject());
+			} catch (IOException | ClassNotFoundException e) {
+				if (state == CONNECTING) failedLogins.increment();
+				else if (state == ONLINE) dropped.increment();
+			} finally {
+				close(socket);
+				synchronized (this) {
+					if (state != STOPPED && state != OFFLINE) {
+						backAt = System.nanoTime() + offlineSeconds * 1000000000L;
+						state = OFFLINE;
+					}
+				}
+			}
+		}
+
+		private void handle(Message message) throws IOException {
+			switch (message.getMessageType()) {
+			case USER_MESSAGE:
+				String content = message.getContent();
+				int space = content.indexOf(' ');
+				long sentAt = Long.parseLong(space < 0 ? content : content.substring(0, space));
+				long elapsed = System.nanoTime() - sentAt;
+				delivered.increment();
+				if (sentAt < loginStart) {
+					queued.increment();
+					queuedLatency.record(elapsed);
+				}
+				else {
+					latency.record(elapsed);
+					intervalLatency.get().record(elapsed);
+				}
+				break;
+
+			case USER_MESSAGE_FORWARDING:
+				if (!message.getCondition()) rejected.increment();
+				break;
+
+			case ADDING_REQUEST:
+				Message accept = new Message(MessageType.ADDING_REPLY);
+				accept.setDestinationName(message.getSourceName());
+				accept.setCondition("true");
+				send(accept);
+				break;
+
+			case PING:
+				send(new Message(MessageType.PONG));
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Sends a message to every contact, or goes offline, if the Client is online. Otherwise starts logging in again once its time away is over.
+		 */
+		private void tick() {
+			if (!running) return;
+			if (state == ONLINE) {
+				if (ThreadLocalRandom.current().nextDouble() < churnPerTick) {
+					leave();
+					return;
+				}
+				try {
+					for (String contact : contacts) {
+						Message message = new Message(MessageType.USER_MESSAGE);
+						message.setDestinationName(contact);
+						message.setContent(System.nanoTime()+" "+padding);
+						send(message);
+						sent.increment();
+					}
+				} catch (IOException e) {
+					close(socket);
+				}
+			}
+			else if (state == OFFLINE && System.nanoTime() >= backAt) {
+				synchronized (this) {
+					if (state != OFFLINE) return;
+					state = CONNECTING;
+				}
+				readers.execute(connector);
+			}
+		}
+
+		/**
+		 * Logs out and closes the {@code Socket}, so that the messages sent to the Client are queued until it logs in again.
+		 */
+		private synchronized void leave() {
+			state = OFFLINE;
+			backAt = System.nanoTime() + offlineSeconds * 1000000000L;
+			try {
+				send(new Message(MessageType.USER_LOGOUT));
+			} catch (IOException e) {
+				//Closed anyway
+			}
+			close(socket);
+		}
+
+		private synchronized void stop() {
+			boolean online = state == ONLINE;
+			state = STOPPED;
+			if (online) {
+				try {
+					send(new Message(MessageType.USER_LOGOUT));
+				} catch (IOException e) {
+					//Closed anyway
+				}
+			}
+			close(socket);
+		}
+
+		/**
+		 * Writes the {@code Message} and resets the stream, so that neither end keeps a reference to every {@code Message} sent through it.
+		 */
+		private synchronized void send(Message message) throws IOException {
+			message.setSourceName(name);
+			out.writeObject(message);
+			out.reset();
+			out.flush();
+		}
+
+		private static void close(Socket socket) {
+			if (socket == null) return;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//Already closed
+			}
+		}
+	}
+
+	/**
+	 * <p>Reads the memory and thread count of the server, through its JMX agent or the {@code /proc} status of its process.</p>
+	 */
+	private static class ServerProbe {
+
+		private MBeanServerConnection connection;
+		private JMXConnector connector;
+		private String pid;
+
+		public static ServerProbe create(String jmxPort, String pid) throws IOException {
+			ServerProbe probe = new ServerProbe();
+			if (jmxPort != null) {
+				probe.connector = JMXConnectorFactory.connect(new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:"+jmxPort+"/jmxrmi"));
+				probe.connection = probe.connector.getMBeanServerConnection();
+			}
+			probe.pid = pid;
+			return probe;
+		}
+
+		public String getMemoryName() {
+			return connection != null ? "heap MB" : "rss MB";
+		}
+
+		/**
+		 * @return Used heap, or resident memory, in bytes and live threads of the server. Null if they can't be read.
+		 */
+		public long[] read() {
+			try {
+				if (connection != null) {
+					CompositeData heap = (CompositeData) connection.getAttribute(new ObjectName("java.lang:type=Memory"), "HeapMemoryUsage");
+					Number threads = (Number) connection.getAttribute(new ObjectName("java.lang:type=Threading"), "ThreadCount");
+					return new long[] {(Long) heap.get("used"), threads.longValue()};
+				}
+				if (pid != null) {
+					long[] values = {-1, -1};
+					for (String line : Files.readAllLines(Paths.get("/proc", pid, "status"))) {
+						if (line.startsWith("VmRSS:")) values[0] = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+						else if (line.startsWith("Threads:")) values[1] = Long.parseLong(line.replaceAll("[^0-9]", ""));
+					}
+					return values;
+				}
+			} catch (Exception e) {
+				//Server not reachable
+			}
+			return null;
+		}
+
+		public void close() {
+			if (connector == null) return;
+			try {
+				connector.close();
+			} catch (IOException e) {
+				//Already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import domain.Message;
+import domain.MessageCodec;
+import domain.MessageType;
+
+/**
+ * <p>Checks that a malformed {@code Message} only costs the {@code Connection} it came through. For every case a Client that has not logged in
+ * sends a {@code Message} the server can't handle, and then a second Client must still be able to log in:</p>
+ * <ul>
+ * <li>A {@code USER_UPDATE} whose additional data is a {@code String} instead of a {@code User}.</li>
+ * <li>A {@code Message} without {@code MessageType}.</li>
+ * <li>An {@code ADDING_REPLY} without destination.</li>
+ * </ul>
+ * <p>Usage: {@code java -cp bin bench.MalformedMessageTest [port] [transport]}, by default {@code 4444 nio}. The transport must be the one of the server,
+ * which must be running in this machine and allow a few logins from this address. The Clients register users named {@code malformed<time>}.</p>
+ */
+public class MalformedMessageTest {
+
+	private static final int TIMEOUT = 5000;
+
+	private static int port;
+	private static boolean framed;
+
+	public static void main(String[] args) throws Exception {
+		port = args.length > 0 ? Integer.parseInt(args[0]) : 4444;
+		framed = !"blocking".equals(args.length > 1 ? args[1] : "nio");
+
+		Message wrongData = new Message(MessageType.USER_UPDATE);
+		wrongData.setAdditionalData("not a user");
+		Message noDestination = new Message(MessageType.ADDING_REPLY);
+		noDestination.setCondition("true");
+		Message[] cases = {wrongData, new Message(null), noDestination};
+		String[] names = {"USER_UPDATE with String data", "Message without type", "ADDING_REPLY without destination"};
+
+		boolean passed = true;
+		for (int i = 0; i < cases.length; i++) {
+			Client attacker = new Client("malformed"+System.nanoTime());
+			attacker.send(cases[i]);
+			Thread.sleep(200);
+			String result;
+			try {
+				Client client = new Client("malformed"+System.nanoTime());
+				result = client.login() ? "passed" : "FAILED, login refused";
+				client.close();
+			} catch (IOException e) {
+				result = "FAILED, "+e;
+			}
+			attacker.close();
+			passed &= result.equals("passed");
+			System.out.println(names[i]+": "+result);
+		}
+		System.out.println(passed ? "All the cases passed." : "Some cases failed.");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * <p>Client that writes messages as objects or, with the non-blocking transport, in frames of the {@code SerializedCodec}.</p>
+	 */
+	private static class Client {
+
+		private String name;
+		private Socket socket;
+		private ObjectOutputStream out;
+		private ObjectInputStream in;
+		private DataOutputStream frameOut;
+		private DataInputStream frameIn;
+
+		public Client(String name) throws IOException {
+			this.name = name;
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setSoTimeout(TIMEOUT);
+			if (framed) {
+				frameOut = new DataOutputStream(socket.getOutputStream());
+				frameIn = new DataInputStream(socket.getInputStream());
+			}
+			else {
+				out = new ObjectOutputStream(socket.getOutputStream());
+				out.flush();
+			}
+		}
+
+		/**
+		 * @return true if the server has accepted the login.
+		 * @throws IOException If the server has not answered in {@value MalformedMessageTest#TIMEOUT} ms.
+		 */
+		public boolean login() throws IOException {
+			Message login = new Message(MessageType.LOGIN_REQUEST);
+			login.setContent("password");
+			send(login);
+			Message reply;
+			while ((reply = read()).getMessageType() != MessageType.LOGIN_REPLY);
+			return reply.getCondition();
+		}
+
+		public void send(Message message) throws IOException {
+			message.setSourceName(name);
+			if (framed) {
+				byte[] body = MessageCodec.SERIALIZED.encode(message);
+				frameOut.writeInt(body.length);
+				frameOut.write(body);
+				frameOut.flush();
+			}
+			else {
+				out.writeObject(message);
+				out.flush();
+			}
+		}
+
+		private Message read() throws IOException {
+			try {
+				if (!framed) {
+					if (in == null) in = new ObjectInputStream(socket.getInputStream());
+					return (Message) in.readObject();
+				}
+				byte[] body = new byte[frameIn.readInt()];
+				frameIn.readFully(body);
+				return MessageCodec.SERIALIZED.decode(body, 0, body.length);
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import domain.Message;
+import domain.MessageType;
+import domain.ReaderExecutor;
+
+/**
+ * <p>Compares the cost of holding idle blocking connections with platform and virtual reader threads.</p>
+ * <p>For every mode and connection count a local {@code ServerSocket} is opened whose accept loop and per-connection read loops run in the {@code Executor} 
+ * given by {@link ReaderExecutor#create(String)}, reading and answering {@code Message} objects through Object Streams just like {@code SocketConnection}.
+ * Once all the clients are connected, the heap, resident memory and live platform threads are reported, together with the round trip latency of a sample of the connections.</p>
+ * <p>Usage: {@code java -cp bin bench.ReaderThreadsLoadTest [connections,...] [modes,...]}, by default {@code 1000,10000,50000 platform,virtual}.
+ * Big counts need a high open files limit ({@code ulimit -n}).</p>
+ */
+public class ReaderThreadsLoadTest {
+
+	private static final int LATENCY_SAMPLE_CONNECTIONS = 100;
+	private static final int LATENCY_ROUND_TRIPS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		List<Integer> counts = new ArrayList<Integer>();
+		for (String count : (args.length > 0 ? args[0] : "1000,10000,50000").split(",")) counts.add(Integer.parseInt(count.trim()));
+		List<String> modes = Arrays.asList((args.length > 1 ? args[1] : ReaderExecutor.PLATFORM_THREADS+","+ReaderExecutor.VIRTUAL_THREADS).split(","));
+		
+		System.out.println(String.format("%-9s %11s %11s %12s %12s %10s %10s", "mode", "connections", "connected", "heap (MB)", "rss (MB)", "threads", "p50/p99 us"));
+		for (String mode : modes) {
+			if (ReaderExecutor.VIRTUAL_THREADS.equals(mode) && !ReaderExecutor.isVirtualAvailable()) {
+				System.out.println(mode+": not available in this runtime, skipped.");
+				continue;
+			}
+			for (int count : counts) {
+				run(mode.trim(), count);
+			}
+		}
+		System.exit(0);
+	}
+
+	private static void run(String mode, int count) throws Exception {
+		gc();
+		long heapBefore = usedHeap();
+		long rssBefore = residentMemory();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		
+		Executor executor = ReaderExecutor.create(mode);
+		final ServerSocket serverSocket = new ServerSocket(0, count, InetAddress.getLoopbackAddress());
+		executor.execute(acceptLoop(serverSocket, executor));
+		
+		byte[] streamHeader = streamHeader();
+		List<Socket> clients = new ArrayList<Socket>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+				socket.setTcpNoDelay(true);
+				socket.getOutputStream().write(streamHeader);
+				clients.add(socket);
+			}
+		} catch (IOException e) {
+			System.out.println(mode+": stopped connecting at "+clients.size()+" connections ("+e.getMessage()+")");
+		}
+		long[] latencies = roundTrips(clients);
+		
+		gc();
+		long heap = usedHeap() - heapBefore;
+		long rss = residentMemory() - rssBefore;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		System.out.println(String.format("%-9s %11d %11d %12.1f %12s %10d %10s", mode, count, clients.size(), heap / 1048576.0, 
+				rssBefore < 0 ? "n/a" : String.format("%.1f", rss / 1048576.0), threads, 
+				latencies.length == 0 ? "n/a" : latencies[latencies.length / 2] / 1000+"/"+latencies[latencies.length * 99 / 100] / 1000));
+		
+		serverSocket.close();
+		for (Socket socket : clients) {
+			socket.close();
+		}
+		if (executor instanceof ExecutorService) ((ExecutorService) executor).shutdown();
+		Thread.sleep(1000);
+	}
+
+	private static Runnable acceptLoop(final ServerSocket serverSocket, final Executor executor) {
+		return new Runnable() {
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						executor.execute(readLoop(serverSocket.accept()));
+					} catch (IOException e) {
+						//Server socket closed
+					}
+				}
+			}
+		};
+	}
+
+	private static Runnable readLoop(final Socket socket) {
+		return new Runnable() {
+			public void run() {
+				try {
+					socket.setTcpNoDelay(true);
+					ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+					ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+					out.flush();
+					while (!socket.isClosed()) {
+						Message message = (Message) in.readObject();
+						Message reply = new Message(MessageType.SERVER_MESSAGE);
+						reply.setContent(message.getContent());
+						out.writeObject(reply);
+						out.flush();
+					}
+				} catch (IOException | ClassNotFoundException e) {
+					//Client closed
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sends {@code Message} objects through a sample of the connections and measures how long it takes to receive the reply.
+	 * @param clients
+	 * @return Sorted latencies in nanoseconds.
+	 */
+	private static long[] roundTrips(List<Socket> clients) throws IOException, ClassNotFoundException {
+		int sample = Math.min(LATENCY_SAMPLE_CONNECTIONS, clients.size());
+		if (sample == 0) return new long[0];
+		ObjectOutputStream[] outs = new ObjectOutputStream[sample];
+		ObjectInputStream[] ins = new ObjectInputStream[sample];
+		for (int i = 0; i < sample; i++) {
+			Socket socket = clients.get(i * (clients.size() / sample));
+			outs[i] = new ObjectOutputStream(new HeaderlessOutputStream(socket.getOutputStream()));
+			ins[i] = new ObjectInputStream(socket.getInputStream());
+		}
+		long[] latencies = new long[LATENCY_ROUND_TRIPS];
+		for (int i = 0; i < latencies.length; i++) {
+			Message message = new Message(MessageType.SERVER_MESSAGE);
+			message.setContent("ping "+i);
+			long start = System.nanoTime();
+			outs[i % sample].writeObject(message);
+			outs[i % sample].flush();
+			ins[i % sample].readObject();
+			latencies[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static byte[] streamHeader() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new ObjectOutputStream(bytes).flush();
+		return bytes.toByteArray();
+	}
+
+	private static void gc() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+	}
+
+	private static long usedHeap() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * @return Resident memory of the process in bytes, -1 if it can't be read (only Linux is supported).
+	 */
+	private static long residentMemory() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (IOException | NumberFormatException e) {
+			//Not available
+		}
+		return -1;
+	}
+
+	/**
+	 * The stream header of the clients is sent right after connecting, so the sampled {@code ObjectOutputStream} must not write it again.
+	 */
+	private static class HeaderlessOutputStream extends OutputStream {
+		
+		private OutputStream out;
+		private int skip;
+
+		public HeaderlessOutputStream(OutputStream out) throws IOException {
+			this.out = out;
+			this.skip = streamHeader().length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (skip > 0) skip--;
+			else out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int skipped = Math.min(skip, len);
+			skip -= skipped;
+			if (len > skipped) out.write(b, off + skipped, len - skipped);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.User;
+
+/**
+ * <p>{@link User#addToChat(String, String)} on chats that already hold {@code history} characters. 
+ * Since every line makes the chat longer, the chat is built again before every iteration, which appends a batch of {@value ChatBenchmark#BATCH} lines: 
+ * the score is the time of the whole batch.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = ChatBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = ChatBenchmark.BATCH)
+@Fork(1)
+public class ChatBenchmark {
+
+	static final int BATCH = 100;
+	private static final String LINE = "anna: Hello, this is a fairly ordinary chat message.\n";
+
+	@Param({"1000", "100000", "1000000"})
+	public int history;
+
+	private User user;
+
+	@Setup(Level.Iteration)
+	public void createChat() {
+		user = new User("anna", "");
+		user.addContact("bob");
+		StringBuilder chat = new StringBuilder(history + LINE.length());
+		while (chat.length() < history) {
+			chat.append(LINE);
+		}
+		user.addToChat("bob", chat.toString());
+	}
+
+	@Benchmark
+	public User addToChat() {
+		user.addToChat("bob", LINE);
+		return user;
+	}
+}
@@ -0,0 +1,176 @@
+package bench.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.Message;
+import domain.MessageCodec;
+import domain.MessageType;
+import domain.User;
+
+/**
+ * <p>Encode and decode throughput of the wire formats of the server, for a {@code USER_MESSAGE} and for a {@code LOGIN_REPLY} with 10 chats:</p>
+ * <ul>
+ * <li>object stream: one long lived {@code ObjectOutputStream}, as used by {@code SocketConnection} before a protocol is negotiated.
+ * The streams are renewed every {@value CodecBenchmark#STREAM_MESSAGES} messages, so that they do not keep every {@code Message} written.</li>
+ * <li>serialized: every {@code Message} serialized on its own, as in the frames of the non-blocking transport.</li>
+ * <li>binary: {@code MessageCodec#BINARY}.</li>
+ * </ul>
+ * <p>Every encoding writes a new copy of the {@code Message}, so that the object stream can't replace it with back references, as happens with real traffic.
+ * The bytes per message of every format are printed when the trial starts.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	private static final int STREAM_MESSAGES = 1024;
+
+	@Param({"USER_MESSAGE", "LOGIN_REPLY"})
+	public String message;
+
+	private Message sample;
+	private byte[] serialized;
+	private byte[] binary;
+	private byte[] stream;
+	private ByteArrayOutputStream sink;
+	private ObjectOutputStream out;
+	private int written;
+	private ObjectInputStream in;
+	private int read;
+
+	@Setup(Level.Trial)
+	public void encodeSample() throws IOException {
+		sample = MessageType.LOGIN_REPLY.name().equals(message) ? loginReply() : userMessage();
+		serialized = MessageCodec.SERIALIZED.encode(sample);
+		binary = MessageCodec.BINARY.encode(sample);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(bytes);
+		objects.writeObject(copy(sample));
+		objects.flush();
+		int first = bytes.size();
+		for (int i = 1; i < STREAM_MESSAGES; i++) {
+			objects.writeObject(copy(sample));
+		}
+		objects.close();
+		stream = bytes.toByteArray();
+		System.out.println(String.format("%n%s bytes per message: object stream %.1f, serialized %d, binary %d",
+				message, (stream.length - first) / (double) (STREAM_MESSAGES - 1), serialized.length, binary.length));
+		sink = new ByteArrayOutputStream();
+		written = STREAM_MESSAGES;
+		read = STREAM_MESSAGES;
+	}
+
+	@Benchmark
+	public void objectStreamEncode() throws IOException {
+		if (written == STREAM_MESSAGES) {
+			sink.reset();
+			out = new ObjectOutputStream(sink);
+			written = 0;
+		}
+		out.writeObject(copy(sample));
+		out.flush();
+		written++;
+	}
+
+	@Benchmark
+	public Object objectStreamDecode() throws IOException, ClassNotFoundException {
+		if (read == STREAM_MESSAGES) {
+			in = new ObjectInputStream(new ByteArrayInputStream(stream));
+			read = 0;
+		}
+		read++;
+		return in.readObject();
+	}
+
+	@Benchmark
+	public byte[] serializedEncode() throws IOException {
+		return MessageCodec.SERIALIZED.encode(copy(sample));
+	}
+
+	@Benchmark
+	public Message serializedDecode() throws IOException, ClassNotFoundException {
+		return MessageCodec.SERIALIZED.decode(serialized, 0, serialized.length);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() throws IOException {
+		return MessageCodec.BINARY.encode(copy(sample));
+	}
+
+	@Benchmark
+	public Message binaryDecode() throws IOException, ClassNotFoundException {
+		return MessageCodec.BINARY.decode(binary, 0, binary.length);
+	}
+
+	private static Message copy(Message message) {
+		Message copy = new Message(message.getMessageType());
+		copy.setSourceName(copy(message.getSourceName()));
+		copy.setSourceAddress(copy(message.getSourceAddress()));
+		copy.setDestinationName(copy(message.getDestinationName()));
+		copy.setDestinationAddress(copy(message.getDestinationAddress()));
+		copy.setContent(copy(message.getContent()));
+		copy.setCondition(String.valueOf(message.getCondition()));
+		if (message.getAdditionalData() instanceof User) {
+			User user = (User) message.getAdditionalData();
+			User userCopy = new User(copy(user.getName()), copy(user.getPassword()));
+			for (String contact : user.getContacts()) {
+				userCopy.addContact(copy(contact));
+				userCopy.addToChat(contact, copy(user.getChat(contact)));
+			}
+			copy.setAdditionalData(userCopy);
+		}
+		return copy;
+	}
+
+	private static String copy(String text) {
+		return text == null ? null : new String(text);
+	}
+
+	private static Message userMessage() {
+		Message message = new Message(MessageType.USER_MESSAGE);
+		message.setSourceName("alice");
+		message.setSourceAddress("192.168.1.20");
+		message.setDestinationName("bob");
+		message.setDestinationAddress("192.168.1.31");
+		message.setContent("Hi Bob, are we still meeting at the library at five?");
+		return message;
+	}
+
+	private static Message loginReply() {
+		User user = new User("alice", "secret");
+		for (int i = 0; i < 10; i++) {
+			user.addContact("contact"+i);
+			for (int j = 0; j < 20; j++) {
+				user.addToChat("contact"+i, "alice: message number "+j+" of this conversation\n");
+			}
+		}
+		Message message = new Message(MessageType.LOGIN_REPLY);
+		message.setDestinationName("alice");
+		message.setDestinationAddress("192.168.1.20");
+		message.setCondition("true");
+		message.setContent("Logged in successfully as alice");
+		message.setAdditionalData(user);
+		return message;
+	}
+}
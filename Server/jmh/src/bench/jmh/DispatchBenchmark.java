@@ -0,0 +1,70 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import application.ServerController;
+import bench.jmh.ServerFixture.Client;
+import domain.Message;
+import domain.MessageType;
+
+/**
+ * <p>{@link ServerController#messageReceived(Message)} in a running server, as called by the reader of a {@code Connection}: 
+ * a {@code USER_MESSAGE} between two users logged in through sockets, which is routed, queued in the {@code Connection} of the recipient and added to the chat history, 
+ * and a {@code PING} as the cost of the dispatch alone.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	private ServerController controller;
+	private Client anna;
+	private Client bob;
+
+	@Setup(Level.Trial)
+	public void login() throws Exception {
+		controller = ServerFixture.start();
+		anna = ServerFixture.login("anna", "password");
+		bob = ServerFixture.login("bob", "password");
+	}
+
+	@TearDown(Level.Trial)
+	public void logout() throws Exception {
+		anna.close();
+		bob.close();
+	}
+
+	@Benchmark
+	public Message userMessage() {
+		Message message = new Message(MessageType.USER_MESSAGE);
+		message.setSourceName(anna.getName());
+		message.setDestinationName(bob.getName());
+		message.setContent("Hello, this is a fairly ordinary chat message.");
+		message.setConnectionId(anna.getConnectionId());
+		return controller.messageReceived(message);
+	}
+
+	@Benchmark
+	public Message ping() {
+		Message message = new Message(MessageType.PING);
+		message.setSourceName(anna.getName());
+		message.setConnectionId(anna.getConnectionId());
+		return controller.messageReceived(message);
+	}
+}
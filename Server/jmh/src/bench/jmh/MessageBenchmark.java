@@ -0,0 +1,83 @@
+package bench.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.LogEntry;
+import domain.LogLevel;
+import domain.Message;
+import domain.MessageCodec;
+import domain.MessageType;
+import persistence.RollingLogFile;
+
+/**
+ * <p>Work done for every {@code Message} besides routing it: decoding an inbound frame, formatting its time stamp,
+ * turning it into text and writing it to the log file as a {@code DEBUG} entry, as the server does for every {@code Message} received and sent.</p>
+ * <p>Meant to be run with the allocation profiler, {@code -prof gc}, whose {@code gc.alloc.rate.norm} is the number of bytes allocated by every operation.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	private Message message;
+	private byte[] body;
+	private File file;
+	private RollingLogFile log;
+
+	@Setup(Level.Trial)
+	public void createMessage() throws IOException {
+		message = new Message(MessageType.USER_MESSAGE);
+		message.setSourceName("anna");
+		message.setDestinationName("bob");
+		message.setDestinationAddress("127.0.0.1");
+		message.setContent("Hello, this is a fairly ordinary chat message.");
+		body = MessageCodec.BINARY.encode(message);
+		file = File.createTempFile("message-benchmark", ".log");
+		log = new RollingLogFile(file, 16 * 1024 * 1024, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteLog() {
+		log.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public Message decode() throws IOException, ClassNotFoundException {
+		return MessageCodec.BINARY.decode(body, 0, body.length);
+	}
+
+	@Benchmark
+	public String timeStamp() {
+		return message.getTimeStamp(null);
+	}
+
+	@Benchmark
+	public String text() {
+		return message.toString();
+	}
+
+	@Benchmark
+	public void logLine() {
+		log.write(Collections.singletonList(new LogEntry(LogLevel.DEBUG, "Message received: \n", message)));
+	}
+}
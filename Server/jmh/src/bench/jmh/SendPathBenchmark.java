@@ -0,0 +1,161 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.BufferPool;
+import domain.Connection;
+import domain.FrameCodec;
+import domain.Message;
+import domain.MessageCodec;
+import domain.MessageType;
+import domain.SendResult;
+import domain.User;
+
+/**
+ * <p>Cost of sending a {@code Message} to a Client, without the network: {@link Connection#send(Message)} into a {@code Connection} 
+ * that writes every {@code Message} to an object stream as soon as it is queued, and the encodings on their own: 
+ * the long lived {@code ObjectOutputStream} of the blocking transport and {@code MessageCodec#BINARY}, compared with relaying a frame already received
+ * by copying it to a buffer of the {@code BufferPool}, as the non-blocking transport does for {@code USER_MESSAGE}s.</p>
+ * <p>Every operation sends a new copy of the {@code Message}, as the server does, so the object stream can't write a back reference instead. 
+ * The streams are created again every iteration, since they remember every object written.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendPathBenchmark {
+
+	@Param({"USER_MESSAGE", "LOGIN_REPLY"})
+	public String kind;
+
+	private Message message;
+	private byte[] frame;
+	private ObjectOutputStream out;
+	private StreamConnection connection;
+
+	@Setup(Level.Trial)
+	public void createMessage() throws IOException {
+		if (MessageType.LOGIN_REPLY.name().equals(kind)) {
+			message = new Message(MessageType.LOGIN_REPLY);
+			message.setDestinationName("anna");
+			message.setCondition("true");
+			message.setContent("Logged in successfully as anna");
+			User user = new User("anna", "");
+			for (int i = 0; i < 20; i++) {
+				user.addContact("contact"+i);
+			}
+			message.setAdditionalData(user);
+		}
+		else {
+			message = new Message(MessageType.USER_MESSAGE);
+			message.setSourceName("anna");
+			message.setDestinationName("bob");
+			message.setContent("Hello, this is a fairly ordinary chat message.");
+		}
+		message.setDestinationAddress("127.0.0.1");
+		frame = FrameCodec.encode(message, MessageCodec.BINARY).array();
+	}
+
+	@Setup(Level.Iteration)
+	public void createStreams() throws IOException {
+		out = new ObjectOutputStream(new DiscardingOutputStream());
+		connection = new StreamConnection(new ObjectOutputStream(new DiscardingOutputStream()));
+	}
+
+	@Benchmark
+	public SendResult connectionSend() {
+		return connection.send(message.copy());
+	}
+
+	@Benchmark
+	public ObjectOutputStream objectStream() throws IOException {
+		out.writeObject(message.copy());
+		out.flush();
+		return out;
+	}
+
+	@Benchmark
+	public byte[] binary() throws IOException {
+		return MessageCodec.BINARY.encode(message.copy());
+	}
+
+	@Benchmark
+	public ByteBuffer binaryFrame() throws IOException {
+		return FrameCodec.encode(message.copy(), MessageCodec.BINARY);
+	}
+
+	@Benchmark
+	public int relay() {
+		ByteBuffer buffer = BufferPool.acquire(frame.length);
+		buffer.put(frame).flip();
+		int size = buffer.remaining();
+		BufferPool.release(buffer);
+		return size;
+	}
+
+	/**
+	 * <p>{@code Connection} that writes every {@code Message} to its object stream in the thread that queues it.</p>
+	 */
+	private static class StreamConnection extends Connection {
+
+		private ObjectOutputStream out;
+
+		public StreamConnection(ObjectOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public boolean isActive() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		protected void enqueue(Message message) throws IOException {
+			out.writeObject(message);
+			out.flush();
+			written(1);
+		}
+
+		@Override
+		protected void startWriting() {
+		}
+	}
+
+	private static class DiscardingOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
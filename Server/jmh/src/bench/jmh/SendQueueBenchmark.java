@@ -0,0 +1,84 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import application.ServerCommunicator;
+import application.ServerController;
+import bench.jmh.ServerFixture.Client;
+import domain.Message;
+import domain.MessageType;
+
+/**
+ * <p>{@link ServerCommunicator#sendQueue(String)} with a backlog of {@code backlog} messages, as run when a user with messages waiting logs in again: 
+ * before every invocation the recipient logs out and the backlog is queued for it, and the invocation is the {@code LOGIN_CONFIRMATION} 
+ * that identifies its {@code Connection} again and hands it the whole queue.</p>
+ * <p>The invocation ends when the messages are queued in the {@code Connection}. The next one waits until the Client has read them all, 
+ * and the {@code HISTORY_SUMMARY} sent after them.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SendQueueBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int backlog;
+
+	private ServerController controller;
+	private Client anna;
+	private Client bob;
+	private long expected;
+
+	@Setup(Level.Trial)
+	public void login() throws Exception {
+		controller = ServerFixture.start();
+		anna = ServerFixture.login("anna", "password");
+		bob = ServerFixture.login("bob", "password");
+	}
+
+	@TearDown(Level.Trial)
+	public void logout() throws Exception {
+		anna.close();
+		bob.close();
+	}
+
+	@Setup(Level.Invocation)
+	public void queueBacklog() throws InterruptedException {
+		bob.awaitReceived(expected);
+		expected = bob.getReceived() + backlog + 1;
+		Message logout = new Message(MessageType.USER_LOGOUT);
+		logout.setSourceName(bob.getName());
+		controller.messageReceived(logout);
+		for (int i = 0; i < backlog; i++) {
+			Message message = new Message(MessageType.USER_MESSAGE);
+			message.setSourceName(anna.getName());
+			message.setDestinationName(bob.getName());
+			message.setContent("Message "+i+" while away.");
+			controller.messageReceived(message);
+		}
+	}
+
+	@Benchmark
+	public Message sendQueue() {
+		Message confirmation = new Message(MessageType.LOGIN_CONFIRMATION);
+		confirmation.setSourceName(bob.getName());
+		confirmation.setConnectionId(bob.getConnectionId());
+		return controller.messageReceived(confirmation);
+	}
+}
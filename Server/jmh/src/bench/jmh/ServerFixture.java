@@ -0,0 +1,166 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import application.ServerController;
+import domain.Message;
+import domain.MessageCodec;
+import domain.MessageType;
+import domain.Settings;
+
+/**
+ * <p>Server started once in the JVM of a benchmark, with the {@code config.properties} of the working directory and a free port, 
+ * and Clients logged in to it through real sockets with serialized objects.</p>
+ */
+public class ServerFixture {
+
+	private static final int CONNECT_ATTEMPTS = 50;
+
+	private static boolean started;
+
+	private ServerFixture() {
+	}
+
+	/**
+	 * @return {@code ServerController} of this JVM, started the first time this method is called.
+	 * @throws IOException If no free port could be found.
+	 */
+	public static synchronized ServerController start() throws IOException {
+		ServerController controller = ServerController.getInstance();
+		if (!started) {
+			ServerSocket probe = new ServerSocket(0);
+			Settings.serverPort = probe.getLocalPort();
+			probe.close();
+			controller.start();
+			started = true;
+		}
+		return controller;
+	}
+
+	/**
+	 * @param name
+	 * @param password
+	 * @return Client logged in with the user, which it registers if needed, once its {@code Connection} has been identified.
+	 * @throws Exception If the Client could not connect or log in.
+	 */
+	public static Client login(String name, String password) throws Exception {
+		Client client = new Client(name);
+		Message login = new Message(MessageType.LOGIN_REQUEST);
+		login.setContent(password);
+		login.setProtocol(MessageCodec.SERIALIZED.getProtocol());
+		client.send(login);
+		Message reply;
+		while ((reply = client.read()).getMessageType() != MessageType.LOGIN_REPLY);
+		if (!reply.getCondition()) throw new IllegalStateException(reply.getContent());
+		client.connectionId = reply.getConnectionId();
+		Message confirmation = new Message(MessageType.LOGIN_CONFIRMATION);
+		confirmation.setConnectionId(client.connectionId);
+		client.send(confirmation);
+		while (client.read().getMessageType() != MessageType.HISTORY_SUMMARY);
+		client.drain();
+		return client;
+	}
+
+	/**
+	 * <p>Client that, once logged in, reads and counts every {@code Message} it receives in a thread of its own.</p>
+	 */
+	public static class Client {
+
+		private String name;
+		private Socket socket;
+		private ObjectOutputStream out;
+		private ObjectInputStream in;
+		private long connectionId;
+		private AtomicLong received;
+
+		private Client(String name) throws IOException, InterruptedException {
+			this.name = name;
+			socket = connect();
+			out = new ObjectOutputStream(socket.getOutputStream());
+			in = new ObjectInputStream(socket.getInputStream());
+			received = new AtomicLong();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Id of the {@code Connection} of this Client in the server.
+		 */
+		public long getConnectionId() {
+			return connectionId;
+		}
+
+		/**
+		 * @return Number of messages received since the login.
+		 */
+		public long getReceived() {
+			return received.get();
+		}
+
+		/**
+		 * Waits until the Client has received the number of messages.
+		 * @param count
+		 * @throws InterruptedException
+		 */
+		public void awaitReceived(long count) throws InterruptedException {
+			while (received.get() < count) {
+				Thread.sleep(1);
+			}
+		}
+
+		public void send(Message message) throws IOException {
+			message.setSourceName(name);
+			out.writeObject(message);
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+
+		/**
+		 * @return {@code Socket} connected to the server, which may still be starting to listen.
+		 * @throws IOException If the server has not accepted the connection after {@value ServerFixture#CONNECT_ATTEMPTS} attempts.
+		 * @throws InterruptedException
+		 */
+		private static Socket connect() throws IOException, InterruptedException {
+			for (int attempt = 1; ; attempt++) {
+				try {
+					return new Socket("localhost", Settings.serverPort);
+				} catch (ConnectException e) {
+					if (attempt == CONNECT_ATTEMPTS) throw e;
+					Thread.sleep(100);
+				}
+			}
+		}
+
+		private Message read() throws IOException, ClassNotFoundException {
+			return (Message) in.readObject();
+		}
+
+		private void drain() {
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (true) {
+							read();
+							received.incrementAndGet();
+						}
+					} catch (IOException | ClassNotFoundException e) {
+						//Closed
+					}
+				}
+			}, "Client-"+name);
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package bench.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import domain.PasswordHash;
+import domain.Settings;
+import domain.User;
+import domain.UserData;
+
+/**
+ * <p>Lookups of {@code UserData} with different numbers of registered users, from 4 threads at once. Half of the names looked up are registered.</p>
+ * <p>{@code isPasswordValid} is dominated by the {@code PasswordHash}, so it is measured with {@code iterations} iterations: 
+ * the default of the server is 100000.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class UserDataBenchmark {
+
+	private static final String PASSWORD = "password";
+
+	@Param({"1000", "100000", "1000000"})
+	public int users;
+
+	@Param({"1000"})
+	public int iterations;
+
+	private UserData userData;
+
+	@Setup(Level.Trial)
+	public void register() {
+		Settings.passwordIterations = iterations;
+		String hash = PasswordHash.hash(PASSWORD);
+		userData = new UserData();
+		for (int i = 0; i < users; i++) {
+			userData.registerUser(new User("user"+i, hash));
+		}
+	}
+
+	@Benchmark
+	public boolean isRegistered() {
+		return userData.isRegistered("user"+ThreadLocalRandom.current().nextInt(users * 2));
+	}
+
+	@Benchmark
+	public boolean isPasswordValid() {
+		return userData.isPasswordValid("user"+ThreadLocalRandom.current().nextInt(users * 2), PASSWORD);
+	}
+}
@@ -0,0 +1,176 @@
+package application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import domain.LogEntry;
+import domain.LogLevel;
+import domain.LogSink;
+
+/**
+ * <p>Log of the server. Logging threads put entries in a bounded lock-free ring buffer and return immediately; 
+ * a single daemon thread takes them out in batches and hands every batch to the registered sinks.
+ * If the buffer is full the entry is discarded and counted, the threads that log never wait for the sinks.</p>
+ * <p>Entries below the configured {@code LogLevel} are discarded before creating them.</p>
+ */
+public class AsyncLog {
+
+	private static final int BATCH_SIZE = 256;
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final LogEntry[] entries;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail;
+	private long head;
+
+	private final LogLevel level;
+	private final List<LogSink> sinks;
+	private final AtomicLong dropped;
+	private final Thread consumer;
+	private volatile boolean closed;
+
+	/**
+	 * Creates the log and starts its consumer thread.
+	 * @param level Lowest {@code LogLevel} logged.
+	 * @param capacity Number of entries the buffer holds, rounded up to a power of two.
+	 */
+	public AsyncLog(LogLevel level, int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		entries = new LogEntry[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+		tail = new AtomicLong();
+		this.level = level == null ? LogLevel.INFO : level;
+		sinks = new CopyOnWriteArrayList<LogSink>();
+		dropped = new AtomicLong();
+		consumer = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, "Log");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * @param sink {@code LogSink} that will receive the entries logged from now on.
+	 */
+	public void addSink(LogSink sink) {
+		sinks.add(sink);
+	}
+
+	/**
+	 * @param level
+	 * @return true if entries of the inserted {@code LogLevel} are logged.
+	 */
+	public boolean isEnabled(LogLevel level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	/**
+	 * Logs an entry without blocking. The subject is only formatted if the entry is enabled, and then by the calling thread, since it may change it afterwards.
+	 * @param level
+	 * @param text
+	 * @param subject Object appended to the text, null if none.
+	 */
+	public void log(LogLevel level, String text, Object subject) {
+		if (!isEnabled(level) || closed) return;
+		if (!offer(new LogEntry(level, text, subject))) dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return Number of entries discarded because the buffer was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes the entries still in the buffer, closes the sinks and stops the consumer thread.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Slot {@code i} may be written by the producer that claims position {@code p} when its sequence is {@code p}, 
+	 * and read by the consumer at position {@code p} when its sequence is {@code p + 1}.
+	 * @param entry
+	 * @return false if the buffer is full.
+	 */
+	private boolean offer(LogEntry entry) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					entries[index] = entry;
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+			}
+			else if (sequence < position) return false;
+		}
+	}
+
+	/**
+	 * @return Next entry of the buffer, null if it is empty. Only called by the consumer thread.
+	 */
+	private LogEntry poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1) return null;
+		LogEntry entry = entries[index];
+		entries[index] = null;
+		sequences.lazySet(index, head + entries.length);
+		head++;
+		return entry;
+	}
+
+	private void consume() {
+		List<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE);
+		long reported = 0;
+		while (true) {
+			boolean stopping = closed;
+			LogEntry entry;
+			while (batch.size() < BATCH_SIZE && (entry = poll()) != null) {
+				batch.add(entry);
+			}
+			long lost = dropped.get();
+			if (lost != reported) {
+				batch.add(new LogEntry(LogLevel.ERROR, "Log buffer full, entries discarded: "+(lost - reported), null));
+				reported = lost;
+			}
+			if (!batch.isEmpty()) {
+				for (LogSink sink : sinks) {
+					try {
+						sink.write(batch);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+				batch.clear();
+			}
+			else if (stopping) break;
+			else LockSupport.parkNanos(this, IDLE_WAIT);
+		}
+		for (LogSink sink : sinks) {
+			sink.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package application;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import domain.Message;
+
+/**
+ * <p>Runs the logins, which hash passwords, in a fixed group of {@code loginThreads} threads with a queue of {@code loginQueueSize} logins, 
+ * so that a burst of logins can't take the threads that route messages. Logins that do not fit in the queue are rejected.</p>
+ * <p>Logins are also limited to {@code loginAttemptsPerMinute} for every user name and for every remote address, counted in windows of a minute.</p>
+ */
+public class Authenticator {
+
+	private static final long WINDOW = 60 * 1000;
+	private static final int MAX_TRACKED = 10000;
+
+	private ThreadPoolExecutor pool;
+	private ConcurrentMap<String, Window> attempts;
+	private int attemptsPerWindow;
+
+	/**
+	 * @param threads Number of threads that run the logins.
+	 * @param queueSize Number of logins that can wait for a thread.
+	 * @param attemptsPerMinute Logins allowed for every user name and remote address in a minute.
+	 */
+	public Authenticator(int threads, int queueSize, int attemptsPerMinute) {
+		final AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), 
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Login-"+count.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		attempts = new ConcurrentHashMap<String, Window>();
+		attemptsPerWindow = attemptsPerMinute;
+	}
+
+	/**
+	 * Counts a login attempt for the user name and the remote address.
+	 * @param name
+	 * @param address Remote address, null if unknown.
+	 * @return true if the attempt is allowed, false if the user name or the address have reached the limit of attempts in the current minute.
+	 */
+	public boolean tryAttempt(String name, String address) {
+		long now = System.currentTimeMillis();
+		if (attempts.size() > MAX_TRACKED) expire(now);
+		boolean allowed = count("user:"+name, now);
+		if (address != null) allowed &= count("address:"+address, now);
+		return allowed;
+	}
+
+	/**
+	 * @param login
+	 * @return {@code Future} with the reply of the login.
+	 * @throws RejectedExecutionException If there are already {@code loginQueueSize} logins waiting.
+	 */
+	public Future<Message> submit(Callable<Message> login) {
+		return pool.submit(login);
+	}
+
+	/**
+	 * @return Number of logins waiting for a thread.
+	 */
+	public int getQueued() {
+		return pool.getQueue().size();
+	}
+
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	private boolean count(String key, long now) {
+		Window window = attempts.get(key);
+		if (window == null) {
+			Window created = new Window(now);
+			window = attempts.putIfAbsent(key, created);
+			if (window == null) window = created;
+		}
+		return window.attempt(now) <= attemptsPerWindow;
+	}
+
+	/**
+	 * Forgets the keys whose window has ended.
+	 * @param now
+	 */
+	private void expire(long now) {
+		Iterator<Window> windows = attempts.values().iterator();
+		while (windows.hasNext()) {
+			if (windows.next().isOver(now)) windows.remove();
+		}
+	}
+
+	/**
+	 * <p>Attempts made in the current minute.</p>
+	 */
+	private static class Window {
+
+		private long start;
+		private int attempts;
+
+		public Window(long start) {
+			this.start = start;
+		}
+
+		/**
+		 * @param now
+		 * @return Number of attempts in the current window, including this one.
+		 */
+		public synchronized int attempt(long now) {
+			if (now - start >= WINDOW) {
+				start = now;
+				attempts = 0;
+			}
+			return ++attempts;
+		}
+
+		public synchronized boolean isOver(long now) {
+			return now - start >= WINDOW;
+		}
+	}
+}
@@ -0,0 +1,564 @@
+package application;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import domain.ClusterMessage;
+import domain.Message;
+import domain.ReaderExecutor;
+
+/**
+ * <p>Links this server with the other nodes of a cluster, so that a {@code Message} reaches its receiver whatever node it is connected to.</p>
+ * <ul>
+ * <li>Every node keeps a link to every other node, and sends through it the changes in the users identified in this node.
+ * The links are re-established when they fail, sending then all the users identified in this node.</li>
+ * <li>With those changes every node keeps a presence directory with the node where every user is identified.</li>
+ * <li>A {@code Message} for a user identified in another node is forwarded to that node. If the link is down the {@code Message} is queued in this node
+ * and forwarded when the user appears in another node.</li>
+ * <li>Operations on users kept by another node are sent to it as calls, and the calling thread waits for the answer at most {@value Cluster#CALL_TIMEOUT} milliseconds,
+ * so they must not be made from an {@code EventLoop}.
+ * Calls are answered by the {@code UserDirectory} of the receiving node, in the {@code ReaderExecutor}.</li>
+ * </ul>
+ * <p>The nodes are configured with the {@code clusterPeers} setting as a list of {@code id@host:port} separated by commas.
+ * Messages are sent at most once: the ones queued in a link when it fails are lost.</p>
+ * <p>Every link starts with a handshake that proves to both nodes that the other one knows the {@code clusterSecret} setting,
+ * and a link is only accepted from the address configured for the node it claims to be. The messages are not encrypted afterwards,
+ * so the cluster port must listen on a private network that only the nodes can reach.</p>
+ */
+public class Cluster {
+
+	private static final int LINK_QUEUE_SIZE = 10000;
+	private static final int LINK_BATCH_SIZE = 64;
+	private static final int CONNECT_TIMEOUT = 2000;
+	private static final long RECONNECT_DELAY = 1000;
+	private static final long CALL_TIMEOUT = 2000;
+	private static final int CHALLENGE_SIZE = 32;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private String nodeId;
+	private int port;
+	private SecretKeySpec secret;
+	private SecureRandom random;
+	private List<String> members;
+	private Map<String, NodeLink> links;
+	private ConcurrentMap<String, String> presence;
+	private Set<String> linkedFrom;
+	private volatile ServerCommunicator communicator;
+	private volatile UserDirectory directory;
+	private AtomicLong callIds;
+	private ConcurrentMap<Long, BlockingQueue<ClusterMessage>> calls;
+	private volatile ServerSocket serverSocket;
+	private volatile boolean closed;
+
+	/**
+	 * @param nodeId Id of this node.
+	 * @param port Port where this node accepts links from the other nodes.
+	 * @param peers Other nodes, as {@code id@host:port} separated by commas.
+	 * @param secret Secret shared by all the nodes, that authenticates the links between them.
+	 * @throws IllegalArgumentException If a node is malformed, the id of this node is null or the secret is empty.
+	 */
+	public Cluster(String nodeId, int port, String peers, String secret) {
+		if (nodeId == null) throw new IllegalArgumentException("Node id can't be null.");
+		if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("The cluster secret can't be empty.");
+		this.nodeId = nodeId;
+		this.port = port;
+		this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+		random = new SecureRandom();
+		links = new LinkedHashMap<String, NodeLink>();
+		presence = new ConcurrentHashMap<String, String>();
+		linkedFrom = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		members = new ArrayList<String>();
+		callIds = new AtomicLong();
+		calls = new ConcurrentHashMap<Long, BlockingQueue<ClusterMessage>>();
+		for (String peer : peers.split(",")) {
+			peer = peer.trim();
+			if (peer.isEmpty()) continue;
+			int at = peer.indexOf('@'), colon = peer.lastIndexOf(':');
+			if (at <= 0 || colon < at) throw new IllegalArgumentException("Malformed cluster node: "+peer);
+			String id = peer.substring(0, at);
+			members.add(id);
+			if (id.equals(nodeId)) continue;
+			links.put(id, new NodeLink(id, new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1)))));
+		}
+	}
+
+	/**
+	 * Starts accepting links from the other nodes and linking to them.
+	 * @param communicator {@code ServerCommunicator} that delivers the messages forwarded to this node.
+	 * @param directory {@code UserDirectory} that answers the calls of the other nodes.
+	 * @throws IOException If the cluster port could not be opened.
+	 */
+	public void start(ServerCommunicator communicator, UserDirectory directory) throws IOException {
+		this.communicator = communicator;
+		this.directory = directory;
+		serverSocket = new ServerSocket(port);
+		ReaderExecutor.get().execute(new Runnable() {
+			public void run() {
+				accept();
+			}
+		});
+		for (NodeLink link : links.values()) {
+			link.start();
+		}
+	}
+
+	/**
+	 * @return Id of this node.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return Ids of all the nodes of the cluster, in the order they are configured. This node is not included if it is not configured, and then keeps no users.
+	 */
+	public List<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Sends an operation on a user to another node and waits for the answer.
+	 * @param node
+	 * @param operation
+	 * @param name
+	 * @param argument Password, {@code User} or {@code UserDelta} of the operation, null if it has none.
+	 * @return {@code USER_REPLY} of the node, null if the link with the node is down or it did not answer in time.
+	 */
+	public ClusterMessage call(String node, ClusterMessage.Operation operation, String name, Serializable argument) {
+		NodeLink link = links.get(node);
+		if (link == null) return null;
+		long callId = callIds.incrementAndGet();
+		BlockingQueue<ClusterMessage> answer = new ArrayBlockingQueue<ClusterMessage>(1);
+		calls.put(callId, answer);
+		try {
+			if (!link.send(ClusterMessage.userRequest(nodeId, callId, operation, name, argument))) return null;
+			return answer.poll(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			calls.remove(callId);
+		}
+	}
+
+	/**
+	 * Sends an operation on a user to all the other nodes, without waiting for any answer.
+	 * @param operation
+	 * @param name
+	 */
+	public void tell(ClusterMessage.Operation operation, String name) {
+		ClusterMessage request = ClusterMessage.userRequest(nodeId, 0, operation, name, null);
+		for (NodeLink link : links.values()) {
+			link.send(request);
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return Id of the node where the user is identified, null if it is not identified in any other node.
+	 */
+	public String locate(String name) {
+		return presence.get(name);
+	}
+
+	/**
+	 * Forwards the {@code Message} to the node where its receiver is identified. This method never blocks.
+	 * @param message
+	 * @return true if the {@code Message} has been queued in the link to that node, false if the receiver is not identified in another node or the link is down.
+	 */
+	public boolean forward(Message message) {
+		String name = message.getDestinationName();
+		String node = name == null ? null : presence.get(name);
+		NodeLink link = node == null ? null : links.get(node);
+		return link != null && link.send(ClusterMessage.forward(nodeId, message));
+	}
+
+	/**
+	 * Tells the other nodes that a user has identified in this node or has left it.
+	 * @param name
+	 * @param online
+	 */
+	public void announce(String name, boolean online) {
+		ClusterMessage message = ClusterMessage.presence(nodeId, name, online);
+		for (NodeLink link : links.values()) {
+			link.send(message);
+		}
+	}
+
+	/**
+	 * @return Number of users identified in other nodes.
+	 */
+	public int getRemoteUsers() {
+		return presence.size();
+	}
+
+	/**
+	 * @return Description of the state of the link with every other node.
+	 */
+	public List<String> getNodes() {
+		List<String> nodes = new ArrayList<String>();
+		for (NodeLink link : links.values()) {
+			int users = 0;
+			for (String node : presence.values()) {
+				if (node.equals(link.id)) users++;
+			}
+			nodes.add(link.id+" "+link.address+(link.connected ? " linked, " : " not linked, ")+users+" users");
+		}
+		return nodes;
+	}
+
+	/**
+	 * Closes all the links.
+	 */
+	public void close() {
+		closed = true;
+		for (NodeLink link : links.values()) {
+			link.close();
+		}
+		try {
+			if (serverSocket != null) serverSocket.close();
+		} catch (IOException e) {
+			ServerController.getInstance().exception(e);
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				ReaderExecutor.get().execute(new Runnable() {
+					public void run() {
+						receive(socket);
+					}
+				});
+			} catch (IOException e) {
+				if (!closed) ServerController.getInstance().exception(e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the messages of a link established by another node until it fails. The users of that node are then removed from the presence directory.
+	 * @param socket
+	 */
+	private void receive(Socket socket) {
+		String node = null;
+		try {
+			socket.setTcpNoDelay(true);
+			String authenticated = authenticate(socket);
+			if (authenticated == null) {
+				ServerController.getInstance().error("Cluster link from "+socket.getInetAddress().getHostAddress()+" refused.");
+				return;
+			}
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+			while (!closed) {
+				ClusterMessage message = (ClusterMessage) in.readObject();
+				if (!authenticated.equals(message.getNode())) break;
+				if (node == null) {
+					if (message.getKind() != ClusterMessage.Kind.HELLO) break;
+					node = authenticated;
+					linkedFrom.add(node);
+					ServerController.getInstance().log("Cluster node "+node+" linked.");
+					rebalance(node);
+					continue;
+				}
+				received(message);
+			}
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			if (!closed && node != null) ServerController.getInstance().log("Cluster node "+node+" unlinked.");
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				ServerController.getInstance().exception(e);
+			}
+			if (node != null) {
+				linkedFrom.remove(node);
+				forget(node, null);
+			}
+		}
+	}
+
+	private void received(ClusterMessage message) {
+		switch (message.getKind()) {
+		case PRESENCE:
+			if (message.isOnline()) {
+				presence.put(message.getName(), message.getNode());
+				communicator.forwardQueue(message.getName());
+			}
+			else presence.remove(message.getName(), message.getNode());
+			break;
+
+		case SNAPSHOT:
+			forget(message.getNode(), message.getNames());
+			for (String name : message.getNames()) {
+				presence.put(name, message.getNode());
+				communicator.forwardQueue(name);
+			}
+			break;
+
+		case FORWARD:
+			communicator.deliver(message.getMessage());
+			break;
+
+		case USER_REQUEST:
+			answer(message);
+			break;
+
+		case USER_REPLY:
+			BlockingQueue<ClusterMessage> answer = calls.remove(message.getCallId());
+			if (answer != null) answer.offer(message);
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Executes a call of another node in the {@code ReaderExecutor}, so that the calls made meanwhile by the {@code UserDirectory} do not stop this link, 
+	 * and sends back the answer if the call expects one.
+	 * @param request
+	 */
+	private void answer(final ClusterMessage request) {
+		ReaderExecutor.get().execute(new Runnable() {
+			public void run() {
+				ClusterMessage reply = directory.handle(request);
+				NodeLink link = links.get(request.getNode());
+				if (request.getCallId() != 0 && link != null) link.send(reply);
+			}
+		});
+	}
+
+	/**
+	 * Hands to the specified node the users it owns, in the {@code ReaderExecutor}, once the links with it are established in both directions, 
+	 * since the calls made to hand them are answered through the link of the other node.
+	 * @param node
+	 */
+	private void rebalance(final String node) {
+		NodeLink link = links.get(node);
+		if (link == null || !link.connected || !linkedFrom.contains(node)) return;
+		ReaderExecutor.get().execute(new Runnable() {
+			public void run() {
+				directory.rebalance(node);
+			}
+		});
+	}
+
+	/**
+	 * Removes from the presence directory the users of the specified node.
+	 * @param node
+	 * @param keep Users that must not be removed, null to remove all of them.
+	 */
+	private void forget(String node, Collection<String> keep) {
+		for (Map.Entry<String, String> entry : presence.entrySet()) {
+			if (entry.getValue().equals(node) && (keep == null || !keep.contains(entry.getKey()))) presence.remove(entry.getKey(), node);
+		}
+	}
+
+	/**
+	 * Accepting side of the handshake of a link: sends a random challenge, and the node must answer with its id and the challenge signed with the secret.
+	 * Then this node signs the challenge of the other node, so that it knows that this node has the secret too.
+	 * @param socket
+	 * @return Id of the node that established the link, null if the node is unknown, the link does not come from its address or it does not have the secret.
+	 * @throws IOException If the link fails or the node does not answer in {@value Cluster#CONNECT_TIMEOUT} milliseconds.
+	 */
+	private String authenticate(Socket socket) throws IOException {
+		socket.setSoTimeout(CONNECT_TIMEOUT);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		byte[] challenge = challenge();
+		out.write(challenge);
+		out.flush();
+		String node = in.readUTF();
+		byte[] nodeChallenge = new byte[CHALLENGE_SIZE], proof = new byte[CHALLENGE_SIZE];
+		in.readFully(nodeChallenge);
+		in.readFully(proof);
+		NodeLink link = links.get(node);
+		if (link == null || !isAddressOf(link, socket.getInetAddress()) || !MessageDigest.isEqual(proof, sign("connect", challenge, node))) return null;
+		out.write(sign("accept", nodeChallenge, nodeId));
+		out.flush();
+		socket.setSoTimeout(0);
+		return node;
+	}
+
+	/**
+	 * @param link
+	 * @param address
+	 * @return true if the address is one of the addresses of the host configured for the node of the link.
+	 * @throws IOException If the host can't be resolved.
+	 */
+	private boolean isAddressOf(NodeLink link, InetAddress address) throws IOException {
+		for (InetAddress configured : InetAddress.getAllByName(link.address.getHostString())) {
+			if (configured.equals(address)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return New random challenge for a handshake.
+	 */
+	private byte[] challenge() {
+		byte[] challenge = new byte[CHALLENGE_SIZE];
+		random.nextBytes(challenge);
+		return challenge;
+	}
+
+	/**
+	 * @param role "connect" or "accept", so that a signature made by one side of a handshake can't be used by the other.
+	 * @param challenge
+	 * @param node Id of the signing node.
+	 * @return Signature of the challenge and the node id with the secret.
+	 */
+	private byte[] sign(String role, byte[] challenge, String node) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(secret);
+			mac.update(role.getBytes(StandardCharsets.UTF_8));
+			mac.update(challenge);
+			mac.update(node.getBytes(StandardCharsets.UTF_8));
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * <p>Link to another node. Messages are queued and written by a thread of its own, which also re-establishes the link when it fails.</p>
+	 */
+	private class NodeLink implements Runnable {
+
+		private String id;
+		private InetSocketAddress address;
+		private BlockingQueue<ClusterMessage> queue;
+		private volatile boolean connected;
+		private volatile Socket socket;
+
+		public NodeLink(String id, InetSocketAddress address) {
+			this.id = id;
+			this.address = address;
+			queue = new LinkedBlockingQueue<ClusterMessage>(LINK_QUEUE_SIZE);
+		}
+
+		public void start() {
+			Thread thread = new Thread(this, "Cluster-"+id);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * @param message
+		 * @return true if the message has been queued, false if the link is down or its queue is full.
+		 */
+		public boolean send(ClusterMessage message) {
+			return connected && queue.offer(message);
+		}
+
+		public void close() {
+			connected = false;
+			Socket current = socket;
+			if (current != null) {
+				try {
+					current.close();
+				} catch (IOException e) {
+					ServerController.getInstance().exception(e);
+				}
+			}
+		}
+
+		public void run() {
+			while (!closed) {
+				try {
+					socket = new Socket();
+					socket.setTcpNoDelay(true);
+					socket.connect(address, CONNECT_TIMEOUT);
+					if (!authenticate()) {
+						ServerController.getInstance().error("Cluster node "+id+" could not be authenticated at "+address+".");
+						throw new IOException("Cluster node "+id+" not authenticated.");
+					}
+					ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					out.writeObject(ClusterMessage.hello(nodeId));
+					queue.clear();
+					connected = true;
+					out.writeObject(ClusterMessage.snapshot(nodeId, communicator.getIdentifications()));
+					out.flush();
+					rebalance(id);
+					List<ClusterMessage> batch = new ArrayList<ClusterMessage>(LINK_BATCH_SIZE);
+					while (!closed) {
+						ClusterMessage message = queue.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+						if (message == null) continue;
+						batch.add(message);
+						queue.drainTo(batch, LINK_BATCH_SIZE - 1);
+						for (ClusterMessage queued : batch) {
+							out.writeObject(queued);
+						}
+						batch.clear();
+						out.reset();
+						out.flush();
+					}
+				} catch (IOException e) {
+					connected = false;
+				} catch (InterruptedException e) {
+					return;
+				}
+				close();
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Connecting side of the handshake: signs the challenge of the other node with the secret, and checks that the other node does the same with its own challenge.
+		 * @return true if the other node has the secret.
+		 * @throws IOException If the link fails or the other node does not answer in {@value Cluster#CONNECT_TIMEOUT} milliseconds.
+		 */
+		private boolean authenticate() throws IOException {
+			socket.setSoTimeout(CONNECT_TIMEOUT);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			byte[] challenge = new byte[CHALLENGE_SIZE], ownChallenge = challenge(), proof = new byte[CHALLENGE_SIZE];
+			in.readFully(challenge);
+			out.writeUTF(nodeId);
+			out.write(ownChallenge);
+			out.write(sign("connect", challenge, nodeId));
+			out.flush();
+			in.readFully(proof);
+			socket.setSoTimeout(0);
+			return MessageDigest.isEqual(proof, sign("accept", ownChallenge, id));
+		}
+	}
+}
@@ -7,6 +7,11 @@ public class Console {
 	}
 	
 	public void command(String text) {
+		if (text.startsWith("/say ")) {
+			ServerController.getInstance().log(text);
+			ServerController.getInstance().broadcast(text.substring(5));
+			return;
+		}
 		if (text.charAt(0) == '/') {
 			switch (text.substring(1)) {
 			case "start":
@@ -19,6 +24,31 @@ public class Console {
 				ServerController.getInstance().stop();
 				break;
 				
+			case "queues":
+				ServerController.getInstance().log(text);
+				ServerController.getInstance().queues();
+				break;
+				
+			case "users":
+				ServerController.getInstance().log(text);
+				ServerController.getInstance().users();
+				break;
+				
+			case "online":
+				ServerController.getInstance().log(text);
+				ServerController.getInstance().online();
+				break;
+				
+			case "stats":
+				ServerController.getInstance().log(text);
+				ServerController.getInstance().stats();
+				break;
+				
+			case "nodes":
+				ServerController.getInstance().log(text);
+				ServerController.getInstance().nodes();
+				break;
+				
 			case "update":
 				ServerController.getInstance().log(text);
 				ServerController.getInstance().update();
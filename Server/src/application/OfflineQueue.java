@@ -0,0 +1,307 @@
+package application;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import domain.Message;
+import persistence.MessageStore;
+
+/**
+ * <p>Messages waiting for users that are not connected, in one queue per destination name. 
+ * Users are spread over a fixed number of stripes by the hash of their name, each one with its own lock, so that queueing for different users rarely contends.
+ * All the messages of a stripe are also linked from oldest to newest, so that the oldest one can be found without looking into every queue.</p>
+ * <p>The queue is bounded by a limit per user and a total limit, which is split evenly between the stripes. When a limit is reached, 
+ * either the oldest message of the user or of the stripe is evicted ({@value OfflineQueue#EVICT_OLDEST}) or the new one is rejected ({@value OfflineQueue#REJECT}).</p>
+ * <p>If a {@code MessageStore} is used, the messages are written to disk and only their position is kept in memory. 
+ * Drained messages can be kept in the {@code MessageStore} until they have been delivered, so they are not lost if the server stops meanwhile.</p>
+ */
+public class OfflineQueue {
+
+	public static final String EVICT_OLDEST = "evict";
+	public static final String REJECT = "reject";
+
+	private static final int STRIPES = 16;
+
+	private Stripe[] stripes;
+	private int userLimit;
+	private int stripeLimit;
+	private boolean evictOldest;
+	private AtomicLong evicted;
+	private AtomicLong rejected;
+	private MessageStore store;
+
+	/**
+	 * @param userLimit Maximum number of messages queued for a single user.
+	 * @param totalLimit Maximum number of messages queued for all users.
+	 * @param policy {@value OfflineQueue#EVICT_OLDEST} or {@value OfflineQueue#REJECT}. Any other value rejects.
+	 * @throws IllegalArgumentException If one of the limits is not positive.
+	 */
+	public OfflineQueue(int userLimit, int totalLimit, String policy) {
+		if (userLimit <= 0 || totalLimit <= 0) throw new IllegalArgumentException("Queue limits must be positive.");
+		this.userLimit = userLimit;
+		this.stripeLimit = Math.max(1, totalLimit / STRIPES);
+		this.evictOldest = EVICT_OLDEST.equals(policy);
+		evicted = new AtomicLong();
+		rejected = new AtomicLong();
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Creates a queue backed by the inserted {@code MessageStore}, containing all the messages already stored in it.
+	 * @param userLimit Maximum number of messages queued for a single user.
+	 * @param totalLimit Maximum number of messages queued for all users.
+	 * @param policy {@value OfflineQueue#EVICT_OLDEST} or {@value OfflineQueue#REJECT}. Any other value rejects.
+	 * @param store
+	 * @throws IllegalArgumentException If one of the limits is not positive.
+	 */
+	public OfflineQueue(int userLimit, int totalLimit, String policy, MessageStore store) {
+		this(userLimit, totalLimit, policy);
+		this.store = store;
+		if (store != null) {
+			for (MessageStore.Record record : store.getRecords()) {
+				Stripe stripe = stripe(record.getName());
+				synchronized (stripe) {
+					stripe.enqueue(new Entry(record.getName(), null, record));
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Queues the {@code Message} for its destination name, evicting older messages if a limit has been reached and the policy allows it.</p>
+	 * @param message
+	 * @return true if the {@code Message} has been queued, false if it has been rejected.
+	 * @throws IllegalArgumentException If the argument or its destination name are null.
+	 */
+	public boolean add(Message message) {
+		if (message == null || message.getDestinationName() == null) throw new IllegalArgumentException("Message must have a destination name.");
+		String name = message.getDestinationName();
+		Stripe stripe = stripe(name);
+		synchronized (stripe) {
+			Deque<Entry> queue = stripe.queues.get(name);
+			if (queue != null && queue.size() >= userLimit) {
+				if (!evictOldest) return reject();
+				discard(stripe, queue.pollFirst());
+			}
+			if (stripe.size >= stripeLimit) {
+				if (!evictOldest) return reject();
+				Entry entry = stripe.oldest;
+				Deque<Entry> owner = stripe.queues.get(entry.name);
+				owner.pollFirst();
+				if (owner.isEmpty()) stripe.queues.remove(entry.name);
+				discard(stripe, entry);
+			}
+			stripe.enqueue(store(name, message));
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Removes and returns all the messages queued for the specified user, in the order they were queued. The cost only depends on the number of messages of the user.</p>
+	 * @param name
+	 * @return List of the queued messages, empty if there were none.
+	 */
+	public List<Message> drain(String name) {
+		List<MessageStore.Record> records = new ArrayList<MessageStore.Record>();
+		List<Message> messages = drain(name, records);
+		remove(records);
+		return messages;
+	}
+
+	/**
+	 * <p>Removes and returns all the messages queued for the specified user, in the order they were queued, 
+	 * but keeps the ones written to the {@code MessageStore} in it until they are removed with {@link OfflineQueue#remove(List)}. 
+	 * If the server stops before, they are queued again when it starts.</p>
+	 * @param name
+	 * @param records List where the records of the messages kept in the {@code MessageStore} are added.
+	 * @return List of the queued messages, empty if there were none.
+	 */
+	public List<Message> drain(String name, List<MessageStore.Record> records) {
+		Stripe stripe = stripe(name);
+		synchronized (stripe) {
+			Deque<Entry> queue = stripe.queues.remove(name);
+			if (queue == null) return Collections.emptyList();
+			List<Message> messages = new ArrayList<Message>(queue.size());
+			for (Entry entry : queue) {
+				stripe.unlink(entry);
+				if (entry.record == null) {
+					messages.add(entry.message);
+					continue;
+				}
+				try {
+					messages.add(store.read(entry.record));
+					records.add(entry.record);
+				} catch (IOException | ClassNotFoundException e) {
+					ServerController.getInstance().exception(e);
+				}
+			}
+			return messages;
+		}
+	}
+
+	/**
+	 * <p>Removes from the {@code MessageStore} the drained messages that have been delivered.</p>
+	 * @param records Records added by {@link OfflineQueue#drain(String, List)}.
+	 */
+	public void remove(List<MessageStore.Record> records) {
+		for (MessageStore.Record record : records) {
+			try {
+				store.remove(record);
+			} catch (IOException e) {
+				ServerController.getInstance().exception(e);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of messages queued for all users.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @param name
+	 * @return Number of messages queued for the specified user.
+	 */
+	public int size(String name) {
+		Stripe stripe = stripe(name);
+		synchronized (stripe) {
+			Deque<Entry> queue = stripe.queues.get(name);
+			return queue == null ? 0 : queue.size();
+		}
+	}
+
+	/**
+	 * @return Number of users with queued messages.
+	 */
+	public int getRecipients() {
+		int recipients = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				recipients += stripe.queues.size();
+			}
+		}
+		return recipients;
+	}
+
+	/**
+	 * @return Number of messages evicted to make room for newer ones.
+	 */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	/**
+	 * @return Number of messages that could not be queued.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private Stripe stripe(String name) {
+		int hash = name.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * @return {@code Entry} with the {@code Message} written to the store, or kept in memory if there is no store or it could not be written.
+	 */
+	private Entry store(String name, Message message) {
+		if (store != null) {
+			try {
+				return new Entry(name, null, store.append(message));
+			} catch (IOException e) {
+				ServerController.getInstance().exception(e);
+			}
+		}
+		return new Entry(name, message, null);
+	}
+
+	private void discard(Stripe stripe, Entry entry) {
+		stripe.unlink(entry);
+		evicted.incrementAndGet();
+		if (entry.record != null) {
+			try {
+				store.remove(entry.record);
+			} catch (IOException e) {
+				ServerController.getInstance().exception(e);
+			}
+		}
+	}
+
+	private boolean reject() {
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Queues of a group of users. All its fields are guarded by its own lock.
+	 */
+	private static class Stripe {
+
+		private Map<String, Deque<Entry>> queues = new HashMap<String, Deque<Entry>>();
+		private Entry oldest;
+		private Entry newest;
+		private int size;
+
+		private void enqueue(Entry entry) {
+			Deque<Entry> queue = queues.get(entry.name);
+			if (queue == null) {
+				queue = new ArrayDeque<Entry>();
+				queues.put(entry.name, queue);
+			}
+			queue.addLast(entry);
+			link(entry);
+		}
+
+		private void link(Entry entry) {
+			entry.previous = newest;
+			if (newest == null) oldest = entry;
+			else newest.next = entry;
+			newest = entry;
+			size++;
+		}
+
+		private void unlink(Entry entry) {
+			if (entry.previous == null) oldest = entry.next;
+			else entry.previous.next = entry.next;
+			if (entry.next == null) newest = entry.previous;
+			else entry.next.previous = entry.previous;
+			entry.previous = null;
+			entry.next = null;
+			size--;
+		}
+	}
+
+	private static class Entry {
+
+		private String name;
+		private Message message;
+		private MessageStore.Record record;
+		private Entry previous;
+		private Entry next;
+
+		public Entry(String name, Message message, MessageStore.Record record) {
+			this.name = name;
+			this.message = message;
+			this.record = record;
+		}
+	}
+}
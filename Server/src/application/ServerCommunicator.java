@@ -1,95 +1,390 @@
 package application;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import domain.ChannelConnection;
 import domain.Connection;
+import domain.DeliveryListener;
+import domain.DeliveryReport;
+import domain.EventLoop;
+import domain.LogLevel;
 import domain.Message;
+import domain.MessageType;
+import domain.Metrics;
+import domain.ReaderExecutor;
+import domain.SendResult;
 import domain.Settings;
+import domain.SharedFrame;
+import domain.SocketConnection;
+import domain.TimerWheel;
+import domain.WriteListener;
+import persistence.MessageStore;
 
+/**
+ * <p>Keeps track of the connections and routes the messages to them. The connections are kept in concurrent collections, so that the threads of different connections 
+ * can use this class at the same time. Every user name is also owned by one of a fixed set of locks, which orders the identification of a user with the messages 
+ * queued for it: a {@code Message} is either sent to the identified {@code Connection} or queued before the user identifies and drains its queue.</p>
+ * <p>Connections that have not identified yet are indexed by their id, which the Client receives in the {@code LOGIN_REPLY}. 
+ * The name a {@code Connection} has logged in as is recorded, so that it can only be identified with that name.</p>
+ * <p>In a {@code Cluster}, messages for users identified in other nodes are forwarded to them, and the users identified or lost here are announced to the other nodes.</p>
+ * <p>A {@code Message} for many users is encoded once in a {@code SharedFrame} and handed to their connections by several threads, 
+ * {@value ServerCommunicator#FAN_OUT_CHUNK} connections each.</p>
+ * <p>Every {@code Connection} is checked by a {@code TimerWheel} while it is open: after {@code pingInterval} seconds without receiving anything 
+ * it is sent a {@code PING}, if its Client has negotiated a protocol, and after {@code idleTimeout} seconds it is closed, so half-open connections do not pile up. 
+ * A closed {@code Connection} is removed on its own, without looking at the rest.</p>
+ */
 public class ServerCommunicator {
 	
-	private Map<String, Connection> identifiedConnections;
-	private Collection<Connection> unidentifiedConnections;
-	private Collection<Message> messageQueue;
+	private static final int USER_LOCKS = 64;
+	private static final int FAN_OUT_CHUNK = 256;
+	private static final long TIMER_TICK = 1000;
+	private static final int TIMER_SLOTS = 512;
+	
+	private ConcurrentMap<String, Connection> identifiedConnections;
+	private ConcurrentMap<Long, Connection> unidentifiedConnections;
+	private ConcurrentMap<Long, String> identifications;
+	private ConcurrentMap<Long, String> logins;
+	private TimerWheel timers;
+	private OfflineQueue messageQueue;
+	private Object[] userLocks;
+	private Cluster cluster;
 
 	/**
-	 * When the instance is created, a new listeting Thread is automatically created.
+	 * When the instance is created, a new listeting Thread is automatically created. 
+	 * If the {@value Settings#NIO_TRANSPORT} transport is configured, a fixed group of {@code EventLoop} threads is started instead.
+	 * @param messageStore {@code MessageStore} where the messages for users that are not connected are kept, null to keep them in memory.
+	 * @param cluster {@code Cluster} this server is a node of, null if it runs alone.
 	 */
-	public ServerCommunicator() {
-		identifiedConnections = new HashMap<String, Connection>();
-		unidentifiedConnections = new HashSet<Connection>();
-		messageQueue = new ArrayList<Message>();
-		listen();
+	public ServerCommunicator(MessageStore messageStore, Cluster cluster) {
+		this.cluster = cluster;
+		identifiedConnections = new ConcurrentHashMap<String, Connection>();
+		unidentifiedConnections = new ConcurrentHashMap<Long, Connection>();
+		identifications = new ConcurrentHashMap<Long, String>();
+		logins = new ConcurrentHashMap<Long, String>();
+		userLocks = new Object[USER_LOCKS];
+		for (int i = 0; i < USER_LOCKS; i++) {
+			userLocks[i] = new Object();
+		}
+		messageQueue = new OfflineQueue(Settings.offlineQueueUserLimit, Settings.offlineQueueTotalLimit, Settings.offlineQueuePolicy, messageStore);
+		timers = new TimerWheel("Timer-Wheel", TIMER_TICK, TIMER_SLOTS);
+		timers.start();
+		Metrics.gauge("queue.offline", new Metrics.Gauge() {
+			public long get() {
+				return messageQueue.size();
+			}
+		});
+		Metrics.gauge("connections.open", new Metrics.Gauge() {
+			public long get() {
+				return identifiedConnections.size() + unidentifiedConnections.size();
+			}
+		});
+		Metrics.gauge("connections.identified", new Metrics.Gauge() {
+			public long get() {
+				return identifiedConnections.size();
+			}
+		});
+		if (Settings.NIO_TRANSPORT.equals(Settings.transport)) listenNonBlocking();
+		else listen();
 	}
 
 	/**
-	 * Sends the inserted {@code Message} to the {@code Connection} with the name or address specified in the {@code Message}.
+	 * Sends the inserted {@code Message} to the {@code Connection} with the name or address specified in the {@code Message}. This method never blocks.
+	 * If there is no such {@code Connection} the {@code Message} is forwarded to the node of the {@code Cluster} where the user is identified. 
+	 * If there is none, or the {@code Connection} has been closed, the {@code Message} is queued until the user identifies again.
+	 * @param message
+	 * @return {@code SendResult#QUEUED} if the {@code Message} has been queued in a {@code Connection}, a cluster link or the offline queue, the reason why it has not been sent otherwise.
+	 * @throws IllegalArgumentException If the argument is null.
+	 */
+	public SendResult send(Message message) {
+		return send(message, true);
+	}
+	
+	/**
+	 * Sends a {@code Message} forwarded by another node of the {@code Cluster} to a user identified in this node. 
+	 * If the user is not identified here anymore the {@code Message} is queued, and forwarded again when the user identifies in another node.
 	 * @param message
-	 * @throws IOException If there is a problem seding the {@code Message}.
+	 * @return {@code SendResult#QUEUED} if the {@code Message} has been queued in a {@code Connection} or in the offline queue, the reason why it has not been sent otherwise.
 	 * @throws IllegalArgumentException If the argument is null.
 	 */
-	public void send(Message message) throws IOException {
+	public SendResult deliver(Message message) {
+		return send(message, false);
+	}
+	
+	private SendResult send(Message message, boolean forward) {
+		checkNull(message);
+		String name = message.getDestinationName();
+		Connection connection = name == null ? null : identifiedConnections.get(name);
+		if (connection == null) {
+			checkNull(name);
+			synchronized (lockOf(name)) {
+				connection = identifiedConnections.get(name);
+				if (connection == null) {
+					if (forward && cluster != null && cluster.forward(message)) return SendResult.QUEUED;
+					return queue(message);
+				}
+			}
+		}
+		SendResult result = connection.send(message);
+		if (result == SendResult.CLOSED || result == SendResult.DISCONNECTED) {
+			synchronized (lockOf(name)) {
+				if (identifiedConnections.remove(name, connection) && cluster != null) cluster.announce(name, false);
+				return queue(message);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Sends a reply to the {@code Connection} with the inserted id, identified or not.
+	 * @param connectionId
+	 * @param message
+	 * @return {@code SendResult#QUEUED} if the {@code Message} has been queued in the {@code Connection}, the reason why it has not been sent otherwise.
+	 * @throws IllegalArgumentException If the {@code Message} is null.
+	 */
+	public SendResult reply(long connectionId, Message message) {
 		checkNull(message);
-		if (identifiedConnections.containsKey(message.getDestinationName())) identifiedConnections.get(message.getDestinationName()).send(message);
-		else messageQueue.add(message);
+		Connection connection = connectionOf(connectionId);
+		SendResult result = connection == null ? SendResult.CLOSED : connection.send(message);
+		if (result != SendResult.QUEUED) ServerController.getInstance().sendFailed(message, result);
+		return result;
+	}
+	
+	/**
+	 * Closes the {@code Connection} with the inserted id, identified or not. Does nothing if there is no such {@code Connection}.
+	 * @param connectionId
+	 */
+	public void disconnect(long connectionId) {
+		Connection connection = connectionOf(connectionId);
+		if (connection != null) connection.close();
+	}
+	
+	/**
+	 * @param connectionId
+	 * @return Remote address of the {@code Connection} with the inserted id, null if there is no such {@code Connection}.
+	 */
+	public String getAddress(long connectionId) {
+		Connection connection = connectionOf(connectionId);
+		return connection == null ? null : connection.getAddress();
+	}
+	
+	/**
+	 * @param connectionId
+	 * @return Protocol negotiated by the {@code Connection} with the inserted id, null if it has negotiated none or there is no such {@code Connection}.
+	 */
+	public String getProtocol(long connectionId) {
+		Connection connection = connectionOf(connectionId);
+		return connection == null ? null : connection.getProtocol();
 	}
 	
 	/**
 	 * If there is an identified {@code Connection} with the user name inserted, sends all the Messages from the Message Queue destinated to the inserted user name.
+	 * If the {@code Connection} stops accepting messages, the rest of them are queued again. 
+	 * The messages stay in the {@code MessageStore} until the {@code Connection} has written them, and are sent again if it is closed before, 
+	 * so a user may get some of them twice but never loses them.
 	 * @param name
-	 * @throws IOException If there is a problem sending the Messages.
 	 * @throws IllegalArgumentException If the argument is null.
 	 */
-	public void sendQueue(String name) throws IOException {
+	public void sendQueue(String name) {
 		checkNull(name);
-		Connection connection = identifiedConnections.get(name);
-		for (Iterator<Message> iterator = messageQueue.iterator(); iterator.hasNext();) {
-			Message message = iterator.next();
-			if (message.getDestinationName().equals(name)) {
-				connection.send(message);
-				iterator.remove();
+		synchronized (lockOf(name)) {
+			Connection connection = identifiedConnections.get(name);
+			if (connection == null) return;
+			final List<MessageStore.Record> records = new ArrayList<MessageStore.Record>();
+			List<Message> messages = messageQueue.drain(name, records);
+			int sent = 0;
+			while (sent < messages.size()) {
+				SendResult result = connection.send(messages.get(sent));
+				if (result != SendResult.QUEUED) {
+					ServerController.getInstance().sendFailed(messages.get(sent), result);
+					for (int i = sent; i < messages.size(); i++) {
+						queue(messages.get(i));
+					}
+					break;
+				}
+				sent++;
+			}
+			if (sent == 0) {
+				messageQueue.remove(records);
+				return;
 			}
+			final List<Message> unconfirmed = messages.subList(0, sent);
+			connection.whenWritten(new WriteListener() {
+				public void written() {
+					ReaderExecutor.getWriters().execute(new Runnable() {
+						public void run() {
+							messageQueue.remove(records);
+						}
+					});
+				}
+
+				public void discarded() {
+					ReaderExecutor.getWriters().execute(new Runnable() {
+						public void run() {
+							for (Message message : unconfirmed) {
+								SendResult result = send(message);
+								if (result != SendResult.QUEUED) ServerController.getInstance().sendFailed(message, result);
+							}
+							messageQueue.remove(records);
+						}
+					});
+				}
+			});
 		}
 	}
 	
-	public void broadcast(Message message) throws IOException {
-		for (Connection connection : identifiedConnections.values()) {
-			connection.send(message);
+	/**
+	 * Forwards the Messages from the Message Queue destinated to the inserted user name to the node of the {@code Cluster} where the user has identified.
+	 * If the link with the node fails, the rest of them are queued again.
+	 * @param name
+	 * @throws IllegalArgumentException If the argument is null.
+	 */
+	public void forwardQueue(String name) {
+		checkNull(name);
+		if (cluster == null) return;
+		synchronized (lockOf(name)) {
+			if (identifiedConnections.containsKey(name) || messageQueue.size(name) == 0) return;
+			List<Message> messages = messageQueue.drain(name);
+			for (int i = 0; i < messages.size(); i++) {
+				if (!cluster.forward(messages.get(i))) {
+					for (int j = i; j < messages.size(); j++) {
+						queue(messages.get(j));
+					}
+					return;
+				}
+			}
 		}
 	}
 	
 	/**
-	 * Maps an unidentified {@code Connection} containing the introduced address with the introduced user name.
+	 * @return {@code OfflineQueue} holding the messages for users that are not connected.
+	 */
+	public OfflineQueue getMessageQueue() {
+		return messageQueue;
+	}
+	
+	/**
+	 * Sends the inserted {@code Message} to all the identified users.
+	 * @param message {@code Message} without destination, which is not changed and is shared by all the users.
+	 * @param listener {@code DeliveryListener} told when the {@code Message} has been handed to all the users, null if none.
+	 * @throws IllegalArgumentException If the {@code Message} is null.
+	 * @see ServerCommunicator#multicast(Message, Collection, DeliveryListener)
+	 */
+	public void broadcast(Message message, DeliveryListener listener) {
+		multicast(message, identifiedConnections.keySet(), listener);
+	}
+	
+	/**
+	 * <p>Sends the inserted {@code Message} to all the specified users without waiting until it has been handed to all of them. 
+	 * The {@code Message} is encoded once for all the connections of this node, and handed to them by the writer threads, 
+	 * {@value ServerCommunicator#FAN_OUT_CHUNK} connections each, besides the calling one. 
+	 * The last of them tells the {@code DeliveryListener}, which may be the calling thread before this method returns.</p>
+	 * <p>Users that are not identified here, or whose {@code Connection} has been closed, get a copy of the {@code Message} with their name as destination,
+	 * which is forwarded to their node or queued as any other.</p>
+	 * @param message {@code Message} without destination, which is not changed and is shared by all the users.
+	 * @param names
+	 * @param listener {@code DeliveryListener} told when the {@code Message} has been handed to all the users, with the result for every user. Null if none.
+	 * @throws IllegalArgumentException If the {@code Message} or the names are null.
+	 */
+	public void multicast(Message message, Collection<String> names, final DeliveryListener listener) {
+		checkNull(message);
+		checkNull(names);
+		final SharedFrame frame = new SharedFrame(message);
+		final DeliveryReport report = new DeliveryReport(new ArrayList<String>(names));
+		ServerController.getInstance().log(LogLevel.DEBUG, "Message sent to "+report.size()+" users: \n", message);
+		int chunks = Math.max(1, (report.size() + FAN_OUT_CHUNK - 1) / FAN_OUT_CHUNK);
+		final AtomicInteger remaining = new AtomicInteger(chunks);
+		for (int chunk = 1; chunk < chunks; chunk++) {
+			final int from = chunk * FAN_OUT_CHUNK;
+			ReaderExecutor.getWriters().execute(new Runnable() {
+				public void run() {
+					try {
+						handOff(frame, report, from, Math.min(from + FAN_OUT_CHUNK, report.size()));
+					} finally {
+						if (remaining.decrementAndGet() == 0 && listener != null) listener.delivered(report);
+					}
+				}
+			});
+		}
+		try {
+			handOff(frame, report, 0, Math.min(FAN_OUT_CHUNK, report.size()));
+		} finally {
+			if (remaining.decrementAndGet() == 0 && listener != null) listener.delivered(report);
+		}
+	}
+	
+	/**
+	 * Records that the {@code Connection} with the inserted id has logged in as the user. Does nothing if there is no such {@code Connection}.
 	 * @param name
-	 * @param address
-	 * @throws IllegalArgumentException If one of the parameters are null.
+	 * @param connectionId
+	 * @throws IllegalArgumentException If the name is null.
 	 */
-	public void identify(String name, String address) {
+	public void loggedIn(String name, long connectionId) {
 		checkNull(name);
-		checkNull(address);
-		Connection connection = getUnidentifiedConnection(address);
-		identifiedConnections.put(name, connection);
-		unidentifiedConnections.remove(connection);
+		Connection connection = connectionOf(connectionId);
+		if (connection == null) return;
+		logins.put(connectionId, name);
+		if (!connection.isActive()) logins.remove(connectionId, name);
 	}
 	
 	/**
-	 * Removes all the inactive Connections.
+	 * @param name
+	 * @param connectionId
+	 * @return true if the {@code Connection} with the inserted id has logged in as the user, and has not logged out since.
 	 */
-	public void purge() {
-		for (Iterator<Connection> iterator = unidentifiedConnections.iterator(); iterator.hasNext();) {
-			if (!iterator.next().isActive()) iterator.remove();
-		}
-		for (Iterator<Map.Entry<String, Connection>> iterator = identifiedConnections.entrySet().iterator(); iterator.hasNext();) {
-			if (!iterator.next().getValue().isActive()) iterator.remove();
+	public boolean hasLoggedIn(String name, long connectionId) {
+		return name != null && name.equals(logins.get(connectionId));
+	}
+	
+	/**
+	 * Maps the unidentified {@code Connection} with the introduced id with the introduced user name. 
+	 * It is removed from the unidentified ones once mapped, so it can always be found by its id.
+	 * @param name
+	 * @param connectionId
+	 * @throws IllegalArgumentException If the name is null.
+	 */
+	public void identify(String name, long connectionId) {
+		checkNull(name);
+		Connection connection = unidentifiedConnections.get(connectionId);
+		if (connection == null) return;
+		Connection previous;
+		synchronized (lockOf(name)) {
+			identifications.put(connectionId, name);
+			previous = identifiedConnections.put(name, connection);
 		}
+		unidentifiedConnections.remove(connectionId, connection);
+		if (previous != null && previous != connection) identifications.remove(previous.getId(), name);
+		if (cluster != null) cluster.announce(name, true);
+		if (!connection.isActive()) purge(connection);
+	}
+	
+	/**
+	 * Removes a closed {@code Connection}. If its user has identified again meanwhile with another {@code Connection}, the new one is kept.
+	 * @param connection
+	 */
+	public void purge(Connection connection) {
+		unidentifiedConnections.remove(connection.getId(), connection);
+		logins.remove(connection.getId());
+		String name = identifications.remove(connection.getId());
+		if (name != null && identifiedConnections.remove(name, connection) && cluster != null) cluster.announce(name, false);
+	}
+	
+	/**
+	 * Stops checking the idle connections.
+	 */
+	public void close() {
+		timers.close();
 	}
 	
 	/**
@@ -98,27 +393,85 @@ public class ServerCommunicator {
 	 */
 	public void unidentify(String name) {
 		checkNull(name);
-		Connection connection = identifiedConnections.get(name);
-		identifiedConnections.remove(name);
-		unidentifiedConnections.add(connection);
+		Connection connection;
+		synchronized (lockOf(name)) {
+			connection = identifiedConnections.remove(name);
+		}
+		if (connection != null) {
+			identifications.remove(connection.getId(), name);
+			logins.remove(connection.getId(), name);
+			unidentifiedConnections.put(connection.getId(), connection);
+			if (cluster != null) cluster.announce(name, false);
+		}
 	}
 	
 	/**
-	 * @return Collection containing all the user names of the identified connections.
+	 * @param connectionId
+	 * @return Name of the user the {@code Connection} with the inserted id is identified with, null if it is not identified.
+	 */
+	public String getIdentification(long connectionId) {
+		return identifications.get(connectionId);
+	}
+	
+	/**
+	 * @return Collection containing all the user names of the identified connections at the moment of the call.
 	 */
 	public Collection<String> getIdentifications() {
-		return identifiedConnections.keySet();
+		return new ArrayList<String>(identifiedConnections.keySet());
 	}
 	
 	/**
-	 * @param address
-	 * @return A {@code Connection} with the specified address, null if no such {@code Connection} could be found.
+	 * Hands the shared {@code Message} to the connections of the recipients in the specified range of the report, and sends a copy to the rest of recipients.
+	 * @param frame
+	 * @param report
+	 * @param from First recipient, inclusive.
+	 * @param to Last recipient, exclusive.
 	 */
-	private Connection getUnidentifiedConnection(String address) {
-		for (Connection connection : unidentifiedConnections) {
-			if (connection.getAddress().equals(address)) return connection;
+	private void handOff(SharedFrame frame, DeliveryReport report, int from, int to) {
+		for (int i = from; i < to; i++) {
+			String name = report.getRecipient(i);
+			Connection connection = identifiedConnections.get(name);
+			SendResult result = connection == null ? SendResult.CLOSED : connection.send(frame);
+			if (result == SendResult.CLOSED || result == SendResult.DISCONNECTED) {
+				Message copy = frame.getMessage().copy();
+				copy.setDestinationName(name);
+				result = send(copy);
+			}
+			report.setResult(i, result);
 		}
-		return null;
+	}
+	
+	/**
+	 * @param connectionId
+	 * @return {@code Connection} with the inserted id, looked up by the name it is identified with if it is not unidentified. Null if there is none.
+	 */
+	private Connection connectionOf(long connectionId) {
+		Connection connection = unidentifiedConnections.get(connectionId);
+		if (connection != null) return connection;
+		String name = identifications.get(connectionId);
+		if (name == null) return null;
+		connection = identifiedConnections.get(name);
+		return connection != null && connection.getId() == connectionId ? connection : null;
+	}
+	
+	/**
+	 * Adds the {@code Message} to the offline queue. Must be called holding the lock of the destination user.
+	 * @param message
+	 * @return {@code SendResult#QUEUED} if the {@code Message} has been queued, {@code SendResult#DROPPED} if the offline queue rejected it.
+	 */
+	private SendResult queue(Message message) {
+		if (messageQueue.add(message)) return SendResult.QUEUED;
+		ServerController.getInstance().error("Offline queue full, message to "+message.getDestinationName()+" discarded.");
+		return SendResult.DROPPED;
+	}
+	
+	/**
+	 * @param name
+	 * @return Lock that owns the specified user name.
+	 */
+	private Object lockOf(String name) {
+		int hash = name.hashCode();
+		return userLocks[(hash ^ (hash >>> 16)) & (USER_LOCKS - 1)];
 	}
 	
 	/**
@@ -130,10 +483,65 @@ public class ServerCommunicator {
 	}
 	
 	/**
-	 * Starts a new Thread that receives Client Sockets and registers the Connections.
+	 * Starts checking the {@code Connection} for idleness, if {@code pingInterval} or {@code idleTimeout} are set.
+	 * @param connection
+	 */
+	private void watch(Connection connection) {
+		long delay = nextCheck(0);
+		if (delay > 0) schedule(connection, delay);
+	}
+	
+	private void schedule(final Connection connection, long delay) {
+		timers.schedule(new Runnable() {
+			public void run() {
+				check(connection);
+			}
+		}, delay);
+	}
+	
+	/**
+	 * Closes the {@code Connection} if it has been idle for {@code idleTimeout} seconds, sends it a {@code PING} if it has been idle for {@code pingInterval} seconds, 
+	 * and schedules the next check. Runs in the {@code TimerWheel}. Clients that have not negotiated a protocol are not sent any {@code PING}, 
+	 * since the ones of previous versions do not know its {@code MessageType}. A {@code Connection} found closed is purged and not checked anymore.
+	 * @param connection
+	 */
+	private void check(Connection connection) {
+		if (!connection.isActive()) {
+			purge(connection);
+			return;
+		}
+		long idle = connection.getIdleTime();
+		if (Settings.idleTimeout > 0 && idle >= Settings.idleTimeout * 1000L) {
+			ServerController.getInstance().log("Connection "+connection.getId()+" closed after "+idle / 1000+" idle seconds.");
+			connection.close();
+			return;
+		}
+		if (Settings.pingInterval > 0 && idle >= Settings.pingInterval * 1000L && connection.getProtocol() != null) {
+			connection.send(new Message(MessageType.PING));
+		}
+		schedule(connection, nextCheck(idle));
+	}
+	
+	/**
+	 * @param idle Milliseconds the {@code Connection} has been idle.
+	 * @return Milliseconds until the {@code Connection} must be checked again: when it reaches the idle timeout, 
+	 * or when it is due for a {@code PING}, counting a {@code PING} every {@code pingInterval} seconds while it is idle. 0 if both are disabled.
+	 */
+	private long nextCheck(long idle) {
+		long next = Long.MAX_VALUE;
+		if (Settings.idleTimeout > 0) next = Settings.idleTimeout * 1000L - idle;
+		if (Settings.pingInterval > 0) {
+			long interval = Settings.pingInterval * 1000L;
+			next = Math.min(next, interval - idle % interval);
+		}
+		return next == Long.MAX_VALUE ? 0 : Math.max(1, next);
+	}
+	
+	/**
+	 * Starts a new task in the {@code ReaderExecutor} that receives Client Sockets and registers the Connections.
 	 */
 	private void listen() {
-		Thread listener = new Thread() {
+		Runnable listener = new Runnable() {
 			public void run() {
 				ServerSocket serverSocket;
 				Socket receivedSocket;
@@ -143,7 +551,11 @@ public class ServerCommunicator {
 						try {
 							receivedSocket = serverSocket.accept();
 							ServerController.getInstance().connected(receivedSocket.toString());
-							unidentifiedConnections.add(new Connection(receivedSocket));
+							Connection connection = new SocketConnection(receivedSocket);
+							Metrics.counter("connections.accepted").increment();
+							unidentifiedConnections.put(connection.getId(), connection);
+							connection.start();
+							watch(connection);
 						} catch (IOException e) {
 							ServerController.getInstance().exception(e);
 						}
@@ -153,6 +565,59 @@ public class ServerCommunicator {
 				}
 			}
 		};
-		listener.start();
+		ReaderExecutor.get().execute(listener);
+	}
+	
+	/**
+	 * Starts a group of {@code EventLoop} threads that accept Client channels and read and write all the Connections. 
+	 * The first loop also accepts the channels, which are distributed among all the loops in turn.
+	 */
+	private void listenNonBlocking() {
+		try {
+			final EventLoop[] loops = new EventLoop[Math.max(1, Settings.eventLoopThreads)];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop("EventLoop-"+i);
+				loops[i].start();
+			}
+			final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.bind(new InetSocketAddress(Settings.serverPort));
+			final EventLoop.Handler acceptor = new EventLoop.Handler() {
+				private int next;
+				
+				public void ready(SelectionKey key) throws IOException {
+					SocketChannel channel;
+					while ((channel = serverChannel.accept()) != null) {
+						ServerController.getInstance().connected(channel.toString());
+						try {
+							Connection connection = new ChannelConnection(channel, loops[next]);
+							Metrics.counter("connections.accepted").increment();
+							unidentifiedConnections.put(connection.getId(), connection);
+							connection.start();
+							watch(connection);
+						} catch (IOException e) {
+							channel.close();
+							ServerController.getInstance().exception(e);
+						}
+						next = (next + 1) % loops.length;
+					}
+				}
+				
+				public void failed(IOException e) {
+					ServerController.getInstance().exception(e);
+				}
+			};
+			loops[0].execute(new Runnable() {
+				public void run() {
+					try {
+						loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, acceptor);
+					} catch (IOException e) {
+						ServerController.getInstance().exception(e);
+					}
+				}
+			});
+		} catch (IOException e) {
+			ServerController.getInstance().exception(e);
+		}
 	}
 }
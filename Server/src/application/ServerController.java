@@ -3,28 +3,78 @@
  */
 package application;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.management.JMException;
+
+import display.ServerView;
 import display.ServerWindow;
+import display.TerminalView;
+import domain.DeliveryListener;
+import domain.DeliveryReport;
+import domain.HistoryPage;
+import domain.Connection;
+import domain.Histogram;
+import domain.LogLevel;
 import domain.Message;
+import domain.MessageCodec;
 import domain.MessageType;
+import domain.Metrics;
+import domain.OrderedExecutor;
+import domain.PasswordHash;
+import domain.SendResult;
 import domain.Settings;
 import domain.User;
+import domain.UserDelta;
 import domain.UserData;
 import persistence.FileManager;
+import persistence.GroupStore;
+import persistence.HistoryStore;
+import persistence.MessageStore;
+import persistence.RollingLogFile;
 
 public class ServerController {
 	
 	private static ServerController instance;
+	private static String[] arguments = new String[0];
 	
 	private Console console;
-	private ServerCommunicator serverCommunicator;
-	private UserData userData;
+	private volatile ServerCommunicator serverCommunicator;
+	private volatile UserDirectory userDirectory;
 	private FileManager fileManager;
-	private ServerWindow serverWindow;
+	private MessageStore messageStore;
+	private HistoryStore historyStore;
+	private GroupStore groupStore;
+	private Cluster cluster;
+	private Authenticator authenticator;
+	private OrderedExecutor handlers;
+	private SessionTable sessions;
+	private ServerView serverView;
+	private AsyncLog asyncLog;
+	private Histogram[] handling;
+	private boolean inputClosed;
 	
+	/**
+	 * Starts the server. Accepted arguments, which override {@value Settings#DEFAULT_PROPERTIES_FILE}: 
+	 * {@value Settings#HEADLESS_ARGUMENT}, {@value Settings#GUI_ARGUMENT} and {@value Settings#AUTOSTART_ARGUMENT}.
+	 * <p>In headless mode the commands are read by a daemon thread and the threads of the server may be daemons too, as they are when it is started by a command,
+	 * so the main thread keeps the application running until it exits, unless the standard input is closed while the server is not running.</p>
+	 * @param args
+	 */
 	public static void main(String[] args) {
-		getInstance();
+		arguments = args;
+		ServerController controller = getInstance();
+		if (Settings.autoStart) controller.commandReceived("/start");
+		if (Settings.headless) controller.awaitExit();
 	}
 	
 	public static synchronized ServerController getInstance() {
@@ -35,22 +85,70 @@ public class ServerController {
 	//Initalization methods------------------------------------------------------------------------------------------------------
 
 	/**
-	 * Creates instance of Controller, creating the Application Window and Console.
+	 * Creates instance of Controller, creating the Application Window, or the terminal view in headless mode, the log and Console.
 	 */
 	private ServerController() {
-		serverWindow = new ServerWindow();
-		console = new Console();
+		IOException settingsException = null;
 		try {
 			Settings.loadProperties();
 		} catch (IOException e) {
-			exception(e);
+			settingsException = e;
+		}
+		Settings.parseArguments(arguments);
+		serverView = Settings.headless ? new TerminalView() : new ServerWindow();
+		asyncLog = new AsyncLog(Settings.logLevel, Settings.logBufferSize);
+		asyncLog.addSink(serverView);
+		if (Settings.logFile != null && !Settings.logFile.isEmpty()) {
+			try {
+				asyncLog.addSink(new RollingLogFile(new File(Settings.logFile), Settings.logFileSize, Settings.logFiles));
+			} catch (IOException e) {
+				exception(e);
+			}
+		}
+		console = new Console();
+		handling = new Histogram[MessageType.values().length];
+		for (MessageType type : MessageType.values()) {
+			handling[type.ordinal()] = Metrics.histogram("messages."+type);
 		}
+		if (settingsException != null) exception(settingsException);
 	}
 	
 	//Message handling methods------------------------------------------------------------------------------------------------------
 	
-	public Message messageReceived(Message message) {
-		log("Message received: \n"+message.toString());
+	/**
+	 * Handles a {@code Message} received from a Client, and counts how long it takes for its {@code MessageType}.
+	 * In a {@code Cluster} with the {@value Settings#NIO_TRANSPORT} transport the {@code Message} is handled in the thread of its {@code Connection} 
+	 * of an {@code OrderedExecutor}, which sends the reply, since the calls to other nodes wait for their answers and the {@code EventLoop} must not.
+	 * @param message
+	 * @return Reply to send back to the Client, null if there is none or it is sent later.
+	 */
+	public Message messageReceived(final Message message) {
+		log(LogLevel.DEBUG, "Message received: \n", message);
+		if (handlers == null) return handleTimed(message);
+		handlers.execute(message.getConnectionId(), new Runnable() {
+			public void run() {
+				try {
+					Message reply = handleTimed(message);
+					if (reply != null) serverCommunicator.reply(message.getConnectionId(), reply);
+				} catch (RuntimeException e) {
+					exception(e);
+					serverCommunicator.disconnect(message.getConnectionId());
+				}
+			}
+		});
+		return null;
+	}
+	
+	private Message handleTimed(Message message) {
+		long start = System.nanoTime();
+		try {
+			return handle(message);
+		} finally {
+			handling[message.getMessageType().ordinal()].recordSince(start);
+		}
+	}
+	
+	private Message handle(Message message) {
 		switch (message.getMessageType()) {
 		case LOGIN_REQUEST:
 			return loginRequest(message);
@@ -58,6 +156,12 @@ public class ServerController {
 		case LOGIN_CONFIRMATION:
 			return loginConfirmation(message);
 			
+		case SESSION_RESUME:
+			return sessionResume(message);
+			
+		case PING:
+			return replyToMessage(message, MessageType.PONG);
+			
 		case ADDING_REQUEST:
 			return addingRequest(message);
 			
@@ -78,52 +182,157 @@ public class ServerController {
 			
 		case USER_REMOVE:
 			return userRemove(message);
+			
+		case HISTORY_REQUEST:
+			return historyRequest(message);
+			
+		case GROUP_UPDATE:
+			return groupUpdate(message);
+			
+		case GROUP_LEAVE:
+			return groupLeave(message);
+			
+		case GROUP_MESSAGE:
+			return groupMessage(message);
 
 		default:
 			return null;
 		}
 	}
 
-	private Message loginRequest(Message message) {
+	/**
+	 * Runs the login in the {@code Authenticator}, unless the user or the address have made too many attempts or there are too many logins waiting. 
+	 * With the {@value Settings#NIO_TRANSPORT} transport the reply is sent by the {@code Authenticator} when the login ends, so that the {@code EventLoop} does not wait for it. 
+	 * Otherwise the reader of the {@code Connection} waits for the reply, since it must not read the next {@code Message} until the protocol is negotiated.
+	 * A successful reply is followed by a {@code SESSION_TOKEN} with the token of a new session, if the Client has negotiated a protocol.
+	 */
+	private Message loginRequest(final Message message) {
+		if (!authenticator.tryAttempt(message.getSourceName(), serverCommunicator.getAddress(message.getConnectionId()))) {
+			return loginFailed(message, "Too many login attempts, try again later.");
+		}
+		final boolean replyLater = Settings.NIO_TRANSPORT.equals(Settings.transport);
+		Future<Message> login;
+		try {
+			login = authenticator.submit(new Callable<Message>() {
+				public Message call() {
+					Message reply = login(message);
+					if (replyLater) loginReplied(reply);
+					return reply;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return loginFailed(message, "Server busy, try again later.");
+		}
+		if (replyLater) return null;
+		try {
+			loginReplied(login.get());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return loginFailed(message, "Login interrupted, try again later.");
+		} catch (ExecutionException e) {
+			error("Login of "+message.getSourceName()+" failed: "+e.getCause());
+			return loginFailed(message, "Login failed, try again later.");
+		}
+	}
+	
+	/**
+	 * Logs the user in, or registers it if it does not exist. Takes as long as the {@code PasswordHash} makes it.
+	 * @param message {@code LOGIN_REQUEST} message.
+	 * @return {@code LOGIN_REPLY} message.
+	 */
+	private Message login(Message message) {
 		String 	name = message.getSourceName(), 
 				password = message.getContent();
+		if (name == null || password == null) return loginFailed(message, "Incorrect password.");
 		Message reply = replyToMessage(message, MessageType.LOGIN_REPLY);
-		if (userData.isRegistered(name)) {
-			if (userData.isPasswordValid(name, password)) {
+		reply.setConnectionId(message.getConnectionId());
+		if (userDirectory.isRegistered(name)) {
+			if (userDirectory.isPasswordValid(name, password)) {
 				reply.setCondition("true");
 				reply.setContent("Logged in successfully as "+name);
-				reply.setAdditionalData(userData.getUser(name));
+				reply.setProtocol(negotiateProtocol(message));
+				reply.setAdditionalData(forClient(userDirectory.getUser(name), reply.getProtocol()));
 			}
 			else {
 				reply.setCondition("false");
 				reply.setContent("Incorrect password.");
 			}
 		}
+		else if (!userDirectory.registerUser(new User(name, PasswordHash.hash(password)))) {
+			reply.setCondition("false");
+			reply.setContent("User "+name+" could not be registered, try again later.");
+		}
 		else {
-			userData.registerUser(new User(name, password));
 			updateRegisteredUsers();
 			reply.setCondition("true");
 			reply.setContent("User "+name+" registered successfully.");
-			reply.setAdditionalData(userData.getUser(name));
+			reply.setProtocol(negotiateProtocol(message));
+			reply.setAdditionalData(forClient(userDirectory.getUser(name), reply.getProtocol()));
 		}
 		return reply;
 	}
 
+	/**
+	 * Sends the {@code LOGIN_REPLY} and, if the login has succeeded, a {@code SESSION_TOKEN} after it. Only Clients that have negotiated a protocol get it: 
+	 * the ones that request none are taken as previous versions, which do not know that {@code MessageType}.
+	 * A successful login is recorded before the reply is sent, so that the {@code LOGIN_CONFIRMATION} the Client answers with is accepted.
+	 * @param reply
+	 */
+	private void loginReplied(Message reply) {
+		if (reply.getCondition()) serverCommunicator.loggedIn(reply.getDestinationName(), reply.getConnectionId());
+		serverCommunicator.reply(reply.getConnectionId(), reply);
+		if (!reply.getCondition() || reply.getProtocol() == null) return;
+		Message session = new Message(MessageType.SESSION_TOKEN);
+		session.setDestinationName(reply.getDestinationName());
+		session.setContent(sessions.open(reply.getDestinationName()));
+		serverCommunicator.reply(reply.getConnectionId(), session);
+	}
+
+	private Message loginFailed(Message message, String reason) {
+		Message reply = replyToMessage(message, MessageType.LOGIN_REPLY);
+		reply.setConnectionId(message.getConnectionId());
+		reply.setCondition("false");
+		reply.setContent(reason);
+		return reply;
+	}
+
+	/**
+	 * Identifies the {@code Connection} with the user it has logged in as. Confirmations for any other user are ignored.
+	 */
 	private Message loginConfirmation(Message message) {
-		serverCommunicator.identify(message.getSourceName(), message.getSourceAddress());
-		updateOnlineUsers();
-		try {
-			serverCommunicator.sendQueue(message.getSourceName());
-		} catch (IOException e) {
-			exception(e);
+		if (!serverCommunicator.hasLoggedIn(message.getSourceName(), message.getConnectionId())) {
+			error("Login confirmation of "+message.getSourceName()+" refused, the connection has not logged in as that user.");
+			return null;
 		}
+		attach(message.getSourceName(), message.getConnectionId());
+		return null;
+	}
+	
+	/**
+	 * Resumes the session with the token in the content, in a single round trip: replies with a {@code LOGIN_REPLY} without the {@code User}, 
+	 * which may accept a protocol like the one of a login, and then identifies the {@code Connection} as if the login had been confirmed. 
+	 * If the session can't be resumed the Client must log in again.
+	 */
+	private Message sessionResume(Message message) {
+		String name = sessions.resume(message.getContent());
+		if (name == null || (message.getSourceName() != null && !name.equals(message.getSourceName())) || !userDirectory.isRegistered(name)) {
+			return loginFailed(message, "Session expired, log in again.");
+		}
+		Message reply = replyToMessage(message, MessageType.LOGIN_REPLY);
+		reply.setDestinationName(name);
+		reply.setConnectionId(message.getConnectionId());
+		reply.setCondition("true");
+		reply.setContent("Session resumed as "+name);
+		reply.setProtocol(negotiateProtocol(message));
+		if (serverCommunicator.reply(message.getConnectionId(), reply) == SendResult.QUEUED) attach(name, message.getConnectionId());
 		return null;
 	}
 	
 	private Message addingRequest(Message message) {
 		String dstName = message.getDestinationName();
 		Message reply = replyToMessage(message, MessageType.ADDING_FORWARDING);
-		if (userData.isRegistered(dstName)) {
+		if (userDirectory.isRegistered(dstName)) {
 			send(message);
 			reply.setCondition("true");
 			reply.setContent("Adding request sent to "+dstName);
@@ -142,11 +351,12 @@ public class ServerController {
 
 	private Message userMessage(Message message) {
 		Message reply = replyToMessage(message, MessageType.USER_MESSAGE_FORWARDING);
-		if (userData.isRegistered(message.getDestinationName())) {
+		if (userDirectory.isRegistered(message.getDestinationName())) {
 			reply.setCondition("true");
 			reply.setContent(message.getContent());
 			reply.setSourceName(message.getDestinationName());
 			send(message);
+			addToHistory(message);
 		}
 		else {
 			reply.setCondition("false");
@@ -155,23 +365,306 @@ public class ServerController {
 		return reply;
 	}
 
-	private Message userUpdate(Message message) {
-		User user = (User) message.getAdditionalData();
-		log("User "+user.getName()+" has been updated: "+userData.updateUser(user));
+	/**
+	 * Applies a {@code UserDelta} and replies with the new version of the user, or with the current user if the delta was made on another version.
+	 * Clients that send the whole {@code User} instead get its contacts and password replaced, without reply. An empty password, 
+	 * or the one the user already has, keeps the stored hash. 
+	 * The chat history is kept by the {@code HistoryStore}: of the chats sent by those Clients, only the text added at the end of the history they were sent is kept.
+	 * Updates that hash or verify a password run in the {@code Authenticator}, as the logins do.
+	 * Only the user the {@code Connection} is identified with can be updated: updates from connections that have not identified, 
+	 * or of any other user, are refused.
+	 */
+	private Message userUpdate(final Message message) {
+		final String name = identifiedName(message);
+		if (message.getAdditionalData() instanceof UserDelta) {
+			if (name == null) return notIdentified(replyToMessage(message, MessageType.USER_UPDATE_REPLY));
+			if (!changesPassword((UserDelta) message.getAdditionalData())) return userDelta(message, name);
+			return authenticated(message, new Callable<Message>() {
+				public Message call() {
+					return userDelta(message, name);
+				}
+			}, updateRefused(message, name));
+		}
+		final User sent = (User) message.getAdditionalData();
+		final User user = withoutChats(sent);
+		if (name == null || user == null || !name.equals(user.getName())) {
+			error("Update of user "+(user == null ? null : user.getName())+" refused, the connection is not identified with that user.");
+			return null;
+		}
+		if (user.getPassword() == null || user.getPassword().isEmpty()) return updateUser(user, sent);
+		return authenticated(message, new Callable<Message>() {
+			public Message call() {
+				return updateUser(user, sent);
+			}
+		}, null);
+	}
+	
+	/**
+	 * Replaces the contacts and password of the user sent by a Client of a previous version, and adds to the chat history what it has written in its chats. 
+	 * Takes as long as the {@code PasswordHash} makes it.
+	 * @param user User without chats.
+	 * @param sent User as sent by the Client.
+	 * @return null, since these updates have no reply.
+	 */
+	private Message updateUser(User user, User sent) {
+		User previous = userDirectory.getUser(user.getName());
+		if (previous != null) {
+			user.setVersion(previous.getVersion() + 1);
+			if (user.getPassword().isEmpty() || PasswordHash.verify(user.getPassword(), previous.getPassword())) user.setPassword(previous.getPassword());
+			else user.setPassword(PasswordHash.hash(user.getPassword()));
+		}
+		log("User "+user.getName()+" has been updated: "+userDirectory.updateUser(user));
+		if (previous != null && historyStore != null) {
+			for (String contact : previous.getContacts()) {
+				if (!user.hasContact(contact)) historyStore.remove(user.getName(), contact);
+			}
+		}
+		if (historyStore != null) {
+			for (String contact : user.getContacts()) {
+				appendChat(user.getName(), contact, sent.getChat(contact));
+			}
+		}
 		return null;
 	}
 	
+	/**
+	 * @param message {@code USER_UPDATE} message with a {@code UserDelta}.
+	 * @param name Name of the user the {@code Connection} is identified with.
+	 * @return {@code USER_UPDATE_REPLY} with the new version of the user, or one that refuses the {@code UserDelta}.
+	 */
+	private Message userDelta(Message message, String name) {
+		UserDelta delta = (UserDelta) message.getAdditionalData();
+		Message reply = replyToMessage(message, MessageType.USER_UPDATE_REPLY);
+		if (!userDirectory.applyDelta(name, delta)) return updateRefused(message, name);
+		User user = userDirectory.getUser(name);
+		for (UserDelta.Operation operation : delta.getOperations()) {
+			if (historyStore == null || user == null) break;
+			try {
+				switch (operation.getKind()) {
+				case CHAT_APPENDED:
+					if (user.hasContact(operation.getContact()) && operation.getText() != null) historyStore.append(name, operation.getContact(), operation.getText(), true);
+					break;
+					
+				case CONTACT_REMOVED:
+					if (!user.hasContact(operation.getContact())) historyStore.remove(name, operation.getContact());
+					break;
+					
+				default:
+					break;
+				}
+			} catch (IOException e) {
+				exception(e);
+			}
+		}
+		reply.setCondition("true");
+		reply.setContent(String.valueOf(delta.getBaseVersion() + 1));
+		log(LogLevel.DEBUG, "User "+name+" has been updated: ", delta);
+		return reply;
+	}
+	
+	/**
+	 * @param message {@code USER_UPDATE} message with a {@code UserDelta}.
+	 * @param name Name of the user the {@code Connection} is identified with.
+	 * @return {@code USER_UPDATE_REPLY} that refuses the {@code UserDelta}, with the current version of the user if it exists.
+	 */
+	private Message updateRefused(Message message, String name) {
+		Message reply = replyToMessage(message, MessageType.USER_UPDATE_REPLY);
+		User user = userDirectory.getUser(name);
+		reply.setCondition("false");
+		if (user != null) {
+			reply.setContent(String.valueOf(user.getVersion()));
+			reply.setAdditionalData(forClient(user));
+		}
+		return reply;
+	}
+	
+	/**
+	 * @param delta
+	 * @return true if one of the operations of the {@code UserDelta} sets a new password.
+	 */
+	private boolean changesPassword(UserDelta delta) {
+		for (UserDelta.Operation operation : delta.getOperations()) {
+			if (operation.getKind() == UserDelta.Kind.PASSWORD_CHANGED && operation.getText() != null) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Handles a {@code Message} in the {@code Authenticator}, since it hashes a password. As with the logins, with the {@value Settings#NIO_TRANSPORT} transport 
+	 * the reply is sent by the {@code Authenticator}, otherwise the reader of the {@code Connection} waits for it.
+	 * @param message
+	 * @param handler Handling of the {@code Message}, which returns its reply or null if it has none.
+	 * @param refused Reply if the {@code Authenticator} is too busy or the handling fails, null if there is none.
+	 * @return Reply to send back to the Client, null if there is none or it is sent later.
+	 */
+	private Message authenticated(final Message message, final Callable<Message> handler, Message refused) {
+		final boolean replyLater = Settings.NIO_TRANSPORT.equals(Settings.transport);
+		Future<Message> handled;
+		try {
+			handled = authenticator.submit(new Callable<Message>() {
+				public Message call() throws Exception {
+					try {
+						Message reply = handler.call();
+						if (replyLater && reply != null) serverCommunicator.reply(message.getConnectionId(), reply);
+						return reply;
+					} catch (RuntimeException e) {
+						exception(e);
+						serverCommunicator.disconnect(message.getConnectionId());
+						throw e;
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			error(message.getMessageType()+" of "+message.getSourceName()+" refused, the server is busy.");
+			return refused;
+		}
+		if (replyLater) return null;
+		try {
+			return handled.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return refused;
+		} catch (ExecutionException e) {
+			return refused;
+		}
+	}
+	
 	private Message userLogout(Message message) {
+		sessions.close(message.getSourceName());
 		serverCommunicator.unidentify(message.getSourceName());
 		updateOnlineUsers();
 		return null;
 	}
 	
 	private Message userRemove(Message message) {
-		userData.removeUser(message.getSourceName());
+		sessions.close(message.getSourceName());
+		userDirectory.removeUser(message.getSourceName());
+		if (historyStore != null) historyStore.removeUser(message.getSourceName());
+		if (groupStore != null) {
+			for (String group : groupStore.removeUser(message.getSourceName())) {
+				sendMembers(group);
+			}
+		}
 		updateRegisteredUsers();
 		return null;
 	}
+	
+	/**
+	 * Creates the group named in the destination with the sender and the registered users listed in the additional data, 
+	 * or adds those users to the group if it exists and the sender is a member. Replies with the members of the group, 
+	 * which are also sent to all of them in a {@code GROUP_MEMBERS} message. 
+	 * In all the group messages the sender is the user the {@code Connection} is identified with, connections that have not identified are refused.
+	 */
+	private Message groupUpdate(Message message) {
+		String name = identifiedName(message), group = message.getDestinationName();
+		Message reply = replyToMessage(message, MessageType.GROUP_REPLY);
+		if (name == null) return notIdentified(reply);
+		List<String> members = new ArrayList<String>();
+		members.add(name);
+		if (message.getAdditionalData() instanceof Collection) {
+			for (Object member : (Collection<?>) message.getAdditionalData()) {
+				if (member instanceof String && !members.contains(member) && userDirectory.isRegistered((String) member)) members.add((String) member);
+			}
+		}
+		if (group == null || groupStore == null) {
+			reply.setCondition("false");
+			reply.setContent("Groups are not available.");
+			return reply;
+		}
+		if (!groupStore.create(group, members)) {
+			if (!groupStore.isMember(group, name)) {
+				reply.setCondition("false");
+				reply.setContent("You are not a member of "+group+".");
+				return reply;
+			}
+			groupStore.add(group, members);
+		}
+		sendMembers(group);
+		reply.setCondition("true");
+		reply.setContent(group);
+		reply.setAdditionalData(groupStore.getMembers(group));
+		return reply;
+	}
+	
+	/**
+	 * Removes the sender from the group named in the destination. The rest of members get the new list of members.
+	 */
+	private Message groupLeave(Message message) {
+		String name = identifiedName(message), group = message.getDestinationName();
+		Message reply = replyToMessage(message, MessageType.GROUP_REPLY);
+		if (name == null) return notIdentified(reply);
+		reply.setContent(group);
+		if (groupStore == null || !groupStore.remove(group, name)) {
+			reply.setCondition("false");
+			return reply;
+		}
+		sendMembers(group);
+		reply.setCondition("true");
+		return reply;
+	}
+	
+	/**
+	 * Sends the content to all the other members of the group named in the destination, as a {@code GROUP_MESSAGE} with the sender as source 
+	 * and the group name as additional data. The reply tells the result of the delivery to every member, and is sent once it has been handed to all of them.
+	 */
+	private Message groupMessage(final Message message) {
+		String name = identifiedName(message), group = message.getDestinationName();
+		final Message reply = replyToMessage(message, MessageType.GROUP_REPLY);
+		if (name == null) return notIdentified(reply);
+		if (groupStore == null || !groupStore.isMember(group, name)) {
+			reply.setCondition("false");
+			reply.setContent("You are not a member of "+group+".");
+			return reply;
+		}
+		Message groupMessage = new Message(MessageType.GROUP_MESSAGE);
+		groupMessage.setSourceName(name);
+		groupMessage.setContent(message.getContent());
+		groupMessage.setAdditionalData(group);
+		List<String> recipients = groupStore.getMembers(group);
+		recipients.remove(name);
+		serverCommunicator.multicast(groupMessage, recipients, new DeliveryListener() {
+			public void delivered(DeliveryReport report) {
+				reply.setCondition("true");
+				reply.setContent(report.toString());
+				reply.setAdditionalData(report.toMap());
+				serverCommunicator.reply(message.getConnectionId(), reply);
+			}
+		});
+		return null;
+	}
+	
+	/**
+	 * Replies with a page of the chat history that the user has with one of its contacts, of at most {@code historyPageSize} entries. 
+	 * The conversation is marked as read when its last page is sent. The user is the one the {@code Connection} is identified with, 
+	 * connections that have not identified are refused.
+	 */
+	private Message historyRequest(Message message) {
+		Message reply = replyToMessage(message, MessageType.HISTORY_REPLY);
+		String name = identifiedName(message);
+		if (name == null) return notIdentified(reply);
+		User user = userDirectory.getUser(name);
+		HistoryPage page = message.getAdditionalData() instanceof HistoryPage ? (HistoryPage) message.getAdditionalData() : null;
+		if (page == null || user == null || !user.hasContact(page.getContact()) || historyStore == null) {
+			reply.setCondition("false");
+			reply.setContent("There is no chat history"+(page == null ? "." : " with "+page.getContact()+"."));
+			return reply;
+		}
+		int count = page.getCount() > 0 ? Math.min(page.getCount(), Settings.historyPageSize) : Settings.historyPageSize;
+		try {
+			long total = historyStore.size(name, page.getContact());
+			long from = page.getFrom() < 0 ? Math.max(0, total - count) : page.getFrom();
+			List<String> entries = historyStore.read(name, page.getContact(), from, count);
+			page.fill(from, entries, total);
+			if (from + entries.size() >= total) historyStore.markRead(name, page.getContact(), total);
+			reply.setCondition("true");
+			reply.setAdditionalData(page);
+		} catch (IOException e) {
+			exception(e);
+			reply.setCondition("false");
+			reply.setContent("Chat history with "+page.getContact()+" could not be read.");
+		}
+		return reply;
+	}
 
 	//Command methods--------------------------------------------------------------------------------------------------------------
 	
@@ -180,24 +673,54 @@ public class ServerController {
 	}
 	
 	/**
-	 * Initializes {@code FileManager}, {@code UserData} and {@code ServerCommunicator} if they haven't been initalized yet.
+	 * Initializes {@code FileManager}, {@code UserData}, {@code MessageStore}, {@code HistoryStore}, {@code GroupStore} and {@code ServerCommunicator} if they haven't been initalized yet.
 	 */
 	public void start() {
 		try {
 			if (fileManager == null) {
 				fileManager = new FileManager();
 			}
-			if (userData == null) {
-				userData = fileManager.load();
+			if (userDirectory == null) {
+				UserData userData = fileManager.load();
 				log("User data loaded: "+(userData != null));
+				if (cluster == null && !Settings.clusterPeers.isEmpty()) cluster = new Cluster(Settings.clusterNode, Settings.clusterPort, Settings.clusterPeers, Settings.clusterSecret);
+				userDirectory = new UserDirectory(userData, cluster);
 				updateRegisteredUsers();
 			}
+			if (messageStore == null && Settings.offlineStore) {
+				messageStore = new MessageStore(new File(MessageStore.DEFAULT_DIRECTORY), MessageStore.DEFAULT_SEGMENT_SIZE);
+				log("Offline message store opened: "+messageStore.getRecords().size()+" queued messages.");
+			}
+			if (historyStore == null) {
+				historyStore = new HistoryStore(new File(HistoryStore.DEFAULT_DIRECTORY), Settings.historySegmentSize);
+				log("Chat history imported from "+importChats()+" chats.");
+			}
+			if (authenticator == null) {
+				authenticator = new Authenticator(Settings.loginThreads, Settings.loginQueueSize, Settings.loginAttemptsPerMinute);
+			}
+			if (handlers == null && userDirectory.isDistributed() && Settings.NIO_TRANSPORT.equals(Settings.transport)) {
+				handlers = new OrderedExecutor("Handler", Math.max(1, Settings.clusterThreads));
+			}
+			if (sessions == null) sessions = new SessionTable(Settings.sessionTimeout);
+			if (groupStore == null) {
+				groupStore = new GroupStore(new File(GroupStore.DEFAULT_FILE));
+				log("Groups loaded: "+groupStore.size()+" groups.");
+			}
 			if (serverCommunicator == null) {
-				serverCommunicator = new ServerCommunicator();
+				try {
+					Metrics.registerMBean();
+				} catch (JMException e) {
+					exception(e);
+				}
+				serverCommunicator = new ServerCommunicator(messageStore, cluster);
 				log("Network communicator initialized: "+(serverCommunicator != null));
+				if (cluster != null) {
+					cluster.start(serverCommunicator, userDirectory);
+					log("Cluster node "+cluster.getNodeId()+" listening for other nodes on port "+Settings.clusterPort+".");
+				}
 				log("Server is now listening for connections...");
 			}
-		} catch (ClassNotFoundException | IOException e) {
+		} catch (ClassNotFoundException | IOException | IllegalArgumentException e) {
 			exception(e);
 		}
 	}
@@ -206,62 +729,338 @@ public class ServerController {
 	 * Stops and removes all the connections with the server.
 	 */
 	public void stop() {
+		if (serverCommunicator != null) serverCommunicator.close();
 		serverCommunicator = null;
 		log("Network communicator stopped: "+(serverCommunicator == null));
 		log("Server is no longer listening for connections.");
 	}
 	
 	/**
-	 * Saves user data and shuts the application down.
+	 * Saves user data, closes the user journal, the offline message store, the chat history and the groups and shuts the application down.
 	 */
 	public void exit() {
-		if (fileManager == null) System.exit(0);
+		if (fileManager == null) {
+			asyncLog.close();
+			System.exit(0);
+		}
 		try {
-			fileManager.save(userData);
+			if (cluster != null) cluster.close();
+			if (authenticator != null) authenticator.close();
+			if (handlers != null) handlers.close();
+			if (messageStore != null) messageStore.close();
+			if (historyStore != null) historyStore.close();
+			if (groupStore != null) groupStore.close();
+			if (userDirectory != null) fileManager.close(userDirectory.getLocalData());
+			asyncLog.close();
 			System.exit(0);
 		} catch (IOException e) {
 			exception(e);
 		}
 	}
 	
+	/**
+	 * Asks every identified user for the changes made since the version the server has, which is sent in the content of the request.
+	 */
 	public void update() {
-		try {
-			serverCommunicator.broadcast(new Message(MessageType.USER_UPDATE_REQUEST));
-			log("Update request sent to all identified conenctions.");
-		} catch (IOException e) {
-			exception(e);
+		for (String name : serverCommunicator.getIdentifications()) {
+			User user = userDirectory.getUser(name);
+			if (user == null) continue;
+			Message request = new Message(MessageType.USER_UPDATE_REQUEST);
+			request.setDestinationName(name);
+			request.setContent(String.valueOf(user.getVersion()));
+			send(request);
+		}
+		log("Update request sent to all identified conenctions.");
+	}
+	
+	/**
+	 * Sends a {@code SERVER_MESSAGE} with the inserted text to all the identified users.
+	 * @param text
+	 */
+	public void broadcast(String text) {
+		if (serverCommunicator == null) return;
+		Message message = new Message(MessageType.SERVER_MESSAGE);
+		message.setContent(text);
+		serverCommunicator.broadcast(message, new DeliveryListener() {
+			public void delivered(DeliveryReport report) {
+				log("Server message sent to "+report+".");
+			}
+		});
+	}
+	
+	/**
+	 * Logs the depth of the offline message queue and the number of messages evicted or rejected by its limits.
+	 */
+	public void queues() {
+		if (serverCommunicator == null) return;
+		OfflineQueue queue = serverCommunicator.getMessageQueue();
+		log("Offline queue: "+queue.size()+" messages for "+queue.getRecipients()+" users, "+queue.getEvicted()+" evicted, "+queue.getRejected()+" rejected.");
+	}
+	
+	/**
+	 * Logs the names of the registered users kept in this node.
+	 */
+	public void users() {
+		if (userDirectory == null) return;
+		Collection<String> names = userDirectory.getAllUserNames();
+		log("Registered users ("+names.size()+"): "+names);
+	}
+	
+	/**
+	 * Logs the names of the identified users.
+	 */
+	public void online() {
+		if (serverCommunicator == null) return;
+		Collection<String> names = serverCommunicator.getIdentifications();
+		log("Online users ("+names.size()+"): "+names);
+		if (cluster != null) log("Online users in other nodes: "+cluster.getRemoteUsers());
+	}
+	
+	/**
+	 * Logs the current value of every metric.
+	 */
+	public void stats() {
+		for (String line : Metrics.report()) {
+			log(line);
+		}
+	}
+	
+	/**
+	 * Logs the state of the links with the other nodes of the cluster.
+	 */
+	public void nodes() {
+		if (cluster == null) {
+			log("This server is not part of a cluster.");
+			return;
+		}
+		log("Cluster node "+cluster.getNodeId()+":");
+		for (String node : cluster.getNodes()) {
+			log("  "+node);
 		}
 	}
 	
 	//Public auxiliar methods-------------------------------------------------------------------------------------------------------
 	
 	public void log(String text) {
-		if (serverWindow != null) serverWindow.log(text);
+		log(LogLevel.INFO, text, null);
+	}
+	
+	/**
+	 * Logs an entry without blocking. The subject is only formatted if the {@code LogLevel} is enabled.
+	 * @param level
+	 * @param text
+	 * @param subject Object appended to the text, null if none.
+	 */
+	public void log(LogLevel level, String text, Object subject) {
+		if (asyncLog != null) asyncLog.log(level, text, subject);
 	}
 	
 	public void exception(Exception e) {
-		log("An error ocurred ("+e.toString()+"): "+e.getMessage());
+		log(LogLevel.ERROR, "An error ocurred ("+e.toString()+"): "+e.getMessage(), null);
 	}
 	
 	public void error(String text) {
-		log("An error ocurred: "+text);
+		log(LogLevel.ERROR, "An error ocurred: "+text, null);
+	}
+	
+	/**
+	 * Called by the {@code TerminalView} when the standard input is closed: if the server is not running, it can't be started anymore.
+	 */
+	public synchronized void inputClosed() {
+		inputClosed = true;
+		notifyAll();
 	}
 	
 	public void connected(String socketInfo) {
 		log("Connection received: "+socketInfo);
 	}
 	
-	public void disconnected(String socketInfo) {
+	/**
+	 * Logs a {@code Message} that could not be queued for sending.
+	 * @param message
+	 * @param result Reason why the {@code Message} was not queued.
+	 */
+	public void sendFailed(Message message, SendResult result) {
+		log("Message to "+(message.getDestinationName() != null ? message.getDestinationName() : message.getDestinationAddress())+" not sent: "+result);
+	}
+	
+	/**
+	 * Called by a {@code Connection} when it is closed.
+	 * @param connection
+	 * @param socketInfo
+	 */
+	public void disconnected(Connection connection, String socketInfo) {
 		log("Connection lost: "+socketInfo);
-		serverCommunicator.purge();
+		Metrics.counter("connections.closed").increment();
+		if (serverCommunicator == null) return;
+		serverCommunicator.purge(connection);
 		updateOnlineUsers();
 	}
 
 	//Private auxiliar methods------------------------------------------------------------------------------------------------------
 	
+	/**
+	 * Waits until the standard input is closed while the server is not running.
+	 */
+	private synchronized void awaitExit() {
+		try {
+			while (serverCommunicator != null || !inputClosed) wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 	private void send(Message message) {
+		SendResult result = serverCommunicator.send(message);
+		if (result != SendResult.QUEUED) sendFailed(message, result);
+	}
+	
+	/**
+	 * Adds a {@code USER_MESSAGE} to the chat history of the sender and the receiver, if they have each other as contacts.
+	 * @param message
+	 */
+	private void addToHistory(Message message) {
+		if (historyStore == null) return;
+		String source = message.getSourceName(), destination = message.getDestinationName();
+		String text = source+": "+message.getContent();
 		try {
-			serverCommunicator.send(message);
+			User sender = userDirectory.getUser(source), receiver = userDirectory.getUser(destination);
+			if (sender != null && sender.hasContact(destination)) historyStore.append(source, destination, text, true);
+			if (receiver != null && receiver.hasContact(source)) historyStore.append(destination, source, text, false);
+		} catch (IOException e) {
+			exception(e);
+		}
+	}
+	
+	/**
+	 * @param name
+	 * @return Number of entries not read yet of the chat history with every contact of the user.
+	 */
+	private HashMap<String, Long> unreadCounters(String name) {
+		HashMap<String, Long> counters = new HashMap<String, Long>();
+		User user = userDirectory.getUser(name);
+		if (user == null || historyStore == null) return counters;
+		for (String contact : user.getContacts()) {
+			try {
+				counters.put(contact, historyStore.getUnread(name, contact));
+			} catch (IOException e) {
+				exception(e);
+			}
+		}
+		return counters;
+	}
+	
+	/**
+	 * Moves the chats kept inside the users by previous versions to the {@code HistoryStore}, as a single entry for every chat, 
+	 * unless the conversation is already there. The users are then updated without chats. Only the users kept in this node are imported.
+	 * @return Number of chats imported.
+	 * @throws IOException If a chat could not be written.
+	 */
+	private int importChats() throws IOException {
+		int imported = 0;
+		UserData userData = userDirectory.getLocalData();
+		for (String name : userData.getAllUserNames()) {
+			User user = userData.getUser(name);
+			if (user == null) continue;
+			boolean hasChats = false;
+			for (String contact : user.getContacts()) {
+				String chat = user.getChat(contact);
+				if (chat == null || chat.isEmpty()) continue;
+				hasChats = true;
+				if (historyStore.size(name, contact) == 0) {
+					historyStore.append(name, contact, chat, true);
+					imported++;
+				}
+			}
+			if (hasChats) userData.updateUser(withoutChats(user));
+		}
+		return imported;
+	}
+	
+	/**
+	 * @param user
+	 * @return Copy of the user with the same contacts and version but empty chats, null if the user is null.
+	 */
+	private User withoutChats(User user) {
+		if (user == null) return null;
+		User copy = new User(user.getName(), user.getPassword());
+		for (String contact : user.getContacts()) {
+			copy.addContact(contact);
+		}
+		copy.setVersion(user.getVersion());
+		return copy;
+	}
+	
+	/**
+	 * Sends the members of the group to all of them in a {@code GROUP_MEMBERS} message, with the group name as content. Does nothing if the group does not exist.
+	 * @param group
+	 */
+	private void sendMembers(String group) {
+		ArrayList<String> members = groupStore.getMembers(group);
+		if (members == null) return;
+		Message message = new Message(MessageType.GROUP_MEMBERS);
+		message.setContent(group);
+		message.setAdditionalData(members);
+		serverCommunicator.multicast(message, members, null);
+	}
+	
+	/**
+	 * @param user
+	 * @return Copy of the user for its Client, with the same contacts and version but empty chats and password. Null if the user is null.
+	 */
+	private User forClient(User user) {
+		User copy = withoutChats(user);
+		if (copy != null) copy.setPassword("");
+		return copy;
+	}
+	
+	/**
+	 * @param user
+	 * @param protocol Protocol negotiated by the Client, null if it is a Client of a previous version.
+	 * @return Copy of the user for its Client, with an empty password. Clients of previous versions, which can't ask for the chat history, 
+	 * get it inside the chats of the user, the rest get empty chats. Null if the user is null.
+	 */
+	private User forClient(User user, String protocol) {
+		User copy = forClient(user);
+		if (copy == null || protocol != null || historyStore == null) return copy;
+		for (String contact : copy.getContacts()) {
+			try {
+				copy.addToChat(contact, chatOf(copy.getName(), contact));
+			} catch (IOException e) {
+				exception(e);
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * @param name
+	 * @param contact
+	 * @return Chat history of the user with the contact as a single text, as Clients of previous versions keep it, with a line for every entry.
+	 * @throws IOException If the history could not be read.
+	 */
+	private String chatOf(String name, String contact) throws IOException {
+		StringBuilder chat = new StringBuilder();
+		for (String entry : historyStore.read(name, contact, 0, Integer.MAX_VALUE)) {
+			chat.append(entry);
+			if (!entry.endsWith("\n")) chat.append('\n');
+		}
+		return chat.toString();
+	}
+	
+	/**
+	 * Adds to the chat history the text a Client of a previous version has written at the end of a chat, as a single entry. 
+	 * Chats that do not start with the history as {@link ServerController#chatOf(String, String)} gives it, 
+	 * such as the ones of a Client that has not been sent the last messages, are left as they are, and so are the messages the server has already added.
+	 * @param name
+	 * @param contact
+	 * @param chat Chat sent by the Client, null if none.
+	 */
+	private void appendChat(String name, String contact, String chat) {
+		if (chat == null || chat.isEmpty()) return;
+		try {
+			String history = chatOf(name, contact);
+			if (chat.length() > history.length() && chat.startsWith(history)) historyStore.append(name, contact, chat.substring(history.length()), true);
 		} catch (IOException e) {
 			exception(e);
 		}
@@ -269,11 +1068,56 @@ public class ServerController {
 	
 	private void updateRegisteredUsers() {
 		
-		serverWindow.updateRegisteredUsers(userData.getAllUserNames());
+		serverView.updateRegisteredUsers(userDirectory.getAllUserNames());
+	}
+	
+	/**
+	 * Identifies the {@code Connection} with the user, and sends it its offline messages and the summary of its unread chats. 
+	 * The summary is only sent to Clients that have negotiated a protocol, since the ones of previous versions do not know its {@code MessageType}.
+	 * @param name
+	 * @param connectionId
+	 */
+	private void attach(String name, long connectionId) {
+		serverCommunicator.identify(name, connectionId);
+		updateOnlineUsers();
+		serverCommunicator.sendQueue(name);
+		if (serverCommunicator.getProtocol(connectionId) == null) return;
+		Message summary = new Message(MessageType.HISTORY_SUMMARY);
+		summary.setDestinationName(name);
+		summary.setAdditionalData(unreadCounters(name));
+		send(summary);
+	}
+	
+	/**
+	 * @param message
+	 * @return Name of the user the {@code Connection} of the {@code Message} is identified with, null if it has not identified. 
+	 * The source name of the {@code Message} is chosen by the Client, so it is not used for anything done on behalf of the user.
+	 */
+	private String identifiedName(Message message) {
+		return serverCommunicator.getIdentification(message.getConnectionId());
+	}
+	
+	/**
+	 * @param reply
+	 * @return The reply, refused because the {@code Connection} has not identified.
+	 */
+	private Message notIdentified(Message reply) {
+		reply.setCondition("false");
+		reply.setContent("Log in first.");
+		return reply;
 	}
 	
 	private void updateOnlineUsers() {
-		serverWindow.updateOnlineUsers(serverCommunicator.getIdentifications());
+		serverView.updateOnlineUsers(serverCommunicator.getIdentifications());
+	}
+	
+	/**
+	 * @param message
+	 * @return Name of the protocol requested in the {@code LOGIN_REQUEST} if the server supports it, null to keep using serialized objects.
+	 */
+	private String negotiateProtocol(Message message) {
+		MessageCodec codec = MessageCodec.forProtocol(message.getProtocol());
+		return codec == null ? null : codec.getProtocol();
 	}
 	
 	private Message replyToMessage(Message message, MessageType messageType) {
@@ -0,0 +1,167 @@
+package application;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Sessions opened by the logins, so that a Client that reconnects can resume its session with the token it got instead of logging in again.
+ * A session expires when it has not been opened or resumed for {@code sessionTimeout} seconds.</p>
+ * <p>Sessions are kept in memory, so they are lost when the server stops, and in a cluster they can only be resumed in the node that opened them. 
+ * The tokens of every user are also kept by name, so closing the sessions of a user only costs as much as the sessions it has.</p>
+ */
+public class SessionTable {
+
+	private static final int TOKEN_SIZE = 24;
+	private static final int PURGE_INTERVAL = 1024;
+	private static final SecureRandom random = new SecureRandom();
+
+	private ConcurrentMap<String, Session> sessions;
+	private ConcurrentMap<String, Set<String>> tokens;
+	private long timeout;
+	private AtomicInteger opened;
+
+	/**
+	 * @param timeoutSeconds Seconds a session lasts since it was last opened or resumed.
+	 */
+	public SessionTable(int timeoutSeconds) {
+		sessions = new ConcurrentHashMap<String, Session>();
+		tokens = new ConcurrentHashMap<String, Set<String>>();
+		timeout = Math.max(1, timeoutSeconds) * 1000L;
+		opened = new AtomicInteger();
+	}
+
+	/**
+	 * Opens a session for the user. Expired sessions are forgotten every {@value SessionTable#PURGE_INTERVAL} sessions opened.
+	 * @param name
+	 * @return Token of the new session.
+	 * @throws IllegalArgumentException If the name is null.
+	 */
+	public String open(String name) {
+		if (name == null) throw new IllegalArgumentException("Name can't be null.");
+		long now = System.currentTimeMillis();
+		if (opened.incrementAndGet() % PURGE_INTERVAL == 0) purge(now);
+		byte[] bytes = new byte[TOKEN_SIZE];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		Session session = new Session(name, now + timeout);
+		while (true) {
+			Set<String> userTokens = tokens.get(name);
+			if (userTokens == null) {
+				Set<String> created = new HashSet<String>();
+				userTokens = tokens.putIfAbsent(name, created);
+				if (userTokens == null) userTokens = created;
+			}
+			synchronized (userTokens) {
+				if (tokens.get(name) != userTokens) continue;
+				userTokens.add(token);
+				sessions.put(token, session);
+				return token;
+			}
+		}
+	}
+
+	/**
+	 * Resumes the session with the token, which lasts {@code sessionTimeout} seconds more.
+	 * @param token
+	 * @return Name of the user of the session, null if there is no such session, it has expired or the token is null.
+	 */
+	public String resume(String token) {
+		if (token == null) return null;
+		Session session = sessions.get(token);
+		if (session == null) return null;
+		long now = System.currentTimeMillis();
+		if (!session.extend(now, now + timeout)) {
+			forget(token, session);
+			return null;
+		}
+		return session.name;
+	}
+
+	/**
+	 * Closes all the sessions of the user.
+	 * @param name
+	 * @return Number of sessions closed.
+	 */
+	public int close(String name) {
+		if (name == null) return 0;
+		Set<String> userTokens = tokens.get(name);
+		if (userTokens == null) return 0;
+		synchronized (userTokens) {
+			tokens.remove(name, userTokens);
+			for (String token : userTokens) {
+				sessions.remove(token);
+			}
+			return userTokens.size();
+		}
+	}
+
+	/**
+	 * @return Number of sessions kept, including the expired ones not forgotten yet.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Forgets the expired sessions.
+	 * @param now
+	 */
+	private void purge(long now) {
+		Iterator<Map.Entry<String, Session>> iterator = sessions.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Session> entry = iterator.next();
+			if (entry.getValue().isExpired(now)) forget(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Removes the session and its token from the ones of its user.
+	 * @param token
+	 * @param session
+	 */
+	private void forget(String token, Session session) {
+		Set<String> userTokens = tokens.get(session.name);
+		if (userTokens == null) {
+			sessions.remove(token, session);
+			return;
+		}
+		synchronized (userTokens) {
+			sessions.remove(token, session);
+			userTokens.remove(token);
+			if (userTokens.isEmpty()) tokens.remove(session.name, userTokens);
+		}
+	}
+
+	private static class Session {
+
+		private final String name;
+		private long expiration;
+
+		public Session(String name, long expiration) {
+			this.name = name;
+			this.expiration = expiration;
+		}
+
+		/**
+		 * @param now
+		 * @param expiration
+		 * @return true if the session had not expired and now lasts until the new expiration, false if it had expired.
+		 */
+		public synchronized boolean extend(long now, long expiration) {
+			if (isExpired(now)) return false;
+			this.expiration = expiration;
+			return true;
+		}
+
+		public synchronized boolean isExpired(long now) {
+			return now >= expiration;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package application;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import domain.ClusterMessage;
+import domain.ClusterMessage.Operation;
+import domain.HashRing;
+import domain.PasswordHash;
+import domain.User;
+import domain.UserData;
+import domain.UserDelta;
+
+/**
+ * <p>Registered users of the whole cluster. Every node keeps in its {@code UserData} only the users it owns, which are spread among the nodes
+ * by a {@code HashRing} of their names, and the operations on a user are executed by its owner: here, or in another node through a call of the {@code Cluster}.
+ * Without a {@code Cluster} all the users are kept here.</p>
+ * <p>Users of other nodes are copies: changes must be made with the methods of this class. If the owner of a user can't be reached,
+ * the user is taken as not registered and its changes fail.</p>
+ * <p>When a link with another node is established, the users kept here that the ring assigns to that node are handed to it.
+ * Since the ring is consistent, adding a node to the cluster or removing it only moves the users between its points of the ring and the previous ones.</p>
+ * <p>Until a node has handed its users here, the users this node owns that it does not keep yet are looked up in the node that kept them before, 
+ * the one that owns them in the ring without this node. Meanwhile they can't be registered nor changed here, so that no copy is made before the user arrives.</p>
+ */
+public class UserDirectory {
+
+	private UserData userData;
+	private Cluster cluster;
+	private HashRing ring;
+	private HashRing previousRing;
+	private Set<String> handing;
+
+	/**
+	 * @param userData {@code UserData} with the users kept in this node.
+	 * @param cluster {@code Cluster} this server is a node of, null if it runs alone.
+	 * @throws IllegalArgumentException If the {@code UserData} is null.
+	 */
+	public UserDirectory(UserData userData, Cluster cluster) {
+		if (userData == null) throw new IllegalArgumentException("User data can't be null.");
+		this.userData = userData;
+		this.cluster = cluster;
+		if (cluster != null && !cluster.getMembers().isEmpty()) ring = new HashRing(cluster.getMembers(), HashRing.DEFAULT_POINTS);
+		if (ring != null && cluster.getMembers().contains(cluster.getNodeId()) && cluster.getMembers().size() > 1) {
+			List<String> others = new ArrayList<String>(cluster.getMembers());
+			others.remove(cluster.getNodeId());
+			previousRing = new HashRing(others, HashRing.DEFAULT_POINTS);
+			handing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			handing.addAll(others);
+		}
+	}
+
+	/**
+	 * @return true if some users are kept by other nodes, so that the operations on them are calls that wait for another node.
+	 */
+	public boolean isDistributed() {
+		return ring != null;
+	}
+
+	/**
+	 * @return {@code UserData} with the users kept in this node.
+	 */
+	public UserData getLocalData() {
+		return userData;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the user is registered, false if the user does not exist, its owner can't be reached or the parameter is null.
+	 */
+	public boolean isRegistered(String name) {
+		if (name == null) return false;
+		String owner = ownerOf(name);
+		if (owner == null) return isRegisteredHere(name);
+		return result(cluster.call(owner, Operation.IS_REGISTERED, name, null));
+	}
+
+	/**
+	 * @param name
+	 * @param password
+	 * @return true if the user with the introduced name contains the specified password, false if the password is wrong, the user is not registered,
+	 * its owner can't be reached or one of the parameters are null.
+	 */
+	public boolean isPasswordValid(String name, String password) {
+		if (name == null || password == null) return false;
+		String owner = ownerOf(name);
+		if (owner == null) return isPasswordValidHere(name, password);
+		return isPasswordValidIn(owner, name, password);
+	}
+
+	/**
+	 * @param name
+	 * @return User with the specified name, a copy if it is kept by another node. Null if the user does not exist, its owner can't be reached or the parameter is null.
+	 */
+	public User getUser(String name) {
+		if (name == null) return null;
+		String owner = ownerOf(name);
+		if (owner == null) return getUserHere(name);
+		ClusterMessage reply = cluster.call(owner, Operation.GET_USER, name, null);
+		return reply == null ? null : reply.getUser();
+	}
+
+	/**
+	 * @param user
+	 * @return true if the user has been registered, false if the user already existed, its owner can't be reached or the parameter is null.
+	 */
+	public boolean registerUser(User user) {
+		if (user == null) return false;
+		String owner = ownerOf(user.getName());
+		if (owner == null) return registerHere(user);
+		return result(cluster.call(owner, Operation.REGISTER, user.getName(), user));
+	}
+
+	/**
+	 * @param user
+	 * @return true if the user has been updated, false if the user does not exist, its owner can't be reached or the parameter is null.
+	 */
+	public boolean updateUser(User user) {
+		if (user == null) return false;
+		String owner = ownerOf(user.getName());
+		if (owner == null) return holderOf(user.getName()) == null && userData.updateUser(user);
+		return result(cluster.call(owner, Operation.UPDATE, user.getName(), user));
+	}
+
+	/**
+	 * Removes the specified user, and removes it from the contact list of all the users who have it in every node.
+	 * @param name
+	 * @return true if the user has been removed, false if the user does not exist, its owner can't be reached or the parameter is null.
+	 */
+	public boolean removeUser(String name) {
+		if (name == null) return false;
+		String owner = ownerOf(name);
+		if (owner == null) return holderOf(name) == null && remove(name);
+		return result(cluster.call(owner, Operation.REMOVE, name, null));
+	}
+
+	/**
+	 * <p>Applies the {@code UserDelta} to the user, leaving out the contacts added that are not registered. New passwords are hashed here, before they leave this node, 
+	 * so deltas that change the password must be applied from the {@code Authenticator}.</p>
+	 * @param name
+	 * @param delta
+	 * @return true if the changes have been applied, false if the user does not exist, is in another version, its owner can't be reached or one of the parameters are null.
+	 * @see UserData#applyDelta(String, UserDelta)
+	 */
+	public boolean applyDelta(String name, UserDelta delta) {
+		if (name == null || delta == null) return false;
+		ListIterator<UserDelta.Operation> operations = delta.getOperations().listIterator();
+		while (operations.hasNext()) {
+			UserDelta.Operation operation = operations.next();
+			if (operation.getKind() == UserDelta.Kind.CONTACT_ADDED && !isRegistered(operation.getContact())) operations.remove();
+			else if (operation.getKind() == UserDelta.Kind.PASSWORD_CHANGED && operation.getText() != null) {
+				operations.set(new UserDelta.Operation(UserDelta.Kind.PASSWORD_CHANGED, null, PasswordHash.hash(operation.getText())));
+			}
+		}
+		String owner = ownerOf(name);
+		if (owner == null) return holderOf(name) == null && userData.applyDelta(name, delta);
+		return result(cluster.call(owner, Operation.APPLY_DELTA, name, delta));
+	}
+
+	/**
+	 * @return Names of the users kept in this node.
+	 */
+	public Collection<String> getAllUserNames() {
+		return userData.getAllUserNames();
+	}
+
+	/**
+	 * Executes a call made by another node on a user kept here.
+	 * @param request {@code USER_REQUEST} message.
+	 * @return {@code USER_REPLY} message with the result.
+	 */
+	public ClusterMessage handle(ClusterMessage request) {
+		String name = request.getName();
+		Serializable argument = request.getArgument();
+		User user = null;
+		boolean result;
+		switch (request.getOperation()) {
+		case IS_REGISTERED:
+			result = isRegisteredHere(name);
+			break;
+
+		case GET_USER:
+			user = getUserHere(name);
+			result = user != null;
+			break;
+
+		case REGISTER:
+			result = registerHere((User) argument);
+			break;
+
+		case UPDATE:
+			result = holderOf(name) == null && userData.updateUser((User) argument);
+			break;
+
+		case REMOVE:
+			result = holderOf(name) == null && remove(name);
+			break;
+
+		case APPLY_DELTA:
+			result = holderOf(name) == null && userData.applyDelta(name, (UserDelta) argument);
+			break;
+
+		case MIGRATE:
+			result = userData.updateUser((User) argument) || userData.registerUser((User) argument);
+			break;
+
+		case HANDED:
+			if (handing != null && handing.remove(request.getNode())) ServerController.getInstance().log("Cluster node "+request.getNode()+" has handed its users.");
+			result = true;
+			break;
+
+		case FORGET_CONTACT:
+			result = userData.forgetContact(name) > 0;
+			break;
+
+		default:
+			result = false;
+			break;
+		}
+		return ClusterMessage.userReply(cluster.getNodeId(), request.getCallId(), result, user);
+	}
+
+	/**
+	 * Hands to the specified node the users kept here that it owns, and stops keeping them once the node has them. Stops at the first user the node does not get.
+	 * Once all of them have been handed the node is told, so that it stops looking them up here.
+	 * @param node
+	 */
+	public synchronized void rebalance(String node) {
+		if (ring == null) return;
+		int moved = 0;
+		boolean handed = true;
+		for (String name : userData.getAllUserNames()) {
+			if (!node.equals(ring.ownerOf(name))) continue;
+			User user = userData.getUser(name);
+			if (user == null) continue;
+			if (!result(cluster.call(node, Operation.MIGRATE, name, user))) {
+				ServerController.getInstance().error("User "+name+" could not be handed to cluster node "+node+".");
+				handed = false;
+				break;
+			}
+			userData.releaseUser(name);
+			moved++;
+		}
+		if (moved > 0) ServerController.getInstance().log(moved+" users handed to cluster node "+node+".");
+		if (handed && !result(cluster.call(node, Operation.HANDED, cluster.getNodeId(), null))) {
+			ServerController.getInstance().error("Cluster node "+node+" could not be told that its users have been handed.");
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return Id of the node that owns the user, null if it is this node.
+	 */
+	private String ownerOf(String name) {
+		if (ring == null) return null;
+		String owner = ring.ownerOf(name);
+		return owner.equals(cluster.getNodeId()) ? null : owner;
+	}
+
+	/**
+	 * @param name
+	 * @return Id of the node that kept the user before this node, if the user is owned here, it is not kept here yet and that node has not handed its users. 
+	 * Null otherwise.
+	 */
+	private String holderOf(String name) {
+		if (previousRing == null || handing.isEmpty() || name == null || !cluster.getNodeId().equals(ring.ownerOf(name)) || userData.isRegistered(name)) return null;
+		String holder = previousRing.ownerOf(name);
+		return handing.contains(holder) ? holder : null;
+	}
+
+	private boolean isRegisteredHere(String name) {
+		String holder = holderOf(name);
+		if (holder == null) return userData.isRegistered(name);
+		return result(cluster.call(holder, Operation.IS_REGISTERED, name, null));
+	}
+
+	private boolean isPasswordValidHere(String name, String password) {
+		String holder = holderOf(name);
+		if (holder == null) return userData.isPasswordValid(name, password);
+		return isPasswordValidIn(holder, name, password);
+	}
+
+	/**
+	 * Verifies the password against a copy of a user kept by another node, so that the password never leaves this node. 
+	 * If the stored password must be hashed again, the new hash is sent to that node in a {@code UserDelta} on the version of the copy,
+	 * which is not applied if the user has changed meanwhile.
+	 * @param node
+	 * @param name
+	 * @param password
+	 * @return true if the user contains the specified password, false if the password is wrong, the user is not registered or the node can't be reached.
+	 */
+	private boolean isPasswordValidIn(String node, String name, String password) {
+		ClusterMessage reply = cluster.call(node, Operation.GET_USER, name, null);
+		User user = reply == null ? null : reply.getUser();
+		if (user == null || !PasswordHash.verify(password, user.getPassword())) return false;
+		if (PasswordHash.needsRehash(user.getPassword())) {
+			cluster.call(node, Operation.APPLY_DELTA, name, new UserDelta(user.getVersion()).changePassword(PasswordHash.hash(password)));
+		}
+		return true;
+	}
+
+	private User getUserHere(String name) {
+		String holder = holderOf(name);
+		if (holder == null) return userData.getUser(name);
+		ClusterMessage reply = cluster.call(holder, Operation.GET_USER, name, null);
+		return reply == null ? null : reply.getUser();
+	}
+
+	/**
+	 * Registers a user owned here, unless the node that kept it before still has it or can't be asked.
+	 * @param user
+	 * @return true if the user has been registered.
+	 */
+	private boolean registerHere(User user) {
+		String holder = holderOf(user.getName());
+		if (holder != null) {
+			ClusterMessage reply = cluster.call(holder, Operation.IS_REGISTERED, user.getName(), null);
+			if (reply == null || reply.getResult()) return false;
+		}
+		return userData.registerUser(user);
+	}
+
+	/**
+	 * Removes a user kept here, and tells the other nodes to remove it from the contact lists of their users.
+	 * @param name
+	 * @return true if the user existed.
+	 */
+	private boolean remove(String name) {
+		if (!userData.removeUser(name)) return false;
+		if (cluster != null) cluster.tell(Operation.FORGET_CONTACT, name);
+		return true;
+	}
+
+	private boolean result(ClusterMessage reply) {
+		return reply != null && reply.getResult();
+	}
+}
@@ -0,0 +1,26 @@
+package display;
+
+import java.util.Collection;
+
+import domain.LogSink;
+
+/**
+ * <p>User interface of the server: shows the log and the lists of registered and online users. 
+ * Commands typed by the administrator are handed to {@code ServerController#commandReceived(String)}.</p>
+ */
+public interface ServerView extends LogSink {
+
+	/**
+	 * Displays the Collection inserted as the registered users.
+	 * @param names
+	 * @throws IllegalArgumentException If the inserted Collection is null.
+	 */
+	void updateRegisteredUsers(Collection<String> names);
+
+	/**
+	 * Displays the Collection inserted as the online users.
+	 * @param names
+	 * @throws IllegalArgumentException If the inserted Collection is null.
+	 */
+	void updateOnlineUsers(Collection<String> names);
+}
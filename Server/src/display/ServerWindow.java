@@ -1,14 +1,20 @@
 package display;
 
 import java.util.Collection;
+import java.util.List;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JFrame;
 import javax.swing.JTextField;
 import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 
 import application.ServerController;
+import domain.LogEntry;
+import domain.Settings;
 
 import javax.swing.JLabel;
 import javax.swing.JList;
@@ -20,7 +26,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
-public class ServerWindow {
+/**
+ * <p>Window of the server. The log view keeps only the last {@code logViewLines} lines and is updated in the event dispatch thread, 
+ * once for every batch of entries.</p>
+ */
+public class ServerWindow implements ServerView {
 
 	private JFrame frame;
 	private JTextField commandField;
@@ -55,7 +65,8 @@ public class ServerWindow {
 		frame.addWindowListener(new WindowAdapter() {
 			@Override
 			public void windowClosing(WindowEvent e) {
-				if (JOptionPane.showConfirmDialog(frame, "Are you sure you want to shut the server down?\nAll the queued messages will be deleted and online users will not be updated.", "Confirm closing operation", JOptionPane.YES_NO_CANCEL_OPTION) == JOptionPane.YES_OPTION) {
+				String warning = Settings.offlineStore ? "Online users will not be updated." : "All the queued messages will be deleted and online users will not be updated.";
+				if (JOptionPane.showConfirmDialog(frame, "Are you sure you want to shut the server down?\n"+warning, "Confirm closing operation", JOptionPane.YES_NO_CANCEL_OPTION) == JOptionPane.YES_OPTION) {
 					ServerController.getInstance().exit();
 				}
 			}
@@ -121,12 +132,14 @@ public class ServerWindow {
 	 * @param names
 	 * @throws IllegalArgumentException If the inserted Collection is null.
 	 */
-	public void updateRegisteredUsers(Collection<String> names) {
+	@Override
+	public void updateRegisteredUsers(final Collection<String> names) {
 		if (names == null) throw new IllegalArgumentException("Argument can't be null.");
-		registeredUsers.clear();
-		for (String name : names) {
-			registeredUsers.addElement(name);
-		}
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				fill(registeredUsers, names);
+			}
+		});
 	}
 	
 	/**
@@ -134,22 +147,55 @@ public class ServerWindow {
 	 * @param names
 	 * @throws IllegalArgumentException If the inserted Collection is null.
 	 */
-	public void updateOnlineUsers(Collection<String> names) {
+	@Override
+	public void updateOnlineUsers(final Collection<String> names) {
 		if (names == null) throw new IllegalArgumentException("Argument can't be null.");
-		onlineUsers.clear();
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				fill(onlineUsers, names);
+			}
+		});
+	}
+	
+	/**
+	 * Replaces the contents of the list model. Must be called from the event dispatch thread.
+	 * @param model
+	 * @param names
+	 */
+	private void fill(DefaultListModel<String> model, Collection<String> names) {
+		model.clear();
 		for (String name : names) {
-			onlineUsers.addElement(name);
+			model.addElement(name);
 		}
 	}
 	
 	/**
-	 * Adds to the TextPane the insterted text.
-	 * @param text
+	 * Adds to the TextPane the text of the insterted entries, removing the oldest lines if there are more than {@code logViewLines}.
+	 * @param entries
 	 */
-	public void log(String text) {
-		if (text != null) {
-			textLog.setText(textLog.getText().concat(text+"\n"));
-			scrollPane.getVerticalScrollBar().setValue(scrollPane.getVerticalScrollBar().getMaximum());
+	@Override
+	public void write(List<LogEntry> entries) {
+		final StringBuilder text = new StringBuilder();
+		for (LogEntry entry : entries) {
+			text.append(entry.getText()).append('\n');
 		}
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				Document document = textLog.getDocument();
+				try {
+					document.insertString(document.getLength(), text.toString(), null);
+					Element lines = document.getDefaultRootElement();
+					int excess = lines.getElementCount() - Settings.logViewLines;
+					if (excess > 0) document.remove(0, lines.getElement(excess - 1).getEndOffset());
+				} catch (BadLocationException e) {
+					return;
+				}
+				textLog.setCaretPosition(document.getLength());
+			}
+		});
+	}
+
+	@Override
+	public void close() {
 	}
 }
@@ -0,0 +1,75 @@
+package display;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.List;
+
+import application.ServerController;
+import domain.LogEntry;
+
+/**
+ * <p>{@code ServerView} for hosts without a display. Log entries are printed to the standard output and commands are read, one per line, from the standard input.
+ * The user lists are not printed every time they change, the {@code /users} and {@code /online} commands show them on demand.</p>
+ */
+public class TerminalView implements ServerView {
+
+	private PrintStream out;
+
+	/**
+	 * Creates the view and starts the thread that reads commands from the standard input. It is a daemon thread, like the one of the log,
+	 * so a blocked read does not keep the application running: the main thread of {@code ServerController} does it instead.
+	 */
+	public TerminalView() {
+		out = System.out;
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "Console");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public void write(List<LogEntry> entries) {
+		for (LogEntry entry : entries) {
+			out.println(entry.getText());
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() {
+		out.flush();
+	}
+
+	@Override
+	public void updateRegisteredUsers(Collection<String> names) {
+		if (names == null) throw new IllegalArgumentException("Argument can't be null.");
+	}
+
+	@Override
+	public void updateOnlineUsers(Collection<String> names) {
+		if (names == null) throw new IllegalArgumentException("Argument can't be null.");
+	}
+
+	/**
+	 * Hands every line of the standard input to the {@code ServerController} until it is closed.
+	 */
+	private void read() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0) ServerController.getInstance().commandReceived(line);
+			}
+		} catch (IOException e) {
+			ServerController.getInstance().exception(e);
+		}
+		ServerController.getInstance().inputClosed();
+	}
+}
@@ -0,0 +1,233 @@
+package domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Compact {@code MessageCodec}. A {@code Message} is written as:</p>
+ * <ul>
+ * <li>1 byte with the ordinal of the {@code MessageType}.</li>
+ * <li>1 byte with a bit for every optional field that is present.</li>
+ * <li>The time stamp in milliseconds as a varint.</li>
+ * <li>The present fields in declaration order. Text is written as a varint length followed by its UTF-8 bytes.</li>
+ * <li>If there is additional data, 1 byte with its kind followed by the data: a {@code User} is written field by field, with its version at the end if it is not 0, a {@code String} as text, 
+ * and any other object with Java serialization.</li>
+ * <li>If the {@code Message} carries a connection id, the id as a varint. Readers that do not know this trailing field ignore it.</li>
+ * </ul>
+ */
+class BinaryCodec extends MessageCodec {
+
+	private static final int SOURCE_NAME = 1;
+	private static final int SOURCE_ADDRESS = 1 << 1;
+	private static final int DESTINATION_NAME = 1 << 2;
+	private static final int DESTINATION_ADDRESS = 1 << 3;
+	private static final int CONTENT = 1 << 4;
+	private static final int CONDITION = 1 << 5;
+	private static final int PROTOCOL = 1 << 6;
+	private static final int ADDITIONAL_DATA = 1 << 7;
+
+	private static final int USER_DATA = 1;
+	private static final int STRING_DATA = 2;
+	private static final int SERIALIZED_DATA = 3;
+	private static final int VERSIONED_USER_DATA = 4;
+
+	private static final MessageType[] TYPES = MessageType.values();
+
+	@Override
+	public String getProtocol() {
+		return "binary/1";
+	}
+
+	@Override
+	public byte[] encode(Message message) throws IOException {
+		Writer out = new Writer();
+		out.write(message.getMessageType().ordinal());
+		out.write(flags(message));
+		out.writeVarLong(message.getTime());
+		if (message.getSourceName() != null) out.writeString(message.getSourceName());
+		if (message.getSourceAddress() != null) out.writeString(message.getSourceAddress());
+		if (message.getDestinationName() != null) out.writeString(message.getDestinationName());
+		if (message.getDestinationAddress() != null) out.writeString(message.getDestinationAddress());
+		if (message.getContent() != null) out.writeString(message.getContent());
+		if (message.getConditionText() != null) out.writeString(message.getConditionText());
+		if (message.getProtocol() != null) out.writeString(message.getProtocol());
+		if (message.getAdditionalData() != null) writeAdditionalData(out, message.getAdditionalData());
+		if (message.getConnectionId() != 0) out.writeVarLong(message.getConnectionId());
+		return out.toByteArray();
+	}
+
+	@Override
+	public Message decode(byte[] body, int offset, int length) throws IOException, ClassNotFoundException {
+		Reader in = new Reader(body, offset, length);
+		int type = in.read();
+		if (type >= TYPES.length) throw new IOException("Unknown message type: "+type);
+		Message message = new Message(TYPES[type]);
+		int flags = in.read();
+		message.setTime(in.readVarLong());
+		if ((flags & SOURCE_NAME) != 0) message.setSourceName(in.readString());
+		if ((flags & SOURCE_ADDRESS) != 0) message.setSourceAddress(in.readString());
+		if ((flags & DESTINATION_NAME) != 0) message.setDestinationName(in.readString());
+		if ((flags & DESTINATION_ADDRESS) != 0) message.setDestinationAddress(in.readString());
+		if ((flags & CONTENT) != 0) message.setContent(in.readString());
+		if ((flags & CONDITION) != 0) message.setCondition(in.readString());
+		if ((flags & PROTOCOL) != 0) message.setProtocol(in.readString());
+		if ((flags & ADDITIONAL_DATA) != 0) message.setAdditionalData(readAdditionalData(in));
+		if (in.available()) message.setConnectionId(in.readVarLong());
+		return message;
+	}
+
+	private int flags(Message message) {
+		int flags = 0;
+		if (message.getSourceName() != null) flags |= SOURCE_NAME;
+		if (message.getSourceAddress() != null) flags |= SOURCE_ADDRESS;
+		if (message.getDestinationName() != null) flags |= DESTINATION_NAME;
+		if (message.getDestinationAddress() != null) flags |= DESTINATION_ADDRESS;
+		if (message.getContent() != null) flags |= CONTENT;
+		if (message.getConditionText() != null) flags |= CONDITION;
+		if (message.getProtocol() != null) flags |= PROTOCOL;
+		if (message.getAdditionalData() != null) flags |= ADDITIONAL_DATA;
+		return flags;
+	}
+
+	private void writeAdditionalData(Writer out, Serializable data) throws IOException {
+		if (data instanceof User) {
+			User user = (User) data;
+			long version = user.getVersion();
+			out.write(version == 0 ? USER_DATA : VERSIONED_USER_DATA);
+			out.writeString(user.getName());
+			out.writeString(user.getPassword());
+			out.writeVarLong(user.getContacts().size());
+			for (String contact : user.getContacts()) {
+				out.writeString(contact);
+				out.writeString(user.getChat(contact));
+			}
+			if (version != 0) out.writeVarLong(version);
+		}
+		else if (data instanceof String) {
+			out.write(STRING_DATA);
+			out.writeString((String) data);
+		}
+		else {
+			out.write(SERIALIZED_DATA);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objectWriter = new ObjectOutputStream(bytes);
+			objectWriter.writeObject(data);
+			objectWriter.close();
+			out.writeVarLong(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	private Serializable readAdditionalData(Reader in) throws IOException, ClassNotFoundException {
+		int kind = in.read();
+		switch (kind) {
+		case USER_DATA:
+		case VERSIONED_USER_DATA:
+			User user = new User(in.readString(), in.readString());
+			for (long contacts = in.readVarLong(); contacts > 0; contacts--) {
+				String contact = in.readString();
+				user.addContact(contact);
+				user.addToChat(contact, in.readString());
+			}
+			if (kind == VERSIONED_USER_DATA) user.setVersion(in.readVarLong());
+			return user;
+			
+		case STRING_DATA:
+			return in.readString();
+			
+		case SERIALIZED_DATA:
+			int length = (int) in.readVarLong();
+			ObjectInputStream objectReader = new ObjectInputStream(new ByteArrayInputStream(in.buffer(), in.skip(length), length));
+			try {
+				return (Serializable) objectReader.readObject();
+			} finally {
+				objectReader.close();
+			}
+
+		default:
+			throw new IOException("Unknown additional data kind.");
+		}
+	}
+
+	private static class Writer extends ByteArrayOutputStream {
+
+		public Writer() {
+			super(64);
+		}
+
+		public void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		public void writeString(String text) {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+
+	private static class Reader {
+
+		private byte[] buffer;
+		private int position;
+		private int end;
+
+		public Reader(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		public int read() throws IOException {
+			if (position >= end) throw new IOException("Truncated message.");
+			return buffer[position++] & 0xFF;
+		}
+
+		public long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IOException("Malformed varint.");
+		}
+
+		public String readString() throws IOException {
+			int length = (int) readVarLong();
+			return new String(buffer, skip(length), length, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @param length
+		 * @return Position of the skipped bytes.
+		 * @throws IOException If there are not enough bytes left.
+		 */
+		public int skip(int length) throws IOException {
+			if (length < 0 || length > end - position) throw new IOException("Truncated message.");
+			int start = position;
+			position += length;
+			return start;
+		}
+
+		/**
+		 * @return true if there are bytes left to read.
+		 */
+		public boolean available() {
+			return position < end;
+		}
+
+		public byte[] buffer() {
+			return buffer;
+		}
+	}
+}
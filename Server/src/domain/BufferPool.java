@@ -0,0 +1,76 @@
+package domain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>Pool of direct {@code ByteBuffer}s shared by all the threads, kept in classes of sizes that are powers of two from {@value BufferPool#MIN_SIZE}
+ * to {@value BufferPool#MAX_SIZE} bytes, with up to {@value BufferPool#MAX_POOLED} free buffers in every class.</p>
+ * <p>Giving a buffer back is optional: a buffer that is not released is collected like any other object, it is just not reused.
+ * A released buffer must not be used anymore by whoever released it.</p>
+ */
+public class BufferPool {
+
+	public static final int MIN_SIZE = 256;
+	public static final int MAX_SIZE = 64 * 1024;
+	public static final int MAX_POOLED = 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final List<Queue<ByteBuffer>> free = new ArrayList<Queue<ByteBuffer>>();
+	private static final AtomicIntegerArray freeCounts;
+
+	static {
+		for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+			free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+		freeCounts = new AtomicIntegerArray(free.size());
+	}
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @param size
+	 * @return Direct {@code ByteBuffer} with a capacity of at least the size and its limit at the size, ready to be filled.
+	 * @throws IllegalArgumentException If the size is negative or bigger than {@value BufferPool#MAX_SIZE}.
+	 */
+	public static ByteBuffer acquire(int size) {
+		if (size < 0 || size > MAX_SIZE) throw new IllegalArgumentException("Buffer size must be between 0 and "+MAX_SIZE+".");
+		int sizeClass = classOf(size);
+		ByteBuffer buffer = free.get(sizeClass).poll();
+		if (buffer == null) buffer = ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+		else freeCounts.decrementAndGet(sizeClass);
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. Buffers that were not taken from the pool, such as heap or read-only ones, are ignored,
+	 * and so are the ones that do not fit in a full class.
+	 * @param buffer
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) return;
+		int capacity = buffer.capacity();
+		if (capacity < MIN_SIZE || capacity > MAX_SIZE || Integer.bitCount(capacity) != 1) return;
+		int sizeClass = classOf(capacity);
+		if (freeCounts.incrementAndGet(sizeClass) > MAX_POOLED) {
+			freeCounts.decrementAndGet(sizeClass);
+			return;
+		}
+		free.get(sizeClass).offer(buffer);
+	}
+
+	/**
+	 * @param size
+	 * @return Index of the smallest class whose buffers fit the size.
+	 */
+	private static int classOf(int size) {
+		if (size <= MIN_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,251 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import application.ServerController;
+
+/**
+ * <p>{@code Connection} over a non-blocking {@code SocketChannel}. Reads and writes are performed by the {@code EventLoop} the channel is registered in,
+ * so no thread is dedicated to this {@code Connection}. Messages travel in the frames described in {@link FrameCodec}.</p>
+ * <p>With {@code messageRelay} enabled, the frame of every {@code USER_MESSAGE} received with the {@code BinaryCodec} is kept in a direct buffer of the {@code BufferPool}.
+ * If the destination is another {@code ChannelConnection} that uses the same codec, that frame is written to it as it was received, instead of encoding the {@code Message} again,
+ * and the buffer goes back to the pool once written. Relayed frames are counted in the {@code connection.relayed} counter of the {@code Metrics}.</p>
+ */
+public class ChannelConnection extends Connection implements EventLoop.Handler {
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final LongAdder relayed = Metrics.counter("connection.relayed");
+
+	private SocketChannel channel;
+	private EventLoop loop;
+	private volatile SelectionKey key;
+	private ByteBuffer readBuffer;
+	private Queue<ByteBuffer> writeQueue;
+	private ArrayDeque<ByteBuffer> pending;
+	private ByteBuffer[] batch;
+	private volatile MessageCodec codec;
+	private AtomicBoolean flushScheduled;
+	private AtomicBoolean closed;
+	private Runnable flushTask;
+
+	/**
+	 * Creates a new Connection with the inserted {@code SocketChannel}, which is registered in the inserted {@code EventLoop} when it is started.
+	 * @param channel
+	 * @param loop
+	 * @throws IOException If there is a problem configuring the {@code SocketChannel}.
+	 * @throws IllegalArgumentException If one of the parameters are null.
+	 */
+	public ChannelConnection(final SocketChannel channel, EventLoop loop) throws IOException {
+		if (channel == null || loop == null) throw new IllegalArgumentException("Can't create connection with empty channel.");
+		this.channel = channel;
+		this.loop = loop;
+		channel.configureBlocking(false);
+		setConnectionAddress(channel.socket().getInetAddress());
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		pending = new ArrayDeque<ByteBuffer>();
+		batch = new ByteBuffer[Math.max(1, Settings.writeBatchSize)];
+		codec = MessageCodec.SERIALIZED;
+		flushScheduled = new AtomicBoolean();
+		closed = new AtomicBoolean();
+		flushTask = new Runnable() {
+			public void run() {
+				flushScheduled.set(false);
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * <p>Registers the channel in the {@code EventLoop}, which reads it from then on and writes the messages queued meanwhile.</p>
+	 */
+	@Override
+	public void start() {
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = ChannelConnection.this.loop.register(channel, SelectionKey.OP_READ, ChannelConnection.this);
+					flush();
+				} catch (ClosedChannelException e) {
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * <p>Encodes the {@code Message} in a frame and queues it to be written by the {@code EventLoop} of this {@code Connection}.
+	 * A {@code Message} received in a frame of the codec of this {@code Connection} is not encoded: the frame it came in is queued instead.</p>
+	 */
+	@Override
+	protected void enqueue(Message message) throws IOException {
+		ByteBuffer frame = codec == MessageCodec.BINARY ? message.takeFrame() : null;
+		if (frame != null) relayed.increment();
+		writeQueue.add(frame != null ? frame : FrameCodec.encode(message, codec));
+		codec = negotiate(message, codec);
+	}
+
+	/**
+	 * <p>Queues a view of the shared frame encoded with the codec of this {@code Connection}, so that the {@code Message} is not encoded again.</p>
+	 */
+	@Override
+	protected void enqueue(SharedFrame frame) throws IOException {
+		writeQueue.add(frame.frame(codec));
+	}
+
+	/**
+	 * <p>Writes the queued frames right away if called from the {@code EventLoop}, or makes the {@code EventLoop} write them otherwise.</p>
+	 */
+	@Override
+	protected void startWriting() {
+		if (loop.inLoop()) flush();
+		else if (flushScheduled.compareAndSet(false, true)) loop.execute(flushTask);
+	}
+
+	/**
+	 * @return true if the channel of this {@code Connection} is open, false if it has been closed.
+	 */
+	@Override
+	public boolean isActive() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void ready(SelectionKey key) throws IOException {
+		if (key.isReadable()) read();
+		if (key.isValid() && key.isWritable()) flush();
+	}
+
+	@Override
+	public void failed(IOException e) {
+		close();
+	}
+
+	/**
+	 * <p>Reads the available bytes and hands every complete frame to the {@code ServerController}.</p>
+	 * @throws IOException If the channel could not be read.
+	 */
+	private void read() throws IOException {
+		int read = channel.read(readBuffer);
+		if (read < 0) {
+			close();
+			return;
+		}
+		bytesRead.add(read);
+		readBuffer.flip();
+		while (readBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+			int length = readBuffer.getInt(readBuffer.position());
+			FrameCodec.checkLength(length);
+			if (readBuffer.remaining() < FrameCodec.HEADER_SIZE + length) {
+				ensureCapacity(FrameCodec.HEADER_SIZE + length);
+				break;
+			}
+			int offset = readBuffer.position() + FrameCodec.HEADER_SIZE;
+			readBuffer.position(offset + length);
+			try {
+				Message message = codec.decode(readBuffer.array(), offset, length);
+				if (isRelayable(message, length)) message.setFrame(copyFrame(offset - FrameCodec.HEADER_SIZE, FrameCodec.HEADER_SIZE + length));
+				received(message);
+			} catch (ClassNotFoundException e) {
+				ServerController.getInstance().error("Object received is not a Message: "+e.getMessage());
+				close();
+				return;
+			}
+		}
+		readBuffer.compact();
+	}
+
+	/**
+	 * @param message {@code Message} just decoded.
+	 * @param length Length of the body of its frame.
+	 * @return true if the frame of the {@code Message} can be relayed as it is: a {@code USER_MESSAGE} encoded with the {@code BinaryCodec}, without additional data, 
+	 * without a connection id, since the Client must not choose the one the destination gets, and small enough for the {@code BufferPool}.
+	 */
+	private boolean isRelayable(Message message, int length) {
+		return Settings.messageRelay && codec == MessageCodec.BINARY && message.getMessageType() == MessageType.USER_MESSAGE 
+				&& message.getAdditionalData() == null && message.getConnectionId() == 0 && FrameCodec.HEADER_SIZE + length <= BufferPool.MAX_SIZE;
+	}
+
+	/**
+	 * @param offset Position of the frame in the read buffer.
+	 * @param size Size of the frame, header included.
+	 * @return Direct buffer of the {@code BufferPool} with a copy of the frame, ready to be written.
+	 */
+	private ByteBuffer copyFrame(int offset, int size) {
+		ByteBuffer frame = BufferPool.acquire(size);
+		frame.put(readBuffer.array(), offset, size);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * <p>Makes sure a frame of the inserted size fits in the read buffer. The buffer must be in read mode.</p>
+	 * @param size
+	 */
+	private void ensureCapacity(int size) {
+		if (readBuffer.capacity() >= size) return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, readBuffer.capacity() * 2));
+		bigger.put(readBuffer);
+		bigger.flip();
+		readBuffer = bigger;
+	}
+
+	/**
+	 * <p>Writes as many queued frames as the channel accepts, up to {@code writeBatchSize} frames in every gathering write. Must be called from the {@code EventLoop}.
+	 * If the channel is full, write readiness is requested and the rest of frames are written once the channel is ready again. 
+	 * Written frames that came from the {@code BufferPool} are given back to it.</p>
+	 */
+	private void flush() {
+		if (key == null || !key.isValid()) return;
+		try {
+			while (true) {
+				ByteBuffer frame;
+				while (pending.size() < batch.length && (frame = writeQueue.poll()) != null) pending.add(frame);
+				if (pending.isEmpty()) break;
+				int size = pending.size();
+				bytesWritten.add(channel.write(pending.toArray(batch), 0, size));
+				int count = 0;
+				while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+					BufferPool.release(pending.poll());
+					count++;
+				}
+				written(count);
+				if (!pending.isEmpty()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		String channelInfo = channel.toString();
+		if (key != null) key.cancel();
+		ByteBuffer frame;
+		while ((frame = writeQueue.poll()) != null) BufferPool.release(frame);
+		if (loop.inLoop()) {
+			while ((frame = pending.poll()) != null) BufferPool.release(frame);
+		}
+		discardUnwritten();
+		try {
+			channel.close();
+			ServerController.getInstance().disconnected(this, channelInfo);
+		} catch (IOException e) {
+			ServerController.getInstance().error(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>Message exchanged between the nodes of a cluster. Every message carries the id of the node that sent it.</p>
+ */
+public class ClusterMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Kind {
+		/**
+		 * First message of every link, identifies the node.
+		 */
+		HELLO,
+		
+		/**
+		 * A user has identified in the node, or has left it.
+		 */
+		PRESENCE,
+		
+		/**
+		 * All the users identified in the node, sent every time a link is established.
+		 */
+		SNAPSHOT,
+		
+		/**
+		 * {@code Message} for a user identified in the receiving node.
+		 */
+		FORWARD,
+		
+		/**
+		 * {@code Operation} on a user owned by the receiving node. Requests with a call id are answered with a {@code USER_REPLY}.
+		 */
+		USER_REQUEST,
+		
+		/**
+		 * Result of a {@code USER_REQUEST}, with the same call id.
+		 */
+		USER_REPLY,
+	}
+	
+	/**
+	 * <p>Operations on the users kept by another node.</p>
+	 */
+	public enum Operation {
+		IS_REGISTERED,
+		GET_USER,
+		REGISTER,
+		UPDATE,
+		REMOVE,
+		APPLY_DELTA,
+		
+		/**
+		 * The receiving node is now the owner of the user, which is registered there or replaces the one it has.
+		 */
+		MIGRATE,
+		
+		/**
+		 * The calling node has handed to the receiving node all the users it kept that the receiving node owns.
+		 */
+		HANDED,
+		
+		/**
+		 * A user has been removed, and must be removed from the contacts of the users kept by the receiving node. Never answered.
+		 */
+		FORGET_CONTACT,
+	}
+
+	private Kind kind;
+	private String node;
+	private String name;
+	private boolean online;
+	private ArrayList<String> names;
+	private Message message;
+	private long callId;
+	private Operation operation;
+	private Serializable argument;
+	private boolean result;
+	private User user;
+
+	private ClusterMessage(Kind kind, String node) {
+		this.kind = kind;
+		this.node = node;
+	}
+
+	public static ClusterMessage hello(String node) {
+		return new ClusterMessage(Kind.HELLO, node);
+	}
+
+	public static ClusterMessage presence(String node, String name, boolean online) {
+		ClusterMessage presence = new ClusterMessage(Kind.PRESENCE, node);
+		presence.name = name;
+		presence.online = online;
+		return presence;
+	}
+
+	public static ClusterMessage snapshot(String node, Collection<String> names) {
+		ClusterMessage snapshot = new ClusterMessage(Kind.SNAPSHOT, node);
+		snapshot.names = new ArrayList<String>(names);
+		return snapshot;
+	}
+
+	public static ClusterMessage forward(String node, Message message) {
+		ClusterMessage forward = new ClusterMessage(Kind.FORWARD, node);
+		forward.message = message;
+		return forward;
+	}
+
+	/**
+	 * @param node
+	 * @param callId Id of the call, answered with the same id. 0 if no answer is expected.
+	 * @param operation
+	 * @param name Name of the user.
+	 * @param argument Password, {@code User} or {@code UserDelta} of the operation, null if it has none.
+	 */
+	public static ClusterMessage userRequest(String node, long callId, Operation operation, String name, Serializable argument) {
+		ClusterMessage request = new ClusterMessage(Kind.USER_REQUEST, node);
+		request.callId = callId;
+		request.operation = operation;
+		request.name = name;
+		request.argument = argument;
+		return request;
+	}
+
+	/**
+	 * @param node
+	 * @param callId Id of the answered call.
+	 * @param result
+	 * @param user {@code User} requested, null if none.
+	 */
+	public static ClusterMessage userReply(String node, long callId, boolean result, User user) {
+		ClusterMessage reply = new ClusterMessage(Kind.USER_REPLY, node);
+		reply.callId = callId;
+		reply.result = result;
+		reply.user = user;
+		return reply;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return Id of the node that sent this message.
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * @return Name of the user of a {@code PRESENCE} or {@code USER_REQUEST} message.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true if the user of a {@code PRESENCE} message has identified, false if it has left.
+	 */
+	public boolean isOnline() {
+		return online;
+	}
+
+	/**
+	 * @return Names of the users of a {@code SNAPSHOT} message.
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * @return {@code Message} of a {@code FORWARD} message.
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return Id of the call of a {@code USER_REQUEST} or {@code USER_REPLY} message, 0 if the request expects no answer.
+	 */
+	public long getCallId() {
+		return callId;
+	}
+
+	/**
+	 * @return {@code Operation} of a {@code USER_REQUEST} message.
+	 */
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return Password, {@code User} or {@code UserDelta} of a {@code USER_REQUEST} message, null if its operation has none.
+	 */
+	public Serializable getArgument() {
+		return argument;
+	}
+
+	/**
+	 * @return Result of the operation of a {@code USER_REPLY} message.
+	 */
+	public boolean getResult() {
+		return result;
+	}
+
+	/**
+	 * @return {@code User} of a {@code USER_REPLY} message, null if none was requested or it does not exist.
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	@Override
+	public String toString() {
+		return kind+(operation != null ? " "+operation : "")+" from "+node;
+	}
+}
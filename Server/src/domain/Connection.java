@@ -1,117 +1,334 @@
 package domain;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import application.ServerController;
 
-public class Connection {
-	
-	private Socket socket;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+/**
+ * <p>Connection with a Client. Messages are sent without blocking: they are put in a bounded outbound queue that is written by another thread, 
+ * several messages at a time. When the queue of a slow Client is full, the {@code Message} is dropped or the {@code Connection} is closed, 
+ * depending on the {@code slowConsumerPolicy} setting.</p>
+ * <p>Messages are queued one at a time in every {@code Connection}, so the codec accepted in a {@code LOGIN_REPLY} is used for exactly the messages queued after it, 
+ * even if several threads send at once. The writer is started once the {@code Message} has been queued, without holding the lock.</p>
+ * <p>Messages are written in the order they are queued, so a {@code WriteListener} can be told when all the messages queued before it have been written, 
+ * or that they may have been discarded if the {@code Connection} is closed first.</p>
+ * <p>The time taken to queue every {@code Message} is counted in the {@code connection.send} histogram of the {@code Metrics}, 
+ * and the bytes read and written by all the connections in the {@code connection.bytes} counters.</p>
+ * <p>Every {@code Connection} gets a unique id when it is accepted. The id identifies the {@code Connection} regardless of how many Clients share the same remote address.</p>
+ */
+public abstract class Connection {
+
+	public static final String DISCONNECT_SLOW_CONSUMERS = "disconnect";
+	public static final String DROP_FOR_SLOW_CONSUMERS = "drop";
+
+	private static final AtomicLong ids = new AtomicLong();
+	private static final Histogram sending = Metrics.histogram("connection.send");
+	protected static final LongAdder bytesRead = Metrics.counter("connection.bytes.read");
+	protected static final LongAdder bytesWritten = Metrics.counter("connection.bytes.written");
+
+	private final long id = ids.incrementAndGet();
 	private String address;
+	private AtomicInteger queued = new AtomicInteger();
+	private final Object enqueueLock = new Object();
+	private long enqueued;
+	private AtomicLong written = new AtomicLong();
+	private Queue<Mark> marks = new ConcurrentLinkedQueue<Mark>();
+	private boolean discarding;
+	private volatile long lastReceived = System.currentTimeMillis();
+	private volatile String protocol;
 
 	/**
-	 * Creates a new Connection with the inserted {@code Socket} and starts a new {@code Thread} to listen to the {@code Socket}
-	 * @param socket
-	 * @throws IOException If there is a problem creating the input and output Streams of the {@code Socket}.
-	 * @throws IllegalArgumentException If the {@code Socket} inserted is null.
+	 * <p>Queues the inserted {@code Message} to be sent to the remote end of this {@code Connection}. This method never blocks.
+	 * If the {@code Message} has no destination address, this method ads the remote address of this {@code Connection}</p>
+	 * @param message
+	 * @return {@code SendResult} telling if the {@code Message} has been queued.
+	 * @throws IllegalArgumentException If the argument is null.
 	 */
-	public Connection(Socket socket) throws IOException {
-		if (socket == null) throw new IllegalArgumentException("Can't create connection with empty socket.");
-		this.socket = socket;
-		setConnectionAddress(socket);
-		//address = socket.getInetAddress().getHostAddress();
-		System.out.println(address);
-		in = new ObjectInputStream(socket.getInputStream());
-		out = new ObjectOutputStream(socket.getOutputStream());
-		listen();
+	public SendResult send(Message message) {
+		long start = System.nanoTime();
+		prepare(message);
+		SendResult refused = admit();
+		if (refused != null) return refused;
+		try {
+			synchronized (enqueueLock) {
+				enqueue(message);
+				enqueued++;
+			}
+		} catch (IOException e) {
+			queued.decrementAndGet();
+			ServerController.getInstance().exception(e);
+			return SendResult.FAILED;
+		}
+		startWriting();
+		sending.recordSince(start);
+		return SendResult.QUEUED;
 	}
-	
+
 	/**
-	 * This method is used to avoid getting local IP adresses if the Client is being executed in the same machine than the Server.
-	 * @throws IOException If there was a problem obtaining the address
+	 * <p>Queues a {@code Message} that is sent to many connections at once. This method never blocks. 
+	 * Unlike {@link Connection#send(Message)} the {@code Message} is not changed nor logged, since it is shared with the rest of connections.</p>
+	 * @param frame
+	 * @return {@code SendResult} telling if the {@code Message} has been queued.
+	 * @throws IllegalArgumentException If the argument is null.
 	 */
-	private void setConnectionAddress (Socket socket) throws IOException {
-		if (Settings.localTest) address = socket.getInetAddress().getHostAddress();	
-		else if (Settings.clientRunningInSameMachineAsServer) address = (socket.getInetAddress().getHostAddress().contains("192.168") ? InetUtils.getPublicAddress() : socket.getInetAddress().getHostAddress());
-		else address = socket.getInetAddress().getHostAddress();
+	public SendResult send(SharedFrame frame) {
+		if (frame == null) throw new IllegalArgumentException("Argument can't be null.");
+		SendResult refused = admit();
+		if (refused != null) return refused;
+		long start = System.nanoTime();
+		try {
+			synchronized (enqueueLock) {
+				enqueue(frame);
+				enqueued++;
+			}
+		} catch (IOException e) {
+			queued.decrementAndGet();
+			ServerController.getInstance().exception(e);
+			return SendResult.FAILED;
+		}
+		startWriting();
+		sending.recordSince(start);
+		return SendResult.QUEUED;
 	}
 
 	/**
-	 * <p>Sends the inserted {@code Message} to the {@code OutputStream} attached to the {@code Socket} of this {@code Connection}. 
-	 * If the {@code Message} has no destination address, this method ads the remote address connected to the {@code Socket}</p>
-	 * @param message
-	 * @throws IOException If a problem occurs while sending the message.
+	 * <p>Tells the listener once all the messages queued so far have been written, or once this {@code Connection} has been closed if they have not.
+	 * If it has already been closed the listener is told right away, by the calling thread.</p>
+	 * @param listener
 	 * @throws IllegalArgumentException If the argument is null.
 	 */
-	public void send(Message message) throws IOException {
-		if (message == null) throw new IllegalArgumentException("Argument can't be null.");
-		if (message.getDestinationAddress() == null) message.setDestinationAddress(address);
-		out.writeObject(message);
-		ServerController.getInstance().log("Message sent: \n"+message.toString());
-		out.flush();
+	public void whenWritten(WriteListener listener) {
+		if (listener == null) throw new IllegalArgumentException("Argument can't be null.");
+		long position;
+		synchronized (enqueueLock) {
+			position = enqueued;
+		}
+		boolean discarded;
+		synchronized (marks) {
+			discarded = discarding;
+			if (!discarded) marks.add(new Mark(position, listener));
+		}
+		if (discarded) listener.discarded();
+		else release(written.get());
 	}
-	
+
+	/**
+	 * <p>Starts reading and writing. Called once, after this {@code Connection} has been registered, 
+	 * so that it can't be closed and purged before it is registered.</p>
+	 */
+	public abstract void start();
+
+	/**
+	 * @return true if this {@code Connection} is open, false if it has been closed.
+	 */
+	public abstract boolean isActive();
+
+	/**
+	 * <p>Closes this {@code Connection}, discarding the messages that have not been written yet. Does nothing if it was already closed.</p>
+	 */
+	public abstract void close();
+
 	/**
-	 * @return {@code String} with the remote IP address attached to the {@code Socket} of this {@code Connection}.
+	 * @return {@code String} with the remote IP address attached to this {@code Connection}.
 	 */
 	public String getAddress() {
 		return address;
 	}
-	
+
+	/**
+	 * @return Unique id of this {@code Connection}, greater than 0.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return Milliseconds since the last {@code Message} was received, or since this {@code Connection} was accepted if none has been received.
+	 */
+	public long getIdleTime() {
+		return System.currentTimeMillis() - lastReceived;
+	}
+
+	/**
+	 * @return Protocol accepted in the {@code LOGIN_REPLY} of this {@code Connection}, null if the Client has negotiated none, as the ones of previous versions.
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return Number of messages queued that have not been written yet.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * <p>Adds the {@code Message} to the outbound queue. Called with the lock of this {@code Connection} held, so it must not block nor write.</p>
+	 * @param message
+	 * @throws IOException If the {@code Message} could not be encoded.
+	 */
+	protected abstract void enqueue(Message message) throws IOException;
+
 	/**
-	 * @return true if the {@code Socket} of this {@code Connection} is open, false if it has been closed.
+	 * <p>Adds the shared {@code Message} to the outbound queue. Called with the lock of this {@code Connection} held, so it must not block nor write. 
+	 * By default the {@code Message} is queued as any other, connections that write frames should use the shared ones instead.</p>
+	 * @param frame
+	 * @throws IOException If the {@code Message} could not be encoded.
 	 */
-	public boolean isActive() {
-		return !socket.isClosed();
+	protected void enqueue(SharedFrame frame) throws IOException {
+		enqueue(frame.getMessage());
 	}
-	
+
+	/**
+	 * <p>Makes sure the queued messages will be written. Called after every {@code Message} queued, without the lock of this {@code Connection}.</p>
+	 */
+	protected abstract void startWriting();
+
 	/**
-	 *<p>Two connections are equal if they have the same remote address.</p>
+	 * <p>Takes a place in the outbound queue, enforcing the {@code outboundQueueLimit} and the {@code slowConsumerPolicy}.</p>
+	 * @return null if there is place for another {@code Message}, the reason why it can't be queued otherwise.
+	 */
+	private SendResult admit() {
+		if (!isActive()) return SendResult.CLOSED;
+		if (queued.incrementAndGet() > Settings.outboundQueueLimit) {
+			queued.decrementAndGet();
+			if (DROP_FOR_SLOW_CONSUMERS.equals(Settings.slowConsumerPolicy)) return SendResult.DROPPED;
+			close();
+			return SendResult.DISCONNECTED;
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Must be called by the writer every time queued messages have been written.</p>
+	 * @param count Number of messages written.
+	 */
+	protected void written(int count) {
+		queued.addAndGet(-count);
+		long total = written.addAndGet(count);
+		if (!marks.isEmpty()) release(total);
+	}
+
+	/**
+	 * <p>Must be called by {@code close}, once the messages that have not been written are discarded. 
+	 * The {@code WriteListener}s still waiting are told, and the ones added afterwards are told right away.</p>
+	 */
+	protected void discardUnwritten() {
+		List<Mark> discarded;
+		synchronized (marks) {
+			discarding = true;
+			discarded = new ArrayList<Mark>(marks);
+			marks.clear();
+		}
+		for (Mark mark : discarded) {
+			mark.listener.discarded();
+		}
+	}
+
+	/**
+	 * This method is used to avoid getting local IP adresses if the Client is being executed in the same machine than the Server.
+	 * @param remoteAddress
+	 * @throws IOException If there was a problem obtaining the address
+	 */
+	protected void setConnectionAddress(InetAddress remoteAddress) throws IOException {
+		if (Settings.localTest) address = remoteAddress.getHostAddress();
+		else if (Settings.clientRunningInSameMachineAsServer) address = (remoteAddress.getHostAddress().contains("192.168") ? InetUtils.getPublicAddress() : remoteAddress.getHostAddress());
+		else address = remoteAddress.getHostAddress();
+	}
+
+	/**
+	 * <p>Hands a received {@code Message} to the {@code ServerController} and sends back the reply, if there is one.
+	 * The {@code Message} is stamped with the id of this {@code Connection}, replacing the one sent by the Client, so a Client can only identify its own {@code Connection}.</p>
+	 * @param message
+	 */
+	protected void received(Message message) {
+		lastReceived = System.currentTimeMillis();
+		message.setConnectionId(id);
+		Message reply = ServerController.getInstance().messageReceived(message);
+		if (reply != null) {
+			SendResult result = send(reply);
+			if (result != SendResult.QUEUED) ServerController.getInstance().sendFailed(reply, result);
+		}
+	}
+
+	/**
+	 * <p>Adds the destination address to the {@code Message} if it has none, and logs it as sent.</p>
+	 * @param message
+	 * @throws IllegalArgumentException If the argument is null.
+	 */
+	protected void prepare(Message message) {
+		if (message == null) throw new IllegalArgumentException("Argument can't be null.");
+		if (message.getDestinationAddress() == null) message.setDestinationAddress(address);
+		ServerController.getInstance().log(LogLevel.DEBUG, "Message sent: \n", message);
+	}
+
+	/**
+	 * @param message {@code Message} that has just been encoded with the current {@code MessageCodec}.
+	 * @param current {@code MessageCodec} used until now.
+	 * @return {@code MessageCodec} of the protocol accepted if the {@code Message} is a successful {@code LOGIN_REPLY}, the current one otherwise.
+	 */
+	protected MessageCodec negotiate(Message message, MessageCodec current) {
+		if (message.getMessageType() == MessageType.LOGIN_REPLY && message.getCondition() && message.getProtocol() != null) {
+			MessageCodec negotiated = MessageCodec.forProtocol(message.getProtocol());
+			if (negotiated != null) {
+				protocol = negotiated.getProtocol();
+				return negotiated;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 *<p>Two connections are equal if they have the same id.</p>
 	 */
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof Connection) {
 			Connection connection = (Connection) obj;
-			return address.equals(connection.getAddress());
+			return id == connection.getId();
 		}
 		return false;
 	}
-	
-	/**
-	 * <p>Creates and executes a new thread that receives messages from the attached socket and sends replies.</p>
-	 */
-	private void listen() {
-		Thread listener = new Thread() {
-			public void run() {
-				Message reply;
-				while (isActive()) {
-					try {
-						reply = ServerController.getInstance().messageReceived((Message) in.readObject());
-						if (reply != null) {
-							send(reply);
-						}
-					} catch (ClassNotFoundException e) {
-						//Object received not Message TODO
-					} catch (IOException e) {
-						close();
-					}
-				}
-			}
-			
-			private void close() {
-				try {
-					socket.close();
-					ServerController.getInstance().disconnected(socket.toString());
-				} catch (IOException e) {
-					ServerController.getInstance().error(e.getMessage());
-				}
-			}
-		};
-		listener.start();
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(id);
+	}
+
+	/**
+	 * Tells the {@code WriteListener}s whose messages are among the ones written.
+	 * @param total Number of messages written since this {@code Connection} was accepted.
+	 */
+	private void release(long total) {
+		List<Mark> released = new ArrayList<Mark>();
+		synchronized (marks) {
+			while (!marks.isEmpty() && marks.peek().position <= total) released.add(marks.poll());
+		}
+		for (Mark mark : released) {
+			mark.listener.written();
+		}
+	}
+
+	/**
+	 * <p>{@code WriteListener} waiting until the number of messages written reaches its position.</p>
+	 */
+	private static class Mark {
+
+		private final long position;
+		private final WriteListener listener;
+
+		public Mark(long position, WriteListener listener) {
+			this.position = position;
+			this.listener = listener;
+		}
 	}
 }
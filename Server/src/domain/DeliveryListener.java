@@ -0,0 +1,13 @@
+package domain;
+
+/**
+ * <p>Is told when a {@code Message} sent to several users has been handed to all of them.</p>
+ */
+public interface DeliveryListener {
+
+	/**
+	 * Called once, by the last thread that hands the {@code Message} to its recipients.
+	 * @param report {@code DeliveryReport} with the result of every recipient.
+	 */
+	void delivered(DeliveryReport report);
+}
@@ -0,0 +1,98 @@
+package domain;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Result of sending a {@code Message} to several users: the {@code SendResult} of every recipient, in the order they were given. 
+ * The result of every recipient must be set by a single thread, and read once all of them have finished, which a {@code DeliveryListener} is told.</p>
+ */
+public class DeliveryReport {
+
+	private List<String> recipients;
+	private SendResult[] results;
+
+	/**
+	 * @param recipients Names of the users the {@code Message} is sent to.
+	 * @throws IllegalArgumentException If the argument is null.
+	 */
+	public DeliveryReport(List<String> recipients) {
+		if (recipients == null) throw new IllegalArgumentException("Argument can't be null.");
+		this.recipients = recipients;
+		results = new SendResult[recipients.size()];
+	}
+
+	/**
+	 * @return Number of recipients.
+	 */
+	public int size() {
+		return recipients.size();
+	}
+
+	/**
+	 * @param index
+	 * @return Name of the recipient in the specified position.
+	 */
+	public String getRecipient(int index) {
+		return recipients.get(index);
+	}
+
+	/**
+	 * @param index
+	 * @param result {@code SendResult} of the recipient in the specified position.
+	 */
+	public void setResult(int index, SendResult result) {
+		results[index] = result;
+	}
+
+	/**
+	 * @param index
+	 * @return {@code SendResult} of the recipient in the specified position, null if it has not been sent yet.
+	 */
+	public SendResult getResult(int index) {
+		return results[index];
+	}
+
+	/**
+	 * @param result
+	 * @return Number of recipients with the specified {@code SendResult}.
+	 */
+	public int count(SendResult result) {
+		int count = 0;
+		for (SendResult each : results) {
+			if (each == result) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return Name of every recipient mapped to the name of its {@code SendResult}, in the order they were given.
+	 */
+	public LinkedHashMap<String, String> toMap() {
+		LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < results.length; i++) {
+			map.put(recipients.get(i), String.valueOf(results[i]));
+		}
+		return map;
+	}
+
+	/**
+	 * Number of recipients with every {@code SendResult}, for example {@code "3 recipients: 2 QUEUED, 1 DROPPED"}.
+	 */
+	@Override
+	public String toString() {
+		Map<SendResult, Integer> counts = new EnumMap<SendResult, Integer>(SendResult.class);
+		for (SendResult result : results) {
+			if (result != null) counts.put(result, counts.containsKey(result) ? counts.get(result) + 1 : 1);
+		}
+		String s = results.length+" recipients";
+		String separator = ": ";
+		for (Map.Entry<SendResult, Integer> count : counts.entrySet()) {
+			s += separator+count.getValue()+" "+count.getKey();
+			separator = ", ";
+		}
+		return s;
+	}
+}
@@ -0,0 +1,116 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import application.ServerController;
+
+/**
+ * <p>Thread that owns a {@code Selector} and dispatches the readiness events of every channel registered in it.
+ * Work that has to touch the registered channels from other threads is handed to the loop with {@link EventLoop#execute(Runnable)}.</p>
+ */
+public class EventLoop extends Thread {
+
+	/**
+	 * Object attached to a {@code SelectionKey} of an {@code EventLoop}, notified every time its channel is ready.
+	 */
+	public interface Handler {
+		void ready(SelectionKey key) throws IOException;
+		void failed(IOException e);
+	}
+
+	private Selector selector;
+	private Queue<Runnable> tasks;
+
+	/**
+	 * @param name
+	 * @throws IOException If the {@code Selector} could not be opened.
+	 */
+	public EventLoop(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * <p>Queues the inserted task to be executed by this loop and wakes it up.</p>
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if the current thread is this loop.
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * <p>Registers the inserted channel in the {@code Selector} of this loop. Must be called from this loop.</p>
+	 * @param channel
+	 * @param ops
+	 * @param handler
+	 * @return {@code SelectionKey} of the registered channel.
+	 * @throws ClosedChannelException If the channel is closed.
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+
+	@Override
+	public void run() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				runTasks();
+				for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					dispatch(key);
+				}
+			} catch (IOException e) {
+				ServerController.getInstance().exception(e);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				ServerController.getInstance().exception(e);
+			}
+		}
+	}
+
+	/**
+	 * Notifies the {@code Handler} of a ready key. If it fails, even with an unexpected exception while handling what its channel received,
+	 * only that {@code Handler} is told to fail, so that the loop goes on serving the rest of channels.
+	 * @param key
+	 */
+	private void dispatch(SelectionKey key) {
+		Handler handler = (Handler) key.attachment();
+		try {
+			if (key.isValid()) handler.ready(key);
+		} catch (CancelledKeyException e) {
+			//Channel closed while being processed
+		} catch (IOException e) {
+			handler.failed(e);
+		} catch (RuntimeException e) {
+			ServerController.getInstance().exception(e);
+			handler.failed(new IOException(e));
+		}
+	}
+}
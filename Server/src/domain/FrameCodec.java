@@ -0,0 +1,38 @@
+package domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Builds the length-prefixed frames used by the non-blocking transport and by the negotiated protocols of the blocking one.
+ * Every frame is a 4 byte big-endian length followed by a {@code Message} encoded on its own by a {@code MessageCodec}, 
+ * so that each frame can be decoded without the state of the previous ones.</p>
+ */
+public class FrameCodec {
+
+	public static final int HEADER_SIZE = 4;
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * @param message
+	 * @param codec
+	 * @return {@code ByteBuffer} ready to be written, containing the length header and the encoded {@code Message}.
+	 * @throws IOException If the {@code Message} could not be encoded.
+	 */
+	public static ByteBuffer encode(Message message, MessageCodec codec) throws IOException {
+		byte[] body = codec.encode(message);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + body.length);
+		frame.putInt(body.length);
+		frame.put(body);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * @param length
+	 * @throws IOException If the length read from a frame header is not valid.
+	 */
+	public static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_SIZE) throw new IOException("Invalid frame length: "+length);
+	}
+}
@@ -0,0 +1,76 @@
+package domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Consistent hash of keys to nodes. Every node is placed at a number of points of a ring of 64 bit hashes, and a key is owned by the node of the first point
+ * at or after the hash of the key. Adding or removing a node therefore only changes the owner of the keys between its points and the previous ones,
+ * and the keys of every node are spread evenly among the rest.</p>
+ * <p>A ring is immutable, so it can be shared by any number of threads.</p>
+ */
+public class HashRing {
+
+	public static final int DEFAULT_POINTS = 128;
+
+	private TreeMap<Long, String> points;
+	private List<String> nodes;
+
+	/**
+	 * @param nodes Ids of the nodes.
+	 * @param pointsPerNode Number of points of every node in the ring.
+	 * @throws IllegalArgumentException If there are no nodes or the number of points is not positive.
+	 */
+	public HashRing(Collection<String> nodes, int pointsPerNode) {
+		if (nodes == null || nodes.isEmpty()) throw new IllegalArgumentException("A hash ring needs at least one node.");
+		if (pointsPerNode <= 0) throw new IllegalArgumentException("Points per node must be positive.");
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+		points = new TreeMap<Long, String>();
+		for (String node : this.nodes) {
+			for (int i = 0; i < pointsPerNode; i++) {
+				points.put(hash(node+"#"+i), node);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return Id of the node that owns the key.
+	 * @throws IllegalArgumentException If the key is null.
+	 */
+	public String ownerOf(String key) {
+		if (key == null) throw new IllegalArgumentException("Key can't be null.");
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+		return point != null ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * @return Ids of the nodes of the ring.
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param key
+	 * @return 64 bit FNV-1a hash of the UTF-8 bytes of the key, with the bits mixed by the finalizer of MurmurHash3 so that similar keys land far apart.
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb3fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
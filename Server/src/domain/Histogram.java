@@ -0,0 +1,111 @@
+package domain;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * <p>Histogram of non-negative values, such as latencies in nanoseconds, with buckets in the manner of HdrHistogram: every power of two is split 
+ * in {@value Histogram#SUB_BUCKETS} buckets of the same width, so any value is counted with a relative error of at most 1/{@value Histogram#SUB_BUCKETS} 
+ * using a fixed array of counters, whatever the range of the values.</p>
+ * <p>Recording a value takes constant time and no locks, so it can be done by any number of threads at the same time. 
+ * Percentiles read while values are being recorded may miss the latest ones.</p>
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BITS = 3;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private LongAccumulator max;
+
+	public Histogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(new LongBinaryOperator() {
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+	}
+
+	/**
+	 * Counts the value. Negative values are counted as 0.
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Counts the nanoseconds elapsed since the start.
+	 * @param start Value of {@link System#nanoTime()} at the start.
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return Mean of the values counted, 0 if there are none.
+	 */
+	public long getMean() {
+		long values = count.sum();
+		return values == 0 ? 0 : sum.sum() / values;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 * @return Highest value of the bucket where the percentile falls, never higher than the maximum. 0 if there are no values.
+	 */
+	public long getPercentile(double percentile) {
+		long values = count.sum();
+		if (values == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(values * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(highestOf(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * @param value
+	 * @return Bucket of the value: values under {@value Histogram#SUB_BUCKETS} have a bucket each, 
+	 * higher values go to one of the {@value Histogram#SUB_BUCKETS} buckets of their highest power of two.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @param index
+	 * @return Highest value counted in the bucket.
+	 */
+	private static long highestOf(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int magnitude = index / SUB_BUCKETS + SUB_BITS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - SUB_BITS);
+		long highest = lowest + (1L << (magnitude - SUB_BITS)) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
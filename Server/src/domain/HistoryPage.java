@@ -0,0 +1,81 @@
+package domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>Page of the chat history with a contact. A Client sends it empty in a {@code HISTORY_REQUEST} and the server sends it back filled in a {@code HISTORY_REPLY}.</p>
+ */
+public class HistoryPage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String contact;
+	private long from;
+	private int count;
+	private long total;
+	private ArrayList<String> entries;
+
+	/**
+	 * @param contact Name of the contact of the conversation.
+	 * @param from Number of the first entry requested, negative to request the last entries.
+	 * @param count Maximum number of entries requested.
+	 * @throws IllegalArgumentException If the contact is null.
+	 */
+	public HistoryPage(String contact, long from, int count) {
+		if (contact == null) throw new IllegalArgumentException("Contact can't be null.");
+		this.contact = contact;
+		this.from = from;
+		this.count = count;
+		entries = new ArrayList<String>();
+	}
+
+	public String getContact() {
+		return contact;
+	}
+
+	/**
+	 * @return Number of the first entry of the page.
+	 */
+	public long getFrom() {
+		return from;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Number of entries of the whole conversation when the page was read.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return Entries of the page, in the order they were added.
+	 */
+	public List<String> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Fills the page with the entries read.
+	 * @param from Number of the first entry read.
+	 * @param entries
+	 * @param total Number of entries of the whole conversation.
+	 */
+	public void fill(long from, Collection<String> entries, long total) {
+		this.from = from;
+		this.entries = new ArrayList<String>(entries);
+		this.count = this.entries.size();
+		this.total = total;
+	}
+
+	@Override
+	public String toString() {
+		return contact+" ["+from+", "+(from + entries.size())+") of "+total;
+	}
+}
@@ -0,0 +1,47 @@
+package domain;
+
+/**
+ * <p>Entry of the server log. The subject of the entry, usually a {@code Message}, is turned into text when the entry is created, 
+ * since the thread that logs it may keep changing it while the entry waits to be written.</p>
+ */
+public final class LogEntry {
+
+	private final long time;
+	private final LogLevel level;
+	private final String text;
+
+	/**
+	 * @param level
+	 * @param text
+	 * @param subject Object appended to the text, null if none.
+	 */
+	public LogEntry(LogLevel level, String text, Object subject) {
+		this.time = System.currentTimeMillis();
+		this.level = level;
+		this.text = subject == null ? text : text+subject.toString();
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public LogLevel getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return Text of the entry followed by its subject.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Appends the text of the entry followed by its subject.
+	 * @param builder
+	 * @return The builder.
+	 */
+	public StringBuilder appendTo(StringBuilder builder) {
+		return builder.append(text);
+	}
+}
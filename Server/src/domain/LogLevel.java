@@ -0,0 +1,33 @@
+package domain;
+
+/**
+ * <p>Importance of a log entry. Entries below the {@code logLevel} setting are discarded before being formatted.</p>
+ */
+public enum LogLevel {
+
+	/**
+	 * Every {@code Message} received and sent.
+	 */
+	DEBUG,
+	
+	/**
+	 * Connections and state changes of the server.
+	 */
+	INFO,
+	
+	/**
+	 * Errors and exceptions.
+	 */
+	ERROR;
+
+	/**
+	 * @param name
+	 * @return {@code LogLevel} with the inserted name ignoring case, {@code INFO} if there is none.
+	 */
+	public static LogLevel parse(String name) {
+		for (LogLevel level : values()) {
+			if (level.name().equalsIgnoreCase(name)) return level;
+		}
+		return INFO;
+	}
+}
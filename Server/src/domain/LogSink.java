@@ -0,0 +1,19 @@
+package domain;
+
+import java.util.List;
+
+/**
+ * <p>Destination of the server log. Entries are handed over in batches, always from the same logging thread.</p>
+ */
+public interface LogSink {
+
+	/**
+	 * @param entries Entries in the order they were logged.
+	 */
+	void write(List<LogEntry> entries);
+
+	/**
+	 * <p>Releases the resources of this {@code LogSink}. No entries are written after this method is called.</p>
+	 */
+	void close();
+}
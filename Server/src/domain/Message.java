@@ -1,13 +1,34 @@
 package domain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
+/**
+ * <p>The time stamp is kept as milliseconds since the epoch. Serialized messages still carry it as the {@code Date} field {@code timeStamp},
+ * so they can be read and written by Clients and stores of previous versions.</p>
+ */
 public class Message implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 	private static final String DEFAULT_DATE_FORMAT = "HH:mm - dd/MM";
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("messageType", MessageType.class),
+			new ObjectStreamField("sourceName", String.class),
+			new ObjectStreamField("sourceAddress", String.class),
+			new ObjectStreamField("destinationName", String.class),
+			new ObjectStreamField("destinationAddress", String.class),
+			new ObjectStreamField("content", String.class),
+			new ObjectStreamField("condition", String.class),
+			new ObjectStreamField("additionalData", Serializable.class),
+			new ObjectStreamField("timeStamp", Date.class),
+			new ObjectStreamField("protocol", String.class),
+			new ObjectStreamField("connectionId", long.class)
+	};
 	
 	private MessageType messageType;
 	
@@ -20,7 +41,10 @@ public class Message implements Serializable {
 	private String content;
 	private String condition;
 	private Serializable additionalData;
-	private Date timeStamp;
+	private long time;
+	private String protocol;
+	private long connectionId;
+	private transient ByteBuffer frame;
 
 	/**
 	 * <p>Creates a message of the type specified in the parameter.</p>
@@ -28,40 +52,56 @@ public class Message implements Serializable {
 	 */
 	public Message(MessageType messageType) {
 		this.messageType = messageType;
-		timeStamp = new Date();
+		time = System.currentTimeMillis();
 	}
 	
 	/**
 	 * <p>Returns the TimeStamp with the specified Date Format. If the parameter is null the format is going mthe default one: {@value Message#DEFAULT_DATE_FORMAT}.</p>
-	 * @param 
+	 * @param format Pattern of a {@code TimeFormat}.
 	 * @return A String containing the TimeStamp of the message with the format specified in the parameter.
+	 * @throws IllegalArgumentException If the format is not valid.
 	 */
 	public String getTimeStamp(String format) {
-		SimpleDateFormat dateFormat = new SimpleDateFormat(format == null ? DEFAULT_DATE_FORMAT : format);
-		return dateFormat.format(timeStamp);
+		return TimeFormat.of(format == null ? DEFAULT_DATE_FORMAT : format).format(time);
+	}
+
+	/**
+	 * @return Time stamp in milliseconds since the epoch.
+	 */
+	public long getTime() {
+		return time;
 	}
 	
+	/**
+	 * The content of login and session messages, which is a password or a session token, is left out.
+	 */
 	@Override
 	public String toString() {
-		String s = "";
-		
-		s += "TYPE [" + messageType.toString() + "]";
+		return appendTo(new StringBuilder(128)).toString();
+	}
+
+	/**
+	 * Appends the text of {@link Message#toString()} to the builder, field by field.
+	 * @param builder
+	 * @return The builder.
+	 */
+	public StringBuilder appendTo(StringBuilder builder) {
+		builder.append("TYPE [").append(messageType).append(']');
 		if (sourceName != null || sourceAddress != null) {
-			s += " FROM ";
-			if (sourceName != null) s += "[" + sourceName + "]";
-			if (sourceAddress != null) s += "[" + sourceAddress + "]";
+			builder.append(" FROM ");
+			if (sourceName != null) builder.append('[').append(sourceName).append(']');
+			if (sourceAddress != null) builder.append('[').append(sourceAddress).append(']');
 		}
 		if (destinationName != null || destinationAddress != null) {
-			s += " TO ";
-			if (destinationName != null) s += "[" + destinationName + "]";
-			if (destinationAddress != null) s += "[" + destinationAddress + "]";
+			builder.append(" TO ");
+			if (destinationName != null) builder.append('[').append(destinationName).append(']');
+			if (destinationAddress != null) builder.append('[').append(destinationAddress).append(']');
 		}
-		if (content != null) s += " CONTENT [" + content + "]";
-		if (condition != null) s += " CONDITION [" + condition + "]";
-		if (additionalData != null) s += " EXTRA DATA ["+additionalData.toString()+"]";
-		s += " TIMESTAMP ["+ getTimeStamp(DEFAULT_DATE_FORMAT) + "]";
-		
-		return s;
+		if (content != null) builder.append(" CONTENT [").append(isSecret() ? "***" : content).append(']');
+		if (condition != null) builder.append(" CONDITION [").append(condition).append(']');
+		if (additionalData != null) builder.append(" EXTRA DATA [").append(additionalData.toString()).append(']');
+		builder.append(" TIMESTAMP [").append(getTimeStamp(DEFAULT_DATE_FORMAT)).append(']');
+		return builder;
 	}
 
 	public String getSourceName() {
@@ -112,6 +152,10 @@ public class Message implements Serializable {
 		this.condition = condition;
 	}
 
+	String getConditionText() {
+		return condition;
+	}
+
 	public Serializable getAdditionalData() {
 		return additionalData;
 	}
@@ -123,4 +167,101 @@ public class Message implements Serializable {
 	public MessageType getMessageType() {
 		return messageType;
 	}
+
+	/**
+	 * @return Name of the wire protocol requested in a {@code LOGIN_REQUEST} or accepted in a {@code LOGIN_REPLY}, null if none.
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * @return Id of the {@code Connection} a {@code LOGIN_REPLY} is sent through or a received {@code Message} came from, 0 if none.
+	 */
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	public void setConnectionId(long connectionId) {
+		this.connectionId = connectionId;
+	}
+
+	/**
+	 * @return Copy of this {@code Message} with the same fields and time stamp. The additional data is shared with this one, and the frame it was received in is not copied.
+	 */
+	public Message copy() {
+		Message copy = new Message(messageType);
+		copy.sourceName = sourceName;
+		copy.sourceAddress = sourceAddress;
+		copy.destinationName = destinationName;
+		copy.destinationAddress = destinationAddress;
+		copy.content = content;
+		copy.condition = condition;
+		copy.additionalData = additionalData;
+		copy.time = time;
+		copy.protocol = protocol;
+		copy.connectionId = connectionId;
+		return copy;
+	}
+
+	void setTime(long time) {
+		this.time = time;
+	}
+
+	/**
+	 * @param frame Frame this {@code Message} was received in, which can be written again as it is instead of encoding the {@code Message}.
+	 * Once it is set the {@code Message} must not be changed, except for its destination address and connection id, which are not relayed.
+	 */
+	void setFrame(ByteBuffer frame) {
+		this.frame = frame;
+	}
+
+	/**
+	 * @return Frame this {@code Message} was received in, null if there is none. It is returned only once, so that a single {@code Connection} writes it and gives it back to the {@code BufferPool}.
+	 */
+	ByteBuffer takeFrame() {
+		ByteBuffer taken = frame;
+		frame = null;
+		return taken;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("messageType", messageType);
+		fields.put("sourceName", sourceName);
+		fields.put("sourceAddress", sourceAddress);
+		fields.put("destinationName", destinationName);
+		fields.put("destinationAddress", destinationAddress);
+		fields.put("content", content);
+		fields.put("condition", condition);
+		fields.put("additionalData", additionalData);
+		fields.put("timeStamp", new Date(time));
+		fields.put("protocol", protocol);
+		fields.put("connectionId", connectionId);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		messageType = (MessageType) fields.get("messageType", null);
+		sourceName = (String) fields.get("sourceName", null);
+		sourceAddress = (String) fields.get("sourceAddress", null);
+		destinationName = (String) fields.get("destinationName", null);
+		destinationAddress = (String) fields.get("destinationAddress", null);
+		content = (String) fields.get("content", null);
+		condition = (String) fields.get("condition", null);
+		additionalData = (Serializable) fields.get("additionalData", null);
+		Date timeStamp = (Date) fields.get("timeStamp", null);
+		time = timeStamp == null ? 0 : timeStamp.getTime();
+		protocol = (String) fields.get("protocol", null);
+		connectionId = fields.get("connectionId", 0L);
+	}
+
+	private boolean isSecret() {
+		return messageType == MessageType.LOGIN_REQUEST || messageType == MessageType.SESSION_TOKEN || messageType == MessageType.SESSION_RESUME;
+	}
 }
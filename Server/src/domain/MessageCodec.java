@@ -0,0 +1,45 @@
+package domain;
+
+import java.io.IOException;
+
+/**
+ * <p>Converts a {@code Message} to the bytes of a frame body and back. The frames themselves are built by {@link FrameCodec}.</p>
+ * <p>Connections start with {@link MessageCodec#SERIALIZED} and switch to another codec when a protocol is accepted in the {@code LOGIN_REPLY}.</p>
+ */
+public abstract class MessageCodec {
+
+	public static final MessageCodec SERIALIZED = new SerializedCodec();
+	public static final MessageCodec BINARY = new BinaryCodec();
+
+	/**
+	 * @param protocol
+	 * @return {@code MessageCodec} that implements the protocol with the specified name, null if the protocol is not supported.
+	 */
+	public static MessageCodec forProtocol(String protocol) {
+		if (BINARY.getProtocol().equals(protocol)) return BINARY;
+		if (SERIALIZED.getProtocol().equals(protocol)) return SERIALIZED;
+		return null;
+	}
+
+	/**
+	 * @return Name of the protocol, as sent in the protocol field of the login messages.
+	 */
+	public abstract String getProtocol();
+
+	/**
+	 * @param message
+	 * @return Bytes representing the inserted {@code Message}.
+	 * @throws IOException If the {@code Message} could not be encoded.
+	 */
+	public abstract byte[] encode(Message message) throws IOException;
+
+	/**
+	 * @param body
+	 * @param offset
+	 * @param length
+	 * @return {@code Message} represented by the specified bytes.
+	 * @throws IOException If the bytes are not a valid {@code Message}.
+	 * @throws ClassNotFoundException If the bytes contain an object whose class is unknown.
+	 */
+	public abstract Message decode(byte[] body, int offset, int length) throws IOException, ClassNotFoundException;
+}
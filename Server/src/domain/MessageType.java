@@ -19,4 +19,22 @@ public enum MessageType {
 	USER_REMOVE,
 	
 	SERVER_MESSAGE, 
+	
+	HISTORY_REQUEST,
+	HISTORY_REPLY,
+	HISTORY_SUMMARY,
+	
+	USER_UPDATE_REPLY,
+	
+	GROUP_UPDATE,
+	GROUP_LEAVE,
+	GROUP_MESSAGE,
+	GROUP_MEMBERS,
+	GROUP_REPLY,
+	
+	SESSION_TOKEN,
+	SESSION_RESUME,
+	
+	PING,
+	PONG,
 }
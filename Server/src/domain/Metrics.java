@@ -0,0 +1,143 @@
+package domain;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>Registry of the metrics of the server: counters, which are {@code LongAdder}s so that threads incrementing them at the same time do not contend, 
+ * latency {@code Histogram}s in nanoseconds, and gauges read when the metrics are reported. Metrics are created the first time they are asked for, 
+ * and code in hot paths should keep them in a field instead of looking them up every time.</p>
+ * <p>The metrics can be read with the {@code /stats} command, or through JMX as the attributes of {@value Metrics#OBJECT_NAME}.</p>
+ */
+public class Metrics {
+
+	public static final String OBJECT_NAME = "server:type=Metrics";
+
+	/**
+	 * Value read every time the metrics are reported.
+	 */
+	public interface Gauge {
+		long get();
+	}
+
+	private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private static final long started = System.nanoTime();
+
+	private Metrics() {
+	}
+
+	/**
+	 * @param name
+	 * @return Counter with the name, created if it did not exist.
+	 */
+	public static LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * @param name
+	 * @return Histogram with the name, created if it did not exist.
+	 */
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) histogram = created;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing the one with the same name.
+	 * @param name
+	 * @param gauge
+	 */
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return Current value of every metric by name, as returned by {@link MetricsMXBean#getValues()}.
+	 */
+	public static SortedMap<String, Long> values() {
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().sum());
+		}
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().get());
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			values.put(entry.getKey()+".count", histogram.getCount());
+			values.put(entry.getKey()+".mean", histogram.getMean());
+			values.put(entry.getKey()+".p50", histogram.getPercentile(50));
+			values.put(entry.getKey()+".p99", histogram.getPercentile(99));
+			values.put(entry.getKey()+".max", histogram.getMax());
+		}
+		return values;
+	}
+
+	/**
+	 * @return A line for every metric: counters with their rate per second since the server started, gauges, and histograms with their percentiles in microseconds. 
+	 * Histograms without values are left out.
+	 */
+	public static List<String> report() {
+		double seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, LongAdder> counter : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			long value = counter.getValue().sum();
+			lines.add(counter.getKey()+" = "+value+" ("+String.format("%.1f", value / seconds)+"/s)");
+		}
+		for (Map.Entry<String, Gauge> gauge : new TreeMap<String, Gauge>(gauges).entrySet()) {
+			lines.add(gauge.getKey()+" = "+gauge.getValue().get());
+		}
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			Histogram histogram = entry.getValue();
+			if (histogram.getCount() == 0) continue;
+			lines.add(entry.getKey()+": "+histogram.getCount()+" in "+micros(histogram.getMean())+" mean, "+micros(histogram.getPercentile(50))+" p50, "
+					+micros(histogram.getPercentile(99))+" p99, "+micros(histogram.getMax())+" max (us)");
+		}
+		return lines;
+	}
+
+	/**
+	 * Registers the metrics in the platform {@code MBeanServer}, if they were not registered yet.
+	 * @throws JMException If they could not be registered.
+	 */
+	public static synchronized void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name)) return;
+		server.registerMBean(new MetricsMXBean() {
+			public Map<String, Long> getValues() {
+				return values();
+			}
+		}, name);
+	}
+
+	private static String micros(long nanos) {
+		return String.valueOf(nanos / 1000);
+	}
+}
@@ -0,0 +1,14 @@
+package domain;
+
+import java.util.Map;
+
+/**
+ * <p>Management interface of the {@code Metrics}, registered in the platform {@code MBeanServer} as {@value Metrics#OBJECT_NAME}.</p>
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * @return Current value of every counter and gauge, and the count, mean, percentiles and maximum of every histogram, by name.
+	 */
+	Map<String, Long> getValues();
+}
@@ -0,0 +1,53 @@
+package domain;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Fixed group of daemon threads that run the tasks of every key in the order they are submitted: all the tasks of a key run in the same thread,
+ * one after another, while the tasks of other keys run in the rest of threads. The queue of every thread is unbounded.</p>
+ */
+public class OrderedExecutor {
+
+	private ExecutorService[] threads;
+
+	/**
+	 * @param name Prefix of the name of the threads.
+	 * @param threads Number of threads.
+	 * @throws IllegalArgumentException If the number of threads is not positive.
+	 */
+	public OrderedExecutor(String name, int threads) {
+		if (threads <= 0) throw new IllegalArgumentException("Number of threads must be positive.");
+		this.threads = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			final String threadName = name+"-"+i;
+			this.threads[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the task after the ones submitted before with the same key.
+	 * @param key
+	 * @param task
+	 * @throws java.util.concurrent.RejectedExecutionException If this {@code OrderedExecutor} has been closed.
+	 */
+	public void execute(long key, Runnable task) {
+		threads[(int) Math.floorMod(key, (long) threads.length)].execute(task);
+	}
+
+	/**
+	 * Stops accepting tasks. The ones already submitted are still run.
+	 */
+	public void close() {
+		for (ExecutorService thread : threads) {
+			thread.shutdown();
+		}
+	}
+}
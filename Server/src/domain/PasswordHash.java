@@ -0,0 +1,93 @@
+package domain;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * <p>Password hashes made with PBKDF2 and HMAC-SHA256, stored as {@code $pbkdf2-sha256$iterations$salt$hash} with the salt and hash in Base64,
+ * so that every hash carries the iterations it was made with. Passwords stored by previous versions are plaintext, and are recognized by the missing prefix.</p>
+ * <p>Hashing and verifying a password takes as long as the iterations make it, so it should not be done by the threads that route messages.</p>
+ */
+public class PasswordHash {
+
+	private static final String PREFIX = "$pbkdf2-sha256$";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_SIZE = 16;
+	private static final int HASH_SIZE = 32;
+	private static final SecureRandom random = new SecureRandom();
+
+	private PasswordHash() {
+	}
+
+	/**
+	 * @param password
+	 * @return Hash of the password with a new random salt and {@code passwordIterations} iterations.
+	 * @throws IllegalArgumentException If the password is null.
+	 */
+	public static String hash(String password) {
+		if (password == null) throw new IllegalArgumentException("Password can't be null.");
+		byte[] salt = new byte[SALT_SIZE];
+		random.nextBytes(salt);
+		int iterations = Math.max(1, Settings.passwordIterations);
+		Base64.Encoder encoder = Base64.getEncoder();
+		return PREFIX+iterations+"$"+encoder.encodeToString(salt)+"$"+encoder.encodeToString(derive(password, salt, iterations));
+	}
+
+	/**
+	 * @param password
+	 * @param stored Hash made by {@link PasswordHash#hash(String)}, or a plaintext password.
+	 * @return true if the password matches the stored one. Compares in constant time, and plaintext is compared as it is.
+	 */
+	public static boolean verify(String password, String stored) {
+		if (password == null || stored == null) return false;
+		if (!isHash(stored)) return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+		String[] parts = stored.substring(PREFIX.length()).split("\\$");
+		if (parts.length != 3) return false;
+		try {
+			Base64.Decoder decoder = Base64.getDecoder();
+			byte[] expected = decoder.decode(parts[2]);
+			return MessageDigest.isEqual(derive(password, decoder.decode(parts[1]), Integer.parseInt(parts[0])), expected);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param stored
+	 * @return true if the stored password is plaintext or was hashed with less iterations than {@code passwordIterations}.
+	 */
+	public static boolean needsRehash(String stored) {
+		if (!isHash(stored)) return true;
+		int end = stored.indexOf('$', PREFIX.length());
+		try {
+			return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < Settings.passwordIterations;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @param stored
+	 * @return true if the stored password is a hash, false if it is plaintext or null.
+	 */
+	public static boolean isHash(String stored) {
+		return stored != null && stored.startsWith(PREFIX);
+	}
+
+	private static byte[] derive(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_SIZE * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
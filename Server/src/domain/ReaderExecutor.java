@@ -0,0 +1,101 @@
+package domain;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import application.ServerController;
+
+/**
+ * <p>Provides the {@code Executor} that runs the blocking loops of the server: the accept loop and the read loop of every {@code SocketConnection}.
+ * The mode is read from the {@code readerThreads} key of {@value Settings#DEFAULT_PROPERTIES_FILE}:</p>
+ * <ul>
+ * <li>{@value ReaderExecutor#PLATFORM_THREADS}: every loop gets its own platform {@code Thread}.</li>
+ * <li>{@value ReaderExecutor#VIRTUAL_THREADS}: every loop gets its own virtual thread. 
+ * Virtual threads are only available from Java 21 on, in older runtimes platform threads are used instead.</li>
+ * </ul>
+ * <p>The writers of every {@code SocketConnection} run in a separate {@code Executor}: since a writer only lives while there are messages queued, 
+ * platform writer threads are pooled and reused.</p>
+ */
+public class ReaderExecutor {
+
+	public static final String PLATFORM_THREADS = "platform";
+	public static final String VIRTUAL_THREADS = "virtual";
+
+	private static Executor executor;
+	private static Executor writers;
+
+	/**
+	 * @return {@code Executor} for the mode configured in {@code Settings}, created the first time this method is called.
+	 */
+	public static synchronized Executor get() {
+		if (executor == null) executor = create(Settings.readerThreads);
+		return executor;
+	}
+
+	/**
+	 * @return {@code Executor} for the writers of the mode configured in {@code Settings}, created the first time this method is called.
+	 */
+	public static synchronized Executor getWriters() {
+		if (writers == null) {
+			if (VIRTUAL_THREADS.equals(Settings.readerThreads)) writers = createVirtual();
+			if (writers == null) writers = createPool("Writer");
+		}
+		return writers;
+	}
+
+	/**
+	 * @param mode
+	 * @return New {@code Executor} that starts a thread of the specified mode for every task. If the mode is null or unknown, platform threads are used.
+	 */
+	public static Executor create(String mode) {
+		if (VIRTUAL_THREADS.equals(mode)) {
+			Executor virtual = createVirtual();
+			if (virtual != null) return virtual;
+			ServerController.getInstance().error("Virtual threads are not available in this runtime, using platform threads.");
+		}
+		return new Executor() {
+			public void execute(Runnable task) {
+				new Thread(task).start();
+			}
+		};
+	}
+
+	/**
+	 * @return true if the running JVM supports virtual threads.
+	 */
+	public static boolean isVirtualAvailable() {
+		return createVirtual() != null;
+	}
+
+	/**
+	 * @param name Prefix of the name of the threads.
+	 * @return New {@code ExecutorService} that reuses idle daemon threads and creates new ones when all are busy.
+	 */
+	private static ExecutorService createPool(final String name) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name+"-"+count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * The virtual thread factory is looked up by reflection so that the server still compiles and runs with Java 8.
+	 * @return {@code Executor} that starts a virtual thread per task, null if the runtime does not support them.
+	 */
+	private static Executor createVirtual() {
+		try {
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package domain;
+
+/**
+ * <p>Outcome of handing a {@code Message} to a {@code Connection}.</p>
+ */
+public enum SendResult {
+
+	/**
+	 * The {@code Message} has been queued to be written.
+	 */
+	QUEUED,
+	
+	/**
+	 * The outbound queue of the {@code Connection} was full and the {@code Message} has been discarded.
+	 */
+	DROPPED,
+	
+	/**
+	 * The outbound queue of the {@code Connection} was full and the {@code Connection} has been closed.
+	 */
+	DISCONNECTED,
+	
+	/**
+	 * The {@code Connection} was already closed.
+	 */
+	CLOSED,
+	
+	/**
+	 * The {@code Message} could not be encoded.
+	 */
+	FAILED,
+}
@@ -0,0 +1,39 @@
+package domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * <p>{@code MessageCodec} that uses Java serialization, each {@code Message} on its own stream.</p>
+ */
+class SerializedCodec extends MessageCodec {
+
+	@Override
+	public String getProtocol() {
+		return "serialized";
+	}
+
+	@Override
+	public byte[] encode(Message message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public Message decode(byte[] body, int offset, int length) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length));
+		try {
+			Object object = in.readObject();
+			if (!(object instanceof Message)) throw new ClassNotFoundException("Frame does not contain a Message.");
+			return (Message) object;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package domain;
 
+import java.awt.GraphicsEnvironment;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Properties;
@@ -7,11 +8,56 @@ import java.util.Properties;
 public class Settings {
 
 	public static final String DEFAULT_PROPERTIES_FILE = "config.properties";
+	public static final String BLOCKING_TRANSPORT = "blocking";
+	public static final String NIO_TRANSPORT = "nio";
+	public static final String HEADLESS_ARGUMENT = "--headless";
+	public static final String GUI_ARGUMENT = "--gui";
+	public static final String AUTOSTART_ARGUMENT = "--autostart";
 	
 	public static boolean localTest;
 	public static boolean clientRunningInSameMachineAsServer;
 	public static int serverPort;
+	public static boolean headless;
+	public static boolean autoStart;
+	public static String transport = BLOCKING_TRANSPORT;
+	public static int eventLoopThreads = 2;
+	public static String readerThreads = ReaderExecutor.PLATFORM_THREADS;
+	public static int offlineQueueUserLimit = 1000;
+	public static int offlineQueueTotalLimit = 100000;
+	public static String offlineQueuePolicy = "evict";
+	public static boolean offlineStore = true;
+	public static String journalSync = "interval";
+	public static long journalSyncInterval = 100;
+	public static int snapshotInterval = 300;
+	public static int outboundQueueLimit = 1000;
+	public static String slowConsumerPolicy = Connection.DISCONNECT_SLOW_CONSUMERS;
+	public static int writeBatchSize = 64;
+	public static boolean messageRelay = true;
+	public static LogLevel logLevel = LogLevel.DEBUG;
+	public static String logFile = "server.log";
+	public static long logFileSize = 10485760;
+	public static int logFiles = 5;
+	public static int logViewLines = 1000;
+	public static int logBufferSize = 8192;
+	public static int historyPageSize = 50;
+	public static long historySegmentSize = 1048576;
+	public static String clusterNode = "node1";
+	public static int clusterPort = 5444;
+	public static String clusterPeers = "";
+	public static int clusterThreads = 8;
+	public static String clusterSecret = "";
+	public static int passwordIterations = 100000;
+	public static int loginThreads = 2;
+	public static int loginQueueSize = 256;
+	public static int loginAttemptsPerMinute = 10;
+	public static int sessionTimeout = 3600;
+	public static int pingInterval = 0;
+	public static int idleTimeout = 0;
 	
+	/**
+	 * Reads the settings from {@value Settings#DEFAULT_PROPERTIES_FILE}. The ones missing from the file, or all of them if the file can't be read, keep the defaults these fields are initialized with.
+	 * @throws IOException If the file can't be read.
+	 */
 	public static void loadProperties() throws IOException {
 		Properties properties;
 		FileInputStream in = new FileInputStream(DEFAULT_PROPERTIES_FILE);
@@ -20,5 +66,54 @@ public class Settings {
 		localTest = Boolean.parseBoolean(properties.getProperty("localTest"));
 		clientRunningInSameMachineAsServer = Boolean.parseBoolean(properties.getProperty("clientRunningInSameMachineAsServer"));
 		serverPort = Integer.parseInt(properties.getProperty("serverPort"));
-	}	
+		headless = Boolean.parseBoolean(properties.getProperty("headless", "false").trim());
+		autoStart = Boolean.parseBoolean(properties.getProperty("autoStart", "false").trim());
+		transport = properties.getProperty("transport", BLOCKING_TRANSPORT).trim();
+		eventLoopThreads = Integer.parseInt(properties.getProperty("eventLoopThreads", "2").trim());
+		readerThreads = properties.getProperty("readerThreads", ReaderExecutor.PLATFORM_THREADS).trim();
+		offlineQueueUserLimit = Integer.parseInt(properties.getProperty("offlineQueueUserLimit", "1000").trim());
+		offlineQueueTotalLimit = Integer.parseInt(properties.getProperty("offlineQueueTotalLimit", "100000").trim());
+		offlineQueuePolicy = properties.getProperty("offlineQueuePolicy", "evict").trim();
+		offlineStore = Boolean.parseBoolean(properties.getProperty("offlineStore", "true").trim());
+		journalSync = properties.getProperty("journalSync", "interval").trim();
+		journalSyncInterval = Long.parseLong(properties.getProperty("journalSyncInterval", "100").trim());
+		snapshotInterval = Integer.parseInt(properties.getProperty("snapshotInterval", "300").trim());
+		outboundQueueLimit = Integer.parseInt(properties.getProperty("outboundQueueLimit", "1000").trim());
+		slowConsumerPolicy = properties.getProperty("slowConsumerPolicy", Connection.DISCONNECT_SLOW_CONSUMERS).trim();
+		writeBatchSize = Integer.parseInt(properties.getProperty("writeBatchSize", "64").trim());
+		messageRelay = Boolean.parseBoolean(properties.getProperty("messageRelay", "true").trim());
+		logLevel = LogLevel.parse(properties.getProperty("logLevel", "debug").trim());
+		logFile = properties.getProperty("logFile", "server.log").trim();
+		logFileSize = Long.parseLong(properties.getProperty("logFileSize", "10485760").trim());
+		logFiles = Integer.parseInt(properties.getProperty("logFiles", "5").trim());
+		logViewLines = Integer.parseInt(properties.getProperty("logViewLines", "1000").trim());
+		logBufferSize = Integer.parseInt(properties.getProperty("logBufferSize", "8192").trim());
+		historyPageSize = Integer.parseInt(properties.getProperty("historyPageSize", "50").trim());
+		historySegmentSize = Long.parseLong(properties.getProperty("historySegmentSize", "1048576").trim());
+		clusterNode = properties.getProperty("clusterNode", "node1").trim();
+		clusterPort = Integer.parseInt(properties.getProperty("clusterPort", "5444").trim());
+		clusterPeers = properties.getProperty("clusterPeers", "").trim();
+		clusterThreads = Integer.parseInt(properties.getProperty("clusterThreads", "8").trim());
+		clusterSecret = properties.getProperty("clusterSecret", "").trim();
+		passwordIterations = Integer.parseInt(properties.getProperty("passwordIterations", "100000").trim());
+		loginThreads = Integer.parseInt(properties.getProperty("loginThreads", "2").trim());
+		loginQueueSize = Integer.parseInt(properties.getProperty("loginQueueSize", "256").trim());
+		loginAttemptsPerMinute = Integer.parseInt(properties.getProperty("loginAttemptsPerMinute", "10").trim());
+		sessionTimeout = Integer.parseInt(properties.getProperty("sessionTimeout", "3600").trim());
+		pingInterval = Integer.parseInt(properties.getProperty("pingInterval", "0").trim());
+		idleTimeout = Integer.parseInt(properties.getProperty("idleTimeout", "0").trim());
+	}
+	
+	/**
+	 * Applies the command line arguments over the loaded properties. The server always runs headless if the JVM has no display.
+	 * @param args
+	 */
+	public static void parseArguments(String[] args) {
+		for (String arg : args) {
+			if (HEADLESS_ARGUMENT.equals(arg)) headless = true;
+			else if (GUI_ARGUMENT.equals(arg)) headless = false;
+			else if (AUTOSTART_ARGUMENT.equals(arg)) autoStart = true;
+		}
+		if (GraphicsEnvironment.isHeadless()) headless = true;
+	}
 }
@@ -0,0 +1,67 @@
+package domain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>{@code Message} sent to many connections, encoded only once for every {@code MessageCodec} they use. The frames are shared by all the connections,
+ * which get read-only views of them, so a {@code SharedFrame} can be written by any number of threads at the same time.</p>
+ * <p>The {@code Message} must not be changed once it has been wrapped.</p>
+ */
+public class SharedFrame {
+
+	private Message message;
+	private ConcurrentMap<MessageCodec, byte[]> frames;
+
+	/**
+	 * @param message
+	 * @throws IllegalArgumentException If the argument is null.
+	 */
+	public SharedFrame(Message message) {
+		if (message == null) throw new IllegalArgumentException("Argument can't be null.");
+		this.message = message;
+		frames = new ConcurrentHashMap<MessageCodec, byte[]>();
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * @param codec
+	 * @return Read-only {@code ByteBuffer} with the frame of the {@code Message} encoded with the codec, with a position of its own.
+	 * @throws IOException If the {@code Message} could not be encoded.
+	 */
+	public ByteBuffer frame(MessageCodec codec) throws IOException {
+		return ByteBuffer.wrap(bytes(codec)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the frame of the {@code Message} encoded with the codec.
+	 * @param out
+	 * @param codec
+	 * @throws IOException If the {@code Message} could not be encoded or the frame could not be written.
+	 */
+	public void writeTo(OutputStream out, MessageCodec codec) throws IOException {
+		out.write(bytes(codec));
+	}
+
+	/**
+	 * @param codec
+	 * @return Frame of the {@code Message} encoded with the codec, encoding it if it is the first time. Concurrent first calls may encode it more than once.
+	 * @throws IOException If the {@code Message} could not be encoded.
+	 */
+	private byte[] bytes(MessageCodec codec) throws IOException {
+		byte[] frame = frames.get(codec);
+		if (frame == null) {
+			ByteBuffer encoded = FrameCodec.encode(message, codec);
+			frame = encoded.array();
+			byte[] previous = frames.putIfAbsent(codec, frame);
+			if (previous != null) frame = previous;
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,242 @@
+package domain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import application.ServerController;
+
+public class SocketConnection extends Connection {
+
+	private Socket socket;
+	private ObjectInputStream in;
+	private ObjectOutputStream out;
+	private DataInputStream frameIn;
+	private DataOutputStream frameOut;
+	private volatile MessageCodec readCodec;
+	private MessageCodec writeCodec;
+	private Queue<Object> outbound;
+	private int batchSize;
+	private AtomicBoolean writing;
+	private AtomicBoolean closed;
+	private Runnable writer;
+
+	/**
+	 * Creates a new Connection with the inserted {@code Socket}. A new reader is started in the {@code ReaderExecutor} to listen to the {@code Socket} when it is started.
+	 * @param socket
+	 * @throws IOException If there is a problem creating the input and output Streams of the {@code Socket}.
+	 * @throws IllegalArgumentException If the {@code Socket} inserted is null.
+	 */
+	public SocketConnection(Socket socket) throws IOException {
+		if (socket == null) throw new IllegalArgumentException("Can't create connection with empty socket.");
+		this.socket = socket;
+		setConnectionAddress(socket.getInetAddress());
+		in = new ObjectInputStream(new CountingInputStream(socket.getInputStream()));
+		out = new ObjectOutputStream(new CountingOutputStream(socket.getOutputStream()));
+		readCodec = MessageCodec.SERIALIZED;
+		writeCodec = MessageCodec.SERIALIZED;
+		outbound = new ConcurrentLinkedQueue<Object>();
+		batchSize = Math.max(1, Settings.writeBatchSize);
+		writing = new AtomicBoolean();
+		closed = new AtomicBoolean();
+		writer = new Runnable() {
+			public void run() {
+				write();
+			}
+		};
+	}
+
+	@Override
+	public void start() {
+		listen();
+	}
+
+	/**
+	 * @return true if the {@code Socket} of this {@code Connection} is open, false if it has been closed.
+	 */
+	@Override
+	public boolean isActive() {
+		return !socket.isClosed();
+	}
+
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		outbound.clear();
+		discardUnwritten();
+		try {
+			socket.close();
+			ServerController.getInstance().disconnected(this, socket.toString());
+		} catch (IOException e) {
+			ServerController.getInstance().error(e.getMessage());
+		}
+	}
+
+	/**
+	 * <p>Queues the {@code Message}. The codec used to read is switched here, before the reader waits for the next {@code Message}, 
+	 * since the Client may answer as soon as the reply is written.</p>
+	 */
+	@Override
+	protected void enqueue(Message message) {
+		outbound.add(message);
+		readCodec = negotiate(message, readCodec);
+	}
+
+	/**
+	 * <p>Queues the shared frame, which is written as it is once a protocol has been negotiated. Until then the {@code Message} is written as an object.</p>
+	 */
+	@Override
+	protected void enqueue(SharedFrame frame) {
+		outbound.add(frame);
+	}
+
+	/**
+	 * <p>Starts a writer in the {@code ReaderExecutor} if there is none running.</p>
+	 */
+	@Override
+	protected void startWriting() {
+		if (writing.compareAndSet(false, true)) ReaderExecutor.getWriters().execute(writer);
+	}
+
+	/**
+	 * <p>Writes the queued messages to the {@code Socket}, up to {@code writeBatchSize} before every flush, until the queue is empty.
+	 * Until a protocol is negotiated the messages are written as objects, afterwards in frames encoded with the negotiated {@code MessageCodec}, 
+	 * or the ones already encoded for a {@code SharedFrame}.</p>
+	 */
+	private void write() {
+		try {
+			do {
+				Object queued;
+				int batch = 0;
+				while (batch < batchSize && (queued = outbound.poll()) != null) {
+					SharedFrame frame = queued instanceof SharedFrame ? (SharedFrame) queued : null;
+					Message message = frame != null ? frame.getMessage() : (Message) queued;
+					if (writeCodec == MessageCodec.SERIALIZED) {
+						out.writeObject(message);
+					}
+					else {
+						if (frameOut == null) frameOut = new DataOutputStream(new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream())));
+						if (frame != null) {
+							frame.writeTo(frameOut, writeCodec);
+						}
+						else {
+							byte[] body = writeCodec.encode(message);
+							frameOut.writeInt(body.length);
+							frameOut.write(body);
+						}
+					}
+					MessageCodec negotiated = negotiate(message, writeCodec);
+					if (negotiated != writeCodec) {
+						out.flush();
+						writeCodec = negotiated;
+					}
+					batch++;
+				}
+				if (writeCodec == MessageCodec.SERIALIZED) out.flush();
+				else if (frameOut != null) frameOut.flush();
+				written(batch);
+				writing.set(false);
+			} while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+		} catch (IOException e) {
+			writing.set(false);
+			close();
+		}
+	}
+
+	/**
+	 * @return Next {@code Message} read from the {@code Socket}, as an object or as a frame once a protocol has been negotiated.
+	 * @throws IOException If there is a problem reading from the {@code Socket}.
+	 * @throws ClassNotFoundException If the object received is not a {@code Message}.
+	 */
+	private Message read() throws IOException, ClassNotFoundException {
+		if (readCodec == MessageCodec.SERIALIZED) return (Message) in.readObject();
+		if (frameIn == null) frameIn = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream())));
+		int length = frameIn.readInt();
+		FrameCodec.checkLength(length);
+		byte[] body = new byte[length];
+		frameIn.readFully(body);
+		return readCodec.decode(body, 0, length);
+	}
+
+	/**
+	 * <p>Executes in the {@code ReaderExecutor} a new task that receives messages from the attached socket and sends replies.</p>
+	 */
+	private void listen() {
+		Runnable listener = new Runnable() {
+			public void run() {
+				while (isActive()) {
+					try {
+						received(read());
+					} catch (ClassNotFoundException e) {
+						ServerController.getInstance().error("Object received is not a Message: "+e.getMessage());
+						close();
+					} catch (IOException e) {
+						close();
+					} catch (RuntimeException e) {
+						ServerController.getInstance().exception(e);
+						close();
+					}
+				}
+			}
+		};
+		ReaderExecutor.get().execute(listener);
+	}
+
+	/**
+	 * <p>Stream that counts the bytes read from the {@code Socket}.</p>
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) bytesRead.increment();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) bytesRead.add(read);
+			return read;
+		}
+	}
+
+	/**
+	 * <p>Stream that counts the bytes written to the {@code Socket}.</p>
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesWritten.increment();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesWritten.add(len);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package domain;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Thread-safe formatter of epoch milliseconds in the default time zone, with the patterns of {@code DateTimeFormatter}, which for the usual letters
+ * ({@code yyyy MM dd HH mm ss SSS}) are the same as the ones of {@code SimpleDateFormat}.</p>
+ * <p>The text of the last time formatted is kept, and returned again for any time in the same second or minute when the pattern has nothing finer,
+ * so formatting the times of a stream of messages does not allocate anything most of the times.
+ * Formats are shared by pattern: get them with {@link TimeFormat#of(String)}.</p>
+ */
+public class TimeFormat {
+
+	private static final ConcurrentMap<String, TimeFormat> formats = new ConcurrentHashMap<String, TimeFormat>();
+
+	private DateTimeFormatter formatter;
+	private long resolution;
+	private volatile Period last;
+
+	private TimeFormat(String pattern) {
+		formatter = DateTimeFormatter.ofPattern(pattern).withZone(ZoneId.systemDefault());
+		resolution = resolutionOf(pattern);
+	}
+
+	/**
+	 * @param pattern
+	 * @return Shared {@code TimeFormat} of the pattern.
+	 * @throws IllegalArgumentException If the pattern is null or not valid.
+	 */
+	public static TimeFormat of(String pattern) {
+		if (pattern == null) throw new IllegalArgumentException("Pattern can't be null.");
+		TimeFormat format = formats.get(pattern);
+		if (format == null) {
+			format = new TimeFormat(pattern);
+			TimeFormat previous = formats.putIfAbsent(pattern, format);
+			if (previous != null) format = previous;
+		}
+		return format;
+	}
+
+	/**
+	 * @param millis Milliseconds since the epoch.
+	 * @return Text of the time.
+	 */
+	public String format(long millis) {
+		Period period = last;
+		if (period != null && millis >= period.start && millis - period.start < resolution) return period.text;
+		String text = formatter.format(Instant.ofEpochMilli(millis));
+		last = new Period(Math.floorDiv(millis, resolution) * resolution, text);
+		return text;
+	}
+
+	/**
+	 * @param pattern
+	 * @return Milliseconds during which the text of the pattern does not change: 1 if it shows fractions of a second,
+	 * a second if it shows seconds and a minute otherwise, which is the finest unit of the offsets of the time zones. Quoted text is left out.
+	 */
+	private static long resolutionOf(String pattern) {
+		boolean quoted = false, seconds = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char letter = pattern.charAt(i);
+			if (letter == '\'') quoted = !quoted;
+			else if (!quoted && (letter == 'S' || letter == 'n' || letter == 'N' || letter == 'A')) return 1;
+			else if (!quoted && letter == 's') seconds = true;
+		}
+		return seconds ? 1000 : 60000;
+	}
+
+	/**
+	 * <p>Text of the times that start at the same multiple of the resolution.</p>
+	 */
+	private static class Period {
+
+		private final long start;
+		private final String text;
+
+		public Period(long start, String text) {
+			this.start = start;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package domain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import application.ServerController;
+
+/**
+ * <p>Hashed timer wheel: a ring of slots that a single thread visits one per tick. A task is put in the slot its delay lands on, 
+ * with the number of full turns of the wheel it still has to wait, so scheduling and cancelling a task take constant time 
+ * and every tick only looks at the tasks of one slot, however many tasks are scheduled.</p>
+ * <p>Tasks run in the thread of the wheel as soon as their tick is reached, so they must be short and must not block. 
+ * A task never runs before its delay, but may run up to a tick later.</p>
+ */
+public class TimerWheel extends Thread {
+
+	private long tickDuration;
+	private List<Queue<Timeout>> slots;
+	private Queue<Timeout> added;
+	private long start;
+	private long tick;
+	private volatile boolean running;
+
+	/**
+	 * @param name Name of the thread.
+	 * @param tickDuration Milliseconds between ticks.
+	 * @param slotCount Number of slots of the wheel. A turn of the wheel lasts {@code tickDuration * slotCount} milliseconds.
+	 * @throws IllegalArgumentException If the tick duration or the number of slots are not positive.
+	 */
+	public TimerWheel(String name, long tickDuration, int slotCount) {
+		super(name);
+		if (tickDuration <= 0 || slotCount <= 0) throw new IllegalArgumentException("Tick duration and slots must be positive.");
+		this.tickDuration = tickDuration;
+		slots = new ArrayList<Queue<Timeout>>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ArrayDeque<Timeout>());
+		}
+		added = new ConcurrentLinkedQueue<Timeout>();
+		setDaemon(true);
+	}
+
+	/**
+	 * Schedules the task. Can be called from any thread.
+	 * @param task
+	 * @param delay Milliseconds to wait before running the task.
+	 * @return {@code Timeout} that can cancel the task.
+	 * @throws IllegalArgumentException If the task is null.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (task == null) throw new IllegalArgumentException("Task can't be null.");
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delay));
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel. Tasks that have not run yet never will.
+	 */
+	public void close() {
+		running = false;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		running = true;
+		start = System.currentTimeMillis();
+		while (running) {
+			long sleep = start + (tick + 1) * tickDuration - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			place();
+			expire(slots.get((int) (tick % slots.size())));
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves the tasks scheduled since the last tick to their slots.
+	 */
+	private void place() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.isCancelled()) continue;
+			long ticks = Math.max(tick, (timeout.deadline - start + tickDuration - 1) / tickDuration);
+			timeout.rounds = (ticks - tick) / slots.size();
+			slots.get((int) (ticks % slots.size())).add(timeout);
+		}
+	}
+
+	/**
+	 * Runs the tasks of the slot whose turn has come, and forgets the cancelled ones.
+	 * @param slot
+	 */
+	private void expire(Queue<Timeout> slot) {
+		Iterator<Timeout> timeouts = slot.iterator();
+		while (timeouts.hasNext()) {
+			Timeout timeout = timeouts.next();
+			if (timeout.isCancelled()) {
+				timeouts.remove();
+			}
+			else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			}
+			else {
+				timeouts.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					ServerController.getInstance().exception(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Task scheduled in a {@code TimerWheel}.</p>
+	 */
+	public static class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, if it has not run yet.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
@@ -1,10 +1,16 @@
 package domain;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * <p>A registered user and its chats. The chat map is guarded by the lock of the {@code User}, so a {@code User} can be read, changed and serialized from different threads.</p>
+ */
 public class User implements Serializable {
 
 	private static final long serialVersionUID = 1L;
@@ -13,6 +19,7 @@ public class User implements Serializable {
 	private String password;
 	
 	private Map<String, String> chatMap;
+	private long version;
 	
 	/**
 	 * <p>Creates a new user with the specified name and password.</p>
@@ -27,11 +34,21 @@ public class User implements Serializable {
 		chatMap = new LinkedHashMap<String, String>();
 	}
 	
+	/**
+	 * @return Copy of this user, with its own contacts and chats, the same password and the same version.
+	 */
+	public synchronized User copy() {
+		User copy = new User(name, password);
+		copy.chatMap.putAll(chatMap);
+		copy.version = version;
+		return copy;
+	}
+	
 	/**
 	 * @param name
 	 * @return true if the chat map contains a key with the inserted contact name, false if the user does not exist or the parameter is null.
 	 */
-	public boolean hasContact(String name) {
+	public synchronized boolean hasContact(String name) {
 		if (name == null) return false;
 		return chatMap.containsKey(name);
 	}
@@ -40,7 +57,7 @@ public class User implements Serializable {
 	 * <p>Adds the user name introduced as parameter to the User Chat Map only if there was no previous key with the same name in the map.</p>
 	 * @param name
 	 */
-	public void addContact(String name) {
+	public synchronized void addContact(String name) {
 		if (!hasContact(name)) chatMap.put(name, "");
 	}
 	
@@ -48,7 +65,7 @@ public class User implements Serializable {
 	 * <p>Removes the user and chat mapped to that user from the User Chat Map. Does nothing if there is no key in the map with the introduced name.</p>
 	 * @param name
 	 */
-	public void removeContact(String name) {
+	public synchronized void removeContact(String name) {
 		if (hasContact(name)) chatMap.remove(name);
 	}
 	
@@ -56,7 +73,7 @@ public class User implements Serializable {
 	 * @param name
 	 * @return String with the whole conversation mapped to the introduced user, null if there is no key in the Chat Map with the specified user or the argument is null.
 	 */
-	public String getChat(String name) {
+	public synchronized String getChat(String name) {
 		if (!hasContact(name)) return null;
 		return chatMap.get(name);
 	}
@@ -66,26 +83,43 @@ public class User implements Serializable {
 	 * @param name
 	 * @param text
 	 */
-	public void addToChat(String name, String text) {
+	public synchronized void addToChat(String name, String text) {
 		if (hasContact(name)) chatMap.put(name, chatMap.get(name).concat(text));
 	}
 	
-	public Collection<String> getContacts() {
-		return chatMap.keySet();
+	/**
+	 * @return Collection with the names of the contacts at the moment of the call.
+	 */
+	public synchronized Collection<String> getContacts() {
+		return new ArrayList<String>(chatMap.keySet());
 	}
 	
 	public String getName() {
 		return name;
 	}
 
-	public String getPassword() {
+	/**
+	 * @return {@code PasswordHash} of the password, plaintext in users stored by previous versions, or empty in the copies sent to Clients.
+	 */
+	public synchronized String getPassword() {
 		return password;
 	}
 	
-	public void setPassword(String password) {
+	public synchronized void setPassword(String password) {
 		if (password != null) this.password = password;
 	}
 	
+	/**
+	 * @return Number of changes made to this user since it was registered, used to detect conflicting updates.
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+	
+	public synchronized void setVersion(long version) {
+		this.version = version;
+	}
+	
 	/**
 	 * Two Users are equal if their names contain the same value so that: <br> {@code this.getName().equals(other.getName())}
 	 */
@@ -96,9 +130,18 @@ public class User implements Serializable {
 		return this.getName().equals(other.getName());
 	}
 	
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+	
 	@Override
 	public String toString() {
-		return "Username: "+name+" Password: "+password+" Contacts: "+contactsToString();
+		return "Username: "+name+" Contacts: "+contactsToString();
+	}
+	
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
 	}
 	
 	private String contactsToString() {
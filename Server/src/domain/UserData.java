@@ -1,17 +1,74 @@
 package domain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * <p>Registered users, indexed by name. A reverse index maps every user name to the names of the users that have it as a contact, 
+ * so that removing a user does not need to look into every contact list. Contact lists must therefore be changed by registering or updating users.</p>
+ * <p>Every change is notified to the {@code UserDataListener}, if there is one. Changes can be paused with {@link UserData#freeze(Runnable)} 
+ * to get a view of the users consistent with the notified changes. The listener is told when the thread that made a change has released the lock, 
+ * so that waiting for the change to be stored does not hold it.</p>
+ * <p>The serialized form is the same as in previous versions: a single {@code Collection} of users.</p>
+ */
 public class UserData implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("registeredUsers", Collection.class) };
 	
-	private Collection<User> registeredUsers;
+	private transient ConcurrentMap<String, User> registeredUsers;
+	private transient ConcurrentMap<String, Set<String>> contactOwners;
+	private transient ReadWriteLock lock;
+	private transient UserDataListener listener;
 
 	public UserData() {
-		registeredUsers = new HashSet<User>();
+		registeredUsers = new ConcurrentHashMap<String, User>();
+		contactOwners = new ConcurrentHashMap<String, Set<String>>();
+		lock = new ReentrantReadWriteLock();
+	}
+	
+	/**
+	 * @param listener {@code UserDataListener} notified of every change, null to stop notifying changes.
+	 */
+	public void setListener(UserDataListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * <p>Runs the inserted task while no changes can be made. Changes requested meanwhile wait until the task ends, so the task should only take a {@link UserData#copy()}.</p>
+	 * @param task
+	 */
+	public void freeze(Runnable task) {
+		lock.writeLock().lock();
+		try {
+			task.run();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * <p>Copies all the users. Taken inside {@link UserData#freeze(Runnable)}, the copy has all the notified changes and no other, 
+	 * and can be serialized while new changes are made to this {@code UserData}.</p>
+	 * @return New {@code UserData} with a copy of every user and no listener.
+	 */
+	public UserData copy() {
+		UserData copy = new UserData();
+		for (User user : registeredUsers.values()) {
+			copy.registerUser(user.copy());
+		}
+		return copy;
 	}
 	
 	/**
@@ -19,8 +76,16 @@ public class UserData implements Serializable {
 	 * @return true if the user has been registered, false if the user already existed or the parameter is null.
 	 */
 	public boolean registerUser(User user) {
-		if (contains(user)) return false;
-		return registeredUsers.add(user);
+		if (user == null) return false;
+		lock.readLock().lock();
+		try {
+			if (registeredUsers.putIfAbsent(user.getName(), user) != null) return false;
+			indexContacts(user);
+			if (listener != null) listener.userRegistered(user);
+			return true;
+		} finally {
+			unlock();
+		}
 	}
 	
 	/**
@@ -29,22 +94,78 @@ public class UserData implements Serializable {
 	 * @return true if the user exists and could be removed, false if the user does not exist or the parameter is null.
 	 */
 	public boolean removeUser(String name) {
-		for (User user : registeredUsers) {
-			if (user.hasContact(name)) user.removeContact(name);
+		if (name == null) return false;
+		lock.readLock().lock();
+		try {
+			User removed = registeredUsers.remove(name);
+			if (removed == null) return false;
+			unindexContacts(removed);
+			Set<String> owners = contactOwners.remove(name);
+			if (owners != null) {
+				for (String owner : owners) {
+					User user = registeredUsers.get(owner);
+					if (user != null) user.removeContact(name);
+				}
+			}
+			if (listener != null) listener.userRemoved(name);
+			return true;
+		} finally {
+			unlock();
 		}
-		return remove(name);
 	}
 	
 	/**
-	 * Removes the specified user from the registered user list and from the contact list of all the users who have it.
+	 * <p>Removes the specified user from the registered user list without removing it from the contact lists, because the user is kept by another node from now on.</p>
+	 * @param name
+	 * @return true if the user exists and could be released, false if the user does not exist or the parameter is null.
+	 */
+	public boolean releaseUser(String name) {
+		if (name == null) return false;
+		lock.readLock().lock();
+		try {
+			User released = registeredUsers.remove(name);
+			if (released == null) return false;
+			unindexContacts(released);
+			if (listener != null) listener.userReleased(name);
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * <p>Removes a user that is not kept here from the contact list of all the users who have it.</p>
 	 * @param name
+	 * @return Number of users that had the specified user as contact.
+	 */
+	public int forgetContact(String name) {
+		if (name == null) return 0;
+		lock.readLock().lock();
+		try {
+			Set<String> owners = contactOwners.remove(name);
+			if (owners == null) return 0;
+			int forgotten = 0;
+			for (String owner : owners) {
+				User user = registeredUsers.get(owner);
+				if (user == null) continue;
+				user.removeContact(name);
+				forgotten++;
+				if (listener != null) listener.userUpdated(user);
+			}
+			return forgotten;
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Removes the specified user from the registered user list and from the contact list of all the users who have it.
+	 * @param user
 	 * @return true if the user exists and could be removed, false if the user does not exist or the parameter is null.
 	 */
 	public boolean removeUser(User user) {
-		for (User u : registeredUsers) {
-			if (u.hasContact(u.getName())) u.removeContact(u.getName());
-		}
-		return remove(user);
+		if (user == null) return false;
+		return removeUser(user.getName());
 	}
 	
 	/**
@@ -53,9 +174,88 @@ public class UserData implements Serializable {
 	 * @return true if the user has been updated, false if the user does not exist or the parameter is null.
 	 */
 	public boolean updateUser(User user) {
-		if (!contains(user)) return false;
-		remove(user);
-		return registeredUsers.add(user);
+		if (user == null) return false;
+		lock.readLock().lock();
+		try {
+			User previous = registeredUsers.replace(user.getName(), user);
+			if (previous == null) return false;
+			unindexContacts(previous);
+			indexContacts(user);
+			if (listener != null) listener.userUpdated(user);
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * <p>Applies the contact and password changes of the {@code UserDelta} to the user, if it is still in the base version of the delta, and increases its version.
+	 * Contacts are added as they are, the caller must check that they are registered, and passwords must be already hashed. Chat appends are not applied, chats are not kept in the users.</p>
+	 * @param name
+	 * @param delta
+	 * @return true if the changes have been applied, false if the user does not exist, is in another version or one of the parameters are null.
+	 */
+	public boolean applyDelta(String name, UserDelta delta) {
+		if (delta == null) return false;
+		lock.readLock().lock();
+		try {
+			User user = getUser(name);
+			if (user == null) return false;
+			synchronized (user) {
+				if (user.getVersion() != delta.getBaseVersion()) return false;
+				for (UserDelta.Operation operation : delta.getOperations()) {
+					switch (operation.getKind()) {
+					case CONTACT_ADDED:
+						if (operation.getContact() != null && !user.hasContact(operation.getContact())) {
+							user.addContact(operation.getContact());
+							indexContact(name, operation.getContact());
+						}
+						break;
+						
+					case CONTACT_REMOVED:
+						if (user.hasContact(operation.getContact())) {
+							user.removeContact(operation.getContact());
+							Set<String> owners = contactOwners.get(operation.getContact());
+							if (owners != null) owners.remove(name);
+						}
+						break;
+						
+					case PASSWORD_CHANGED:
+						user.setPassword(operation.getText());
+						break;
+						
+					default:
+						break;
+					}
+				}
+				user.setVersion(user.getVersion() + 1);
+				if (listener != null) listener.userUpdated(user);
+			}
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * <p>Adds the text to the chat that the specified user has with one of its contacts.</p>
+	 * @param name
+	 * @param contact
+	 * @param text
+	 * @return true if the text has been added, false if the user does not exist, does not have the contact or one of the parameters are null.
+	 */
+	public boolean addToChat(String name, String contact, String text) {
+		if (text == null) return false;
+		lock.readLock().lock();
+		try {
+			User user = getUser(name);
+			if (user == null || !user.hasContact(contact)) return false;
+			user.addToChat(contact, text);
+			if (listener != null) listener.chatAppended(name, contact, text);
+			return true;
+		} finally {
+			unlock();
+		}
 	}
 	
 	/**
@@ -63,25 +263,22 @@ public class UserData implements Serializable {
 	 * @return User with the specified name, null if the user does not exist or the parameer is null.
 	 */
 	public User getUser(String name) {
-		return obtain(name);
+		if (name == null) return null;
+		return registeredUsers.get(name);
 	}
 	
 	/**
 	 * @return Collection of Users with all the registered users.
 	 */
 	public Collection<User> getAllUsers() {
-		return registeredUsers;
+		return Collections.unmodifiableCollection(registeredUsers.values());
 	}
 	
 	/**
 	 * @return Collection of Strings with the names of all the registered users.
 	 */
 	public Collection<String> getAllUserNames() {
-		Collection<String> names = new HashSet<String>();
-		for (User user : registeredUsers) {
-			names.add(user.getName());
-		}
-		return names;
+		return new HashSet<String>(registeredUsers.keySet());
 	}
 
 	/**
@@ -89,61 +286,105 @@ public class UserData implements Serializable {
 	 * @return true if the user is registered, false if the user does not exist or the parameter is null.
 	 */
 	public boolean isRegistered(String name) {
-		return contains(name);
+		if (name == null) return false;
+		return registeredUsers.containsKey(name);
 	}
 	
 	/**
-	 * @param name
+	 * @param user
 	 * @return true if the user is registered, false if the user does not exist or the parameter is null.
 	 */
 	public boolean isRegistered(User user) {
-		return contains(user);
+		if (user == null) return false;
+		return isRegistered(user.getName());
 	}
 	
 	/**
+	 * <p>Verifies the password against the {@code PasswordHash} of the user. Plaintext passwords stored by previous versions, 
+	 * and hashes with less iterations than the current ones, are replaced with a new hash once the password is verified.
+	 * This method takes as long as the hash makes it.</p>
 	 * @param name
 	 * @param password
 	 * @return true if the user with the introduced name contains the specified password, false if the password is wrong or the user is not registered or one of the parameters are null.
 	 */
 	public boolean isPasswordValid(String name, String password) {
-		if (password == null || name == null) return false;
-		if (!contains(name)) return false;
-		return obtain(name).getPassword().equals(password);
+		if (password == null) return false;
+		User user = getUser(name);
+		if (user == null) return false;
+		String stored = user.getPassword();
+		if (!PasswordHash.verify(password, stored)) return false;
+		if (PasswordHash.needsRehash(stored)) rehash(user, stored, PasswordHash.hash(password));
+		return true;
 	}
 	
-	private User obtain(User user) {
-		if (user == null) return null;
-		for (User u : registeredUsers) {
-			if (u.equals(user)) return u;
+	/**
+	 * Replaces the stored password of the user with its new hash, unless it has been changed meanwhile.
+	 * @param user
+	 * @param stored
+	 * @param hash
+	 */
+	private void rehash(User user, String stored, String hash) {
+		lock.readLock().lock();
+		try {
+			synchronized (user) {
+				if (registeredUsers.get(user.getName()) != user || !stored.equals(user.getPassword())) return;
+				user.setPassword(hash);
+				if (listener != null) listener.userUpdated(user);
+			}
+		} finally {
+			unlock();
 		}
-		return null;
 	}
 	
-	private User obtain(String name) {
-		if (name == null) return null;
-		for (User u : registeredUsers) {
-			if (u.getName().equals(name)) return u;
+	/**
+	 * Releases the read lock taken to make a change, and tells the listener.
+	 */
+	private void unlock() {
+		lock.readLock().unlock();
+		UserDataListener listener = this.listener;
+		if (listener != null) listener.unlocked();
+	}
+	
+	private void indexContacts(User user) {
+		for (String contact : user.getContacts()) {
+			indexContact(user.getName(), contact);
 		}
-		return null;
 	}
 	
-	private boolean contains(User user) {
-		return obtain(user) != null;
+	private void indexContact(String name, String contact) {
+		Set<String> owners = contactOwners.get(contact);
+		if (owners == null) {
+			Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			owners = contactOwners.putIfAbsent(contact, created);
+			if (owners == null) owners = created;
+		}
+		owners.add(name);
 	}
 	
-	private boolean contains(String name) {
-		return obtain(name) != null;
+	private void unindexContacts(User user) {
+		for (String contact : user.getContacts()) {
+			Set<String> owners = contactOwners.get(contact);
+			if (owners != null) owners.remove(user.getName());
+		}
 	}
 	
-	private boolean remove(User user) {
-		User u = obtain(user);
-		if (u == null) return false;
-		return registeredUsers.remove(u);
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("registeredUsers", new HashSet<User>(registeredUsers.values()));
+		out.writeFields();
 	}
 	
-	private boolean remove(String name) {
-		User u = obtain(name);
-		if (u == null) return false;
-		return registeredUsers.remove(u);
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Collection<User> users = (Collection<User>) fields.get("registeredUsers", null);
+		registeredUsers = new ConcurrentHashMap<String, User>();
+		contactOwners = new ConcurrentHashMap<String, Set<String>>();
+		lock = new ReentrantReadWriteLock();
+		if (users != null) {
+			for (User user : users) {
+				registerUser(user);
+			}
+		}
 	}
 }
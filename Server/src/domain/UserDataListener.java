@@ -0,0 +1,23 @@
+package domain;
+
+/**
+ * <p>Receives every change made to a {@code UserData}, right after it has been applied.</p>
+ */
+public interface UserDataListener {
+
+	void userRegistered(User user);
+
+	void userUpdated(User user);
+
+	void userRemoved(String name);
+
+	void userReleased(String name);
+
+	void chatAppended(String name, String contact, String text);
+
+	/**
+	 * Called by the thread that has made changes once it has released the locks of the {@code UserData}, 
+	 * so that it can wait for them to be stored without making other changes or a {@link UserData#freeze(Runnable)} wait.
+	 */
+	void unlocked();
+}
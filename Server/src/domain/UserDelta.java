@@ -0,0 +1,112 @@
+package domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Changes made by a Client to its {@code User} since a known version. A Client sends it in a {@code USER_UPDATE} instead of the whole {@code User}, 
+ * so an update costs as much as what has changed. The server applies the changes only if the {@code User} is still in the base version, 
+ * otherwise the Client has missed other changes and has to start again from the current {@code User}.</p>
+ */
+public class UserDelta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Kind of change.
+	 */
+	public enum Kind {
+		CONTACT_ADDED,
+		CONTACT_REMOVED,
+		CHAT_APPENDED,
+		PASSWORD_CHANGED,
+	}
+
+	/**
+	 * Single change of a {@code UserDelta}.
+	 */
+	public static class Operation implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private Kind kind;
+		private String contact;
+		private String text;
+
+		/**
+		 * @param kind
+		 * @param contact Contact changed, null for {@code PASSWORD_CHANGED}.
+		 * @param text Text appended for {@code CHAT_APPENDED}, new password for {@code PASSWORD_CHANGED}, null otherwise.
+		 */
+		public Operation(Kind kind, String contact, String text) {
+			this.kind = kind;
+			this.contact = contact;
+			this.text = text;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public String getContact() {
+			return contact;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		@Override
+		public String toString() {
+			return kind+(contact == null ? "" : " "+contact);
+		}
+	}
+
+	private long baseVersion;
+	private ArrayList<Operation> operations;
+
+	/**
+	 * @param baseVersion Version of the {@code User} the changes were made on.
+	 */
+	public UserDelta(long baseVersion) {
+		this.baseVersion = baseVersion;
+		operations = new ArrayList<Operation>();
+	}
+
+	public long getBaseVersion() {
+		return baseVersion;
+	}
+
+	/**
+	 * @return Changes in the order they were made.
+	 */
+	public List<Operation> getOperations() {
+		return operations;
+	}
+
+	public UserDelta addContact(String contact) {
+		operations.add(new Operation(Kind.CONTACT_ADDED, contact, null));
+		return this;
+	}
+
+	public UserDelta removeContact(String contact) {
+		operations.add(new Operation(Kind.CONTACT_REMOVED, contact, null));
+		return this;
+	}
+
+	public UserDelta appendToChat(String contact, String text) {
+		operations.add(new Operation(Kind.CHAT_APPENDED, contact, text));
+		return this;
+	}
+
+	public UserDelta changePassword(String password) {
+		operations.add(new Operation(Kind.PASSWORD_CHANGED, null, password));
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "Version "+baseVersion+" "+operations;
+	}
+}
@@ -0,0 +1,19 @@
+package domain;
+
+/**
+ * <p>Is told whether the messages queued in a {@code Connection} have been written or discarded.</p>
+ * @see Connection#whenWritten(WriteListener)
+ */
+public interface WriteListener {
+
+	/**
+	 * Called once all the messages queued before the listener was added have been written, by the thread that wrote the last of them.
+	 */
+	void written();
+
+	/**
+	 * Called instead of {@link WriteListener#written()} if the {@code Connection} is closed before all of them have been written. 
+	 * Some of them may have been written anyway.
+	 */
+	void discarded();
+}
@@ -1,5 +1,6 @@
 package persistence;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -7,7 +8,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import application.ServerController;
+import domain.Metrics;
+import domain.Settings;
 import domain.UserData;
 
 public class FileManager {
@@ -15,6 +24,11 @@ public class FileManager {
 	public static final String DEFAULT_DATA_FILE = "user_data.txt";
 	
 	private File file;
+	private UserJournal journal;
+	private UserData userData;
+	private volatile long snapshotSequence;
+	private Thread snapshots;
+	private CountDownLatch closing;
 
 	/**
 	 * Creates an instance of {@code FileManager}. This instance automatically tries to open the default file {@value FileManager#DEFAULT_DATA_FILE}, if it doesn't find any, it creates a new one.
@@ -26,32 +40,121 @@ public class FileManager {
 	}
 
 	/**
+	 * <p>Reads the last snapshot of {@code UserData} from the default file and applies the changes recorded in the {@code UserJournal} after it. 
+	 * From then on, every change made to the returned {@code UserData} is recorded in the journal, and a new snapshot is taken every {@code snapshotInterval} seconds.</p>
 	 * @return {@code UserData} object read from the default file, if the file is empty returns a new empty instance of {@code UserData}.
 	 * @throws IOException If there is a problem reading the file.
 	 * @throws ClassNotFoundException If the read object is not an instance of {@code UserData}.
 	 */
 	public UserData load() throws IOException, ClassNotFoundException {
-		UserData userData;
+		long start = System.nanoTime();
+		snapshotSequence = 0;
 		try {
 			ObjectInputStream objectReader = new ObjectInputStream(new FileInputStream(file));
 			userData = (UserData) objectReader.readObject();
+			try {
+				snapshotSequence = objectReader.readLong();
+			} catch (EOFException e) {
+				//Snapshot written before the journal existed
+			}
 			objectReader.close();
 		} catch (EOFException e) {
 			userData = new UserData();
 		}
+		File directory = file.getAbsoluteFile().getParentFile();
+		long sequence = UserJournal.replay(directory, userData, snapshotSequence);
+		journal = new UserJournal(directory, sequence, Settings.journalSync, Settings.journalSyncInterval);
+		userData.setListener(journal);
+		startSnapshots();
+		Metrics.histogram("users.load").recordSince(start);
 		return userData;
 	}
 	
 	/**
-	 * Writtes the {@code UserData} object in the default file.
+	 * Writtes the {@code UserData} object in the default file, followed by the sequence number of the last journal record it contains, and discards the journal up to that record.
+	 * The file is replaced atomically, so a crash while saving keeps the previous snapshot. 
+	 * Changes are only held while the journal is rotated and the users are copied: the copy is serialized afterwards.
+	 * Saves are made one at a time, and a snapshot older than the last one saved never replaces it.
 	 * @param userData
 	 * @throws IOException If there is a problem writting the object.
 	 */
-	public void save(UserData userData) throws IOException {
-		FileOutputStream fileWriter = new FileOutputStream(file);
-		ObjectOutputStream objectWriter = new ObjectOutputStream(fileWriter);
-		objectWriter.writeObject(userData);
+	public synchronized void save(final UserData userData) throws IOException {
+		long start = System.nanoTime();
+		final long[] sequence = new long[1];
+		final UserData[] copy = new UserData[1];
+		try {
+			userData.freeze(new Runnable() {
+				public void run() {
+					try {
+						sequence[0] = journal == null ? 0 : journal.rotate();
+						copy[0] = userData.copy();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (sequence[0] < snapshotSequence) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectWriter = new ObjectOutputStream(bytes);
+		objectWriter.writeObject(copy[0]);
+		objectWriter.writeLong(sequence[0]);
 		objectWriter.close();
+		File temporary = new File(file.getPath()+".tmp");
+		FileOutputStream fileWriter = new FileOutputStream(temporary);
+		bytes.writeTo(fileWriter);
+		fileWriter.getChannel().force(true);
 		fileWriter.close();
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (journal != null) journal.discard(sequence[0]);
+		snapshotSequence = sequence[0];
+		Metrics.histogram("users.save").recordSince(start);
+	}
+	
+	/**
+	 * Stops the snapshot thread, waiting for the snapshot it may be saving, then saves the {@code UserData} and closes the journal.
+	 * @param userData
+	 * @throws IOException If there is a problem writting the object or closing the journal.
+	 */
+	public void close(UserData userData) throws IOException {
+		if (snapshots != null) {
+			closing.countDown();
+			try {
+				snapshots.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		save(userData);
+		if (journal != null) {
+			userData.setListener(null);
+			journal.close();
+		}
+	}
+	
+	/**
+	 * Starts a thread that saves a new snapshot every {@code snapshotInterval} seconds, if there have been changes since the last one, until {@code close} is called.
+	 */
+	private void startSnapshots() {
+		if (Settings.snapshotInterval <= 0) return;
+		closing = new CountDownLatch(1);
+		snapshots = new Thread("Snapshots") {
+			public void run() {
+				while (true) {
+					try {
+						if (closing.await(Settings.snapshotInterval, TimeUnit.SECONDS)) return;
+						if (journal.getLastSequence() > snapshotSequence) save(userData);
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException | IllegalStateException e) {
+						ServerController.getInstance().exception(e);
+					}
+				}
+			}
+		};
+		snapshots.setDaemon(true);
+		snapshots.start();
 	}
 }
@@ -0,0 +1,243 @@
+package persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import application.ServerController;
+
+/**
+ * <p>Members of the group chats. A group is removed when its last member leaves it.</p>
+ * <p>Groups are kept in memory, where the members of a group are never changed but replaced by a changed copy, so they are read without any lock. 
+ * Every change wakes up a background thread that writes all the groups to their file, through a temporary file so that the file always holds 
+ * either the previous groups or the new ones. Changes made while a write is in progress are written together in the next one, 
+ * so a crash loses at most the changes of the last write. If a write fails it is tried again {@value GroupStore#RETRY_DELAY} milliseconds later.</p>
+ */
+public class GroupStore {
+
+	public static final String DEFAULT_FILE = "groups.dat";
+
+	private static final long RETRY_DELAY = 1000;
+
+	private File file;
+	private ConcurrentMap<String, LinkedHashSet<String>> groups;
+	private Thread writer;
+	private boolean changed;
+	private boolean closed;
+
+	/**
+	 * Reads the groups from the file, if it exists, and starts the thread that writes them.
+	 * @param file
+	 * @throws IOException If the file could not be read.
+	 * @throws ClassNotFoundException If the file does not contain groups.
+	 * @throws IllegalArgumentException If the argument is null.
+	 */
+	@SuppressWarnings("unchecked")
+	public GroupStore(File file) throws IOException, ClassNotFoundException {
+		if (file == null) throw new IllegalArgumentException("Argument can't be null.");
+		this.file = file;
+		groups = new ConcurrentHashMap<String, LinkedHashSet<String>>();
+		if (file.length() > 0) {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+			try {
+				groups.putAll((HashMap<String, LinkedHashSet<String>>) in.readObject());
+			} finally {
+				in.close();
+			}
+		}
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "Groups-Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param group
+	 * @param members
+	 * @return true if the group has been created with the specified members, false if it already existed.
+	 */
+	public synchronized boolean create(String group, Collection<String> members) {
+		if (groups.putIfAbsent(group, new LinkedHashSet<String>(members)) != null) return false;
+		changed();
+		return true;
+	}
+
+	/**
+	 * @param group
+	 * @param members
+	 * @return Number of members added to the group, that were not in it yet.
+	 */
+	public synchronized int add(String group, Collection<String> members) {
+		LinkedHashSet<String> current = groups.get(group);
+		if (current == null) return 0;
+		LinkedHashSet<String> updated = new LinkedHashSet<String>(current);
+		updated.addAll(members);
+		int added = updated.size() - current.size();
+		if (added > 0) {
+			groups.put(group, updated);
+			changed();
+		}
+		return added;
+	}
+
+	/**
+	 * Removes a member from a group, and the group if it was its last member.
+	 * @param group
+	 * @param member
+	 * @return true if the member was in the group.
+	 */
+	public synchronized boolean remove(String group, String member) {
+		LinkedHashSet<String> current = groups.get(group);
+		if (current == null || !current.contains(member)) return false;
+		replace(group, current, member);
+		changed();
+		return true;
+	}
+
+	/**
+	 * Removes a user from all the groups it is a member of.
+	 * @param name
+	 * @return Names of the groups the user was a member of.
+	 */
+	public synchronized List<String> removeUser(String name) {
+		List<String> left = new ArrayList<String>();
+		for (Map.Entry<String, LinkedHashSet<String>> entry : groups.entrySet()) {
+			if (!entry.getValue().contains(name)) continue;
+			left.add(entry.getKey());
+			replace(entry.getKey(), entry.getValue(), name);
+		}
+		if (!left.isEmpty()) changed();
+		return left;
+	}
+
+	/**
+	 * @param group
+	 * @return Copy of the members of the group, in the order they were added. Null if the group does not exist.
+	 */
+	public ArrayList<String> getMembers(String group) {
+		LinkedHashSet<String> members = groups.get(group);
+		return members == null ? null : new ArrayList<String>(members);
+	}
+
+	/**
+	 * @param group
+	 * @param name
+	 * @return true if the user is a member of the group.
+	 */
+	public boolean isMember(String group, String name) {
+		LinkedHashSet<String> members = groups.get(group);
+		return members != null && members.contains(name);
+	}
+
+	/**
+	 * @return Number of groups.
+	 */
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * Writes the changes that have not been written yet and stops the writing thread.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Replaces the members of a group by a copy without the member, or removes the group if it was its last member. Must be called holding the lock of this store.
+	 * @param group
+	 * @param current
+	 * @param member
+	 */
+	private void replace(String group, LinkedHashSet<String> current, String member) {
+		if (current.size() == 1) {
+			groups.remove(group);
+			return;
+		}
+		LinkedHashSet<String> updated = new LinkedHashSet<String>(current);
+		updated.remove(member);
+		groups.put(group, updated);
+	}
+
+	/**
+	 * Wakes up the writing thread. Must be called holding the lock of this store.
+	 */
+	private void changed() {
+		changed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Writes the groups every time they change, until the store is closed and the last changes are written.
+	 */
+	private void write() {
+		while (true) {
+			synchronized (this) {
+				while (!changed && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!changed) return;
+				changed = false;
+			}
+			try {
+				save(new HashMap<String, LinkedHashSet<String>>(groups));
+			} catch (IOException e) {
+				ServerController.getInstance().exception(e);
+				synchronized (this) {
+					changed = true;
+					if (closed) return;
+				}
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void save(HashMap<String, LinkedHashSet<String>> snapshot) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectWriter = new ObjectOutputStream(bytes);
+		objectWriter.writeObject(snapshot);
+		objectWriter.close();
+		File temporary = new File(file.getPath()+".tmp");
+		FileOutputStream fileWriter = new FileOutputStream(temporary);
+		try {
+			bytes.writeTo(fileWriter);
+			fileWriter.getChannel().force(true);
+		} finally {
+			fileWriter.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,532 @@
+package persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Chat history of every user with each of its contacts. Every conversation is kept in its own directory as an append-only log split in segments:</p>
+ * <ul>
+ * <li>The log file of a segment holds entries written as 4 bytes with the length followed by the UTF-8 text.</li>
+ * <li>The index file of a segment holds 4 bytes for every entry with its offset in the log file, so any page of the history can be read without scanning it.</li>
+ * <li>Both files are named after the number of the first entry of the segment. A new segment is started when the log file grows over the segment size.</li>
+ * <li>A small file keeps how many entries the owner of the conversation has already read.</li>
+ * </ul>
+ * <p>After a crash, entries torn at the end of the last segment are discarded and its index is rebuilt from the log.
+ * Only a limited number of conversations are kept open, the least recently used one is closed when another one is opened.</p>
+ * <p>Every conversation is opened, used and closed holding only its own lock, so the disk accesses of a conversation do not delay the rest.</p>
+ * <p>The owners of the conversations with every user are also kept by user, read from the directory when the store is opened, 
+ * so removing a user only costs as much as the conversations it takes part in.</p>
+ */
+public class HistoryStore {
+
+	public static final String DEFAULT_DIRECTORY = "chat_history";
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String READ_FILE = "read";
+	private static final int INDEX_ENTRY_SIZE = 4;
+	private static final int MAX_OPEN_CONVERSATIONS = 256;
+
+	private File directory;
+	private long segmentSize;
+	private ConcurrentMap<String, Conversation> conversations;
+	private ConcurrentMap<String, Set<String>> owners;
+	private AtomicLong uses;
+
+	/**
+	 * Opens the store, creating the directory if it does not exist, and lists the conversations it has.
+	 * @param directory
+	 * @param segmentSize Size in bytes after which a new segment is started.
+	 * @throws IOException If the directory could not be created.
+	 */
+	public HistoryStore(File directory, long segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create directory "+directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		conversations = new ConcurrentHashMap<String, Conversation>();
+		owners = new ConcurrentHashMap<String, Set<String>>();
+		uses = new AtomicLong();
+		String[] ownerDirectories = directory.list();
+		if (ownerDirectories == null) return;
+		for (String owner : ownerDirectories) {
+			String[] contacts = new File(directory, owner).list();
+			if (contacts == null) continue;
+			for (String contact : contacts) {
+				ownersOf(decode(contact)).add(decode(owner));
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry at the end of the conversation that the owner has with the contact.
+	 * @param owner
+	 * @param contact
+	 * @param text
+	 * @param read true if the owner has already seen the entry, for example because the owner wrote it.
+	 * @return Number of the entry in the conversation.
+	 * @throws IOException If the entry could not be written.
+	 */
+	public long append(String owner, String contact, String text, boolean read) throws IOException {
+		while (true) {
+			Conversation conversation = open(owner, contact);
+			long number;
+			synchronized (conversation) {
+				if (conversation.closed) continue;
+				conversation.load();
+				number = conversation.append(text, read);
+			}
+			if (number == 0) ownersOf(contact).add(owner);
+			return number;
+		}
+	}
+
+	/**
+	 * Reads a page of the conversation that the owner has with the contact.
+	 * @param owner
+	 * @param contact
+	 * @param from Number of the first entry of the page, negative to read the last entries.
+	 * @param count Maximum number of entries of the page.
+	 * @return Entries of the page, in the order they were added.
+	 * @throws IOException If the entries could not be read.
+	 */
+	public List<String> read(String owner, String contact, long from, int count) throws IOException {
+		while (true) {
+			Conversation conversation = open(owner, contact);
+			synchronized (conversation) {
+				if (conversation.closed) continue;
+				conversation.load();
+				return conversation.read(from < 0 ? Math.max(0, conversation.size - count) : from, count);
+			}
+		}
+	}
+
+	/**
+	 * @param owner
+	 * @param contact
+	 * @return Number of entries of the conversation that the owner has with the contact.
+	 * @throws IOException If the conversation could not be opened.
+	 */
+	public long size(String owner, String contact) throws IOException {
+		while (true) {
+			Conversation conversation = open(owner, contact);
+			synchronized (conversation) {
+				if (conversation.closed) continue;
+				conversation.load();
+				return conversation.size;
+			}
+		}
+	}
+
+	/**
+	 * @param owner
+	 * @param contact
+	 * @return Number of entries of the conversation that the owner has not read yet.
+	 * @throws IOException If the conversation could not be opened.
+	 */
+	public long getUnread(String owner, String contact) throws IOException {
+		if (!conversationDirectory(owner, contact).isDirectory()) return 0;
+		while (true) {
+			Conversation conversation = open(owner, contact);
+			synchronized (conversation) {
+				if (conversation.closed) continue;
+				conversation.load();
+				return conversation.size - conversation.read;
+			}
+		}
+	}
+
+	/**
+	 * Marks as read all the entries of the conversation before the specified one.
+	 * @param owner
+	 * @param contact
+	 * @param end Number of the first entry not read.
+	 * @throws IOException If the conversation could not be opened.
+	 */
+	public void markRead(String owner, String contact, long end) throws IOException {
+		while (true) {
+			Conversation conversation = open(owner, contact);
+			synchronized (conversation) {
+				if (conversation.closed) continue;
+				conversation.load();
+				conversation.markRead(end);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the conversation that the owner has with the contact. The files are deleted holding the lock of the conversation, 
+	 * so it is not opened again until they are gone.
+	 * @param owner
+	 * @param contact
+	 */
+	public void remove(String owner, String contact) {
+		String key = key(owner, contact);
+		Conversation conversation = new Conversation(key, conversationDirectory(owner, contact), segmentSize);
+		Conversation open = conversations.putIfAbsent(key, conversation);
+		if (open != null) conversation = open;
+		synchronized (conversation) {
+			conversation.close();
+			delete(conversationDirectory(owner, contact));
+			conversations.remove(key, conversation);
+		}
+		Set<String> contactOwners = owners.get(contact);
+		if (contactOwners != null) contactOwners.remove(owner);
+		ownerDirectory(owner).delete();
+	}
+
+	/**
+	 * Deletes all the conversations of the specified user and the conversations that other users have with it.
+	 * @param name
+	 */
+	public void removeUser(String name) {
+		File owned = ownerDirectory(name);
+		String[] contacts = owned.list();
+		if (contacts != null) {
+			for (String contact : contacts) {
+				remove(name, decode(contact));
+			}
+		}
+		delete(owned);
+		Set<String> nameOwners = owners.remove(name);
+		if (nameOwners != null) {
+			for (String owner : nameOwners) {
+				remove(owner, name);
+			}
+		}
+	}
+
+	/**
+	 * Closes all the open conversations.
+	 */
+	public void close() {
+		for (Conversation conversation : conversations.values()) {
+			conversations.remove(conversation.key, conversation);
+			synchronized (conversation) {
+				conversation.close();
+			}
+		}
+	}
+
+	/**
+	 * @param owner
+	 * @param contact
+	 * @return The open conversation, which must be loaded holding its lock. If it was not open, the least recently used ones are closed 
+	 * while there are more than {@value HistoryStore#MAX_OPEN_CONVERSATIONS} open.
+	 */
+	private Conversation open(String owner, String contact) {
+		if (owner == null || contact == null) throw new IllegalArgumentException("Arguments can't be null.");
+		String key = key(owner, contact);
+		Conversation conversation = conversations.get(key);
+		if (conversation == null) {
+			Conversation created = new Conversation(key, conversationDirectory(owner, contact), segmentSize);
+			conversation = conversations.putIfAbsent(key, created);
+			if (conversation == null) {
+				conversation = created;
+				conversation.used = uses.incrementAndGet();
+				evict();
+				return conversation;
+			}
+		}
+		conversation.used = uses.incrementAndGet();
+		return conversation;
+	}
+
+	/**
+	 * Closes the least recently used conversations while there are more than {@value HistoryStore#MAX_OPEN_CONVERSATIONS} open. 
+	 * A conversation is removed before it is closed, so whoever finds it closed opens it again.
+	 */
+	private void evict() {
+		while (conversations.size() > MAX_OPEN_CONVERSATIONS) {
+			Conversation eldest = null;
+			for (Conversation conversation : conversations.values()) {
+				if (eldest == null || conversation.used < eldest.used) eldest = conversation;
+			}
+			if (eldest == null) return;
+			if (conversations.remove(eldest.key, eldest)) {
+				synchronized (eldest) {
+					eldest.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param contact
+	 * @return Owners of the conversations with the contact, created empty if there is none.
+	 */
+	private Set<String> ownersOf(String contact) {
+		Set<String> contactOwners = owners.get(contact);
+		if (contactOwners == null) {
+			Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			contactOwners = owners.putIfAbsent(contact, created);
+			if (contactOwners == null) contactOwners = created;
+		}
+		return contactOwners;
+	}
+
+	private String key(String owner, String contact) {
+		return owner+"\u0000"+contact;
+	}
+
+	private File ownerDirectory(String owner) {
+		return new File(directory, encode(owner));
+	}
+
+	private File conversationDirectory(String owner, String contact) {
+		return new File(ownerDirectory(owner), encode(contact));
+	}
+
+	/**
+	 * @param name
+	 * @return Hexadecimal form of the UTF-8 bytes of the name, valid as a file name in any file system.
+	 */
+	private static String encode(String name) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static String decode(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static String segmentName(long base, String suffix) {
+		return String.format("%019d", base)+suffix;
+	}
+
+	/**
+	 * <p>Open conversation, which reads its files the first time it is loaded. Must be used holding its lock.</p>
+	 */
+	private static class Conversation {
+
+		private String key;
+		private volatile long used;
+		private File directory;
+		private long segmentSize;
+		private TreeMap<Long, Integer> segments;
+		private long base;
+		private FileChannel log;
+		private FileChannel index;
+		private long size;
+		private long read;
+		private boolean readChanged;
+		private boolean loaded;
+		private boolean closed;
+
+		public Conversation(String key, File directory, long segmentSize) {
+			this.key = key;
+			this.directory = directory;
+			this.segmentSize = segmentSize;
+			segments = new TreeMap<Long, Integer>();
+		}
+
+		/**
+		 * Reads the conversation from its directory, recovering its last segment. Does nothing if it is already loaded.
+		 * @throws IOException If the files could not be read.
+		 */
+		public void load() throws IOException {
+			if (loaded) return;
+			segments.clear();
+			String[] files = directory.list();
+			if (files != null) {
+				for (String file : files) {
+					if (file.endsWith(LOG_SUFFIX)) segments.put(Long.parseLong(file.substring(0, file.length() - LOG_SUFFIX.length())), 0);
+				}
+			}
+			for (Map.Entry<Long, Integer> segment : segments.entrySet()) {
+				segment.setValue((int) (new File(directory, segmentName(segment.getKey(), INDEX_SUFFIX)).length() / INDEX_ENTRY_SIZE));
+			}
+			if (!segments.isEmpty()) {
+				base = segments.lastKey();
+				openSegment();
+				recover();
+				size = base + segments.get(base);
+			}
+			File readFile = new File(directory, READ_FILE);
+			if (readFile.exists()) {
+				DataInputStream in = new DataInputStream(new FileInputStream(readFile));
+				try {
+					read = Math.min(in.readLong(), size);
+				} finally {
+					in.close();
+				}
+			}
+			loaded = true;
+		}
+
+		public long append(String text, boolean read) throws IOException {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			if (log == null) {
+				if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create directory "+directory);
+				base = 0;
+				segments.put(base, 0);
+				openSegment();
+			}
+			else if (log.size() > 0 && log.size() + INDEX_ENTRY_SIZE + bytes.length > segmentSize) {
+				closeSegment();
+				base = size;
+				segments.put(base, 0);
+				openSegment();
+			}
+			long offset = log.size();
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE + bytes.length);
+			entry.putInt(bytes.length).put(bytes).flip();
+			while (entry.hasRemaining()) {
+				log.write(entry, offset + entry.position());
+			}
+			writeIndex(segments.get(base), offset);
+			segments.put(base, segments.get(base) + 1);
+			size++;
+			if (read && this.read == size - 1) markRead(size);
+			return size - 1;
+		}
+
+		public List<String> read(long from, int count) throws IOException {
+			List<String> entries = new ArrayList<String>();
+			long position = from;
+			while (entries.size() < count && position < size) {
+				long segment = segments.floorKey(position);
+				int segmentEntries = segments.get(segment);
+				FileChannel logChannel = segment == base ? log : FileChannel.open(new File(directory, segmentName(segment, LOG_SUFFIX)).toPath(), StandardOpenOption.READ);
+				FileChannel indexChannel = segment == base ? index : FileChannel.open(new File(directory, segmentName(segment, INDEX_SUFFIX)).toPath(), StandardOpenOption.READ);
+				try {
+					ByteBuffer offsetBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+					readFully(indexChannel, offsetBuffer, (position - segment) * INDEX_ENTRY_SIZE);
+					long offset = offsetBuffer.getInt(0) & 0xFFFFFFFFL;
+					ByteBuffer length = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+					while (entries.size() < count && position < segment + segmentEntries) {
+						length.clear();
+						readFully(logChannel, length, offset);
+						ByteBuffer text = ByteBuffer.allocate(length.getInt(0));
+						readFully(logChannel, text, offset + INDEX_ENTRY_SIZE);
+						entries.add(new String(text.array(), StandardCharsets.UTF_8));
+						offset += INDEX_ENTRY_SIZE + text.capacity();
+						position++;
+					}
+				} finally {
+					if (segment != base) {
+						logChannel.close();
+						indexChannel.close();
+					}
+				}
+			}
+			return entries;
+		}
+
+		public void markRead(long end) {
+			end = Math.min(end, size);
+			if (end > read) {
+				read = end;
+				readChanged = true;
+			}
+		}
+
+		/**
+		 * Writes the read marker and closes the files. The conversation can't be used after closing it.
+		 */
+		public void close() {
+			if (closed) return;
+			closed = true;
+			try {
+				if (readChanged && directory.isDirectory()) {
+					DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, READ_FILE)));
+					try {
+						out.writeLong(read);
+					} finally {
+						out.close();
+					}
+				}
+				closeSegment();
+			} catch (IOException e) {
+				System.err.println("Chat history "+directory+" could not be closed: "+e.getMessage());
+			}
+		}
+
+		private void openSegment() throws IOException {
+			log = FileChannel.open(new File(directory, segmentName(base, LOG_SUFFIX)).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			index = FileChannel.open(new File(directory, segmentName(base, INDEX_SUFFIX)).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		private void closeSegment() throws IOException {
+			if (log == null) return;
+			log.force(false);
+			index.force(false);
+			log.close();
+			index.close();
+			log = null;
+			index = null;
+		}
+
+		/**
+		 * Scans the log of the last segment, discarding a torn entry at its end, and rewrites its index.
+		 * @throws IOException If the segment could not be read or written.
+		 */
+		private void recover() throws IOException {
+			long logSize = log.size();
+			long offset = 0;
+			int count = 0;
+			ByteBuffer length = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+			while (offset + INDEX_ENTRY_SIZE <= logSize) {
+				length.clear();
+				readFully(log, length, offset);
+				long next = offset + INDEX_ENTRY_SIZE + length.getInt(0);
+				if (length.getInt(0) < 0 || next > logSize) break;
+				writeIndex(count, offset);
+				offset = next;
+				count++;
+			}
+			log.truncate(offset);
+			index.truncate((long) count * INDEX_ENTRY_SIZE);
+			segments.put(base, count);
+		}
+
+		private void writeIndex(int entry, long offset) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+			buffer.putInt((int) offset).flip();
+			while (buffer.hasRemaining()) {
+				index.write(buffer, (long) entry * INDEX_ENTRY_SIZE + buffer.position());
+			}
+		}
+
+		private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of chat history file.");
+			}
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import domain.Message;
+import domain.MessageCodec;
+
+/**
+ * <p>Append-only store of undelivered messages, kept in segment files inside a directory. Every record is:</p>
+ * <ul>
+ * <li>1 byte with the kind of record: a {@code Message} or the removal of one.</li>
+ * <li>8 bytes with the id of the {@code Message}.</li>
+ * <li>2 bytes with the length of the destination name and 4 bytes with the length of the body.</li>
+ * <li>The destination name in UTF-8 and the body, encoded with {@link MessageCodec#BINARY}.</li>
+ * </ul>
+ * <p>Only the position of every stored {@code Message} is kept in memory, bodies are read back when they are delivered. 
+ * Every segment but the current one is deleted once all its messages have been removed, or compacted by copying its live messages to the current segment if few are left. 
+ * A segment may hold the removals of messages stored in older segments: before it is deleted, the removals of messages that may still be in an older segment 
+ * are written again to the current one, so that those messages are not restored when the store is opened again.</p>
+ */
+public class MessageStore {
+
+	public static final String DEFAULT_DIRECTORY = "offline_messages";
+	public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final byte MESSAGE_RECORD = 1;
+	private static final byte REMOVE_RECORD = 2;
+	private static final int HEADER_SIZE = 15;
+	private static final int COMPACTION_PERCENT = 25;
+
+	private File directory;
+	private long segmentSize;
+	private TreeMap<Integer, Segment> segments;
+	private Segment current;
+	private long nextId;
+
+	/**
+	 * Opens the store in the specified directory, creating it if it does not exist, and rebuilds the index of the stored messages.
+	 * @param directory
+	 * @param segmentSize Size in bytes after which a new segment is started.
+	 * @throws IOException If there is a problem reading the segments.
+	 */
+	public MessageStore(File directory, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		segments = new TreeMap<Integer, Segment>();
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create directory "+directory);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+					int number = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+					segments.put(number, new Segment(number, file));
+				}
+			}
+		}
+		recover();
+		current = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+	}
+
+	/**
+	 * Stores the {@code Message} at the end of the current segment.
+	 * @param message
+	 * @return {@code Record} with the position of the stored {@code Message}.
+	 * @throws IOException If the {@code Message} could not be written.
+	 */
+	public synchronized Record append(Message message) throws IOException {
+		byte[] name = message.getDestinationName().getBytes(StandardCharsets.UTF_8);
+		byte[] body = MessageCodec.BINARY.encode(message);
+		Record record = new Record(nextId++, message.getDestinationName());
+		write(record, name, body);
+		return record;
+	}
+
+	/**
+	 * @param record
+	 * @return {@code Message} stored in the specified position.
+	 * @throws IOException If the {@code Message} could not be read.
+	 * @throws ClassNotFoundException If the {@code Message} contains an object whose class is unknown.
+	 */
+	public synchronized Message read(Record record) throws IOException, ClassNotFoundException {
+		Segment segment = segments.get(record.segment);
+		if (segment == null || !segment.live.contains(record)) throw new IOException("Message "+record.id+" is not stored.");
+		ByteBuffer body = ByteBuffer.allocate(record.length);
+		readFully(segment.channel, body, record.offset);
+		return MessageCodec.BINARY.decode(body.array(), 0, record.length);
+	}
+
+	/**
+	 * Marks the {@code Message} as removed, deleting or compacting its segment if it has few live messages left.
+	 * @param record
+	 * @throws IOException If the removal could not be written.
+	 */
+	public synchronized void remove(Record record) throws IOException {
+		Segment segment = segments.get(record.segment);
+		if (segment == null || !segment.live.remove(record)) return;
+		segment.liveBytes -= record.length;
+		writeRemoval(record.id);
+		compact();
+	}
+
+	/**
+	 * @return Records of all the stored messages, from oldest to newest.
+	 */
+	public synchronized List<Record> getRecords() {
+		List<Record> records = new ArrayList<Record>();
+		for (Segment segment : segments.values()) {
+			records.addAll(segment.live);
+		}
+		Collections.sort(records, new Comparator<Record>() {
+			public int compare(Record r1, Record r2) {
+				return Long.compare(r1.id, r2.id);
+			}
+		});
+		return records;
+	}
+
+	/**
+	 * Closes all the segment files.
+	 * @throws IOException If a segment could not be closed.
+	 */
+	public synchronized void close() throws IOException {
+		for (Segment segment : segments.values()) {
+			segment.channel.force(false);
+			segment.channel.close();
+		}
+	}
+
+	/**
+	 * Reads every segment in order, indexing the messages and applying the removals. Only the headers are read, bodies are skipped. 
+	 * A record cut by a crash at the end of a segment is discarded.
+	 * @throws IOException If a segment could not be read.
+	 */
+	private void recover() throws IOException {
+		Map<Long, Record> records = new TreeMap<Long, Record>();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		for (Segment segment : segments.values()) {
+			long position = 0;
+			long end = segment.channel.size();
+			while (position + HEADER_SIZE <= end) {
+				header.clear();
+				readFully(segment.channel, header, position);
+				header.flip();
+				byte kind = header.get();
+				long id = header.getLong();
+				int nameLength = header.getShort() & 0xFFFF;
+				int bodyLength = header.getInt();
+				if ((kind != MESSAGE_RECORD && kind != REMOVE_RECORD) || bodyLength < 0 || position + HEADER_SIZE + nameLength + bodyLength > end) break;
+				nextId = Math.max(nextId, id + 1);
+				if (kind == MESSAGE_RECORD) {
+					segment.stored(id);
+					ByteBuffer name = ByteBuffer.allocate(nameLength);
+					readFully(segment.channel, name, position + HEADER_SIZE);
+					Record record = new Record(id, new String(name.array(), StandardCharsets.UTF_8));
+					record.segment = segment.number;
+					record.offset = position + HEADER_SIZE + nameLength;
+					record.length = bodyLength;
+					records.put(id, record);
+				}
+				else {
+					records.remove(id);
+					segment.removals++;
+				}
+				position += HEADER_SIZE + nameLength + bodyLength;
+			}
+			if (position < end) segment.channel.truncate(position);
+			segment.size = position;
+		}
+		for (Record record : records.values()) {
+			Segment segment = segments.get(record.segment);
+			segment.live.add(record);
+			segment.liveBytes += record.length;
+		}
+	}
+
+	private void write(Record record, byte[] name, byte[] body) throws IOException {
+		rollIfFull();
+		ByteBuffer[] buffers = { header(MESSAGE_RECORD, record.id, name.length, body.length), ByteBuffer.wrap(name), ByteBuffer.wrap(body) };
+		long position = current.size;
+		current.channel.position(position);
+		long written = 0;
+		while (written < HEADER_SIZE + name.length + body.length) {
+			written += current.channel.write(buffers);
+		}
+		record.segment = current.number;
+		record.offset = position + HEADER_SIZE + name.length;
+		record.length = body.length;
+		current.size += written;
+		current.live.add(record);
+		current.liveBytes += body.length;
+		current.stored(record.id);
+	}
+
+	private void writeRemoval(long id) throws IOException {
+		ByteBuffer tombstone = header(REMOVE_RECORD, id, 0, 0);
+		rollIfFull();
+		while (tombstone.hasRemaining()) {
+			current.channel.write(tombstone, current.size + tombstone.position());
+		}
+		current.size += HEADER_SIZE;
+		current.removals++;
+	}
+
+	/**
+	 * Deletes every segment but the current one that has no live messages left, or copies the live ones to the current segment 
+	 * and deletes it if they are less than {@value MessageStore#COMPACTION_PERCENT}% of it. 
+	 * The removals of the deleted segments that may refer to messages of older segments are written again to the current one.
+	 * @throws IOException If a segment could not be compacted.
+	 */
+	private void compact() throws IOException {
+		for (Segment segment : new ArrayList<Segment>(segments.values())) {
+			if (segment.number >= current.number) break;
+			if (!segment.live.isEmpty() && segment.liveBytes * 100 >= segment.size * COMPACTION_PERCENT) continue;
+			for (Record record : new ArrayList<Record>(segment.live)) {
+				ByteBuffer body = ByteBuffer.allocate(record.length);
+				readFully(segment.channel, body, record.offset);
+				write(record, record.name.getBytes(StandardCharsets.UTF_8), body.array());
+			}
+			if (segment.removals > 0 && segment != segments.firstEntry().getValue()) {
+				for (long id : removals(segment)) {
+					if (storedBefore(segment, id)) writeRemoval(id);
+				}
+			}
+			segments.remove(segment.number);
+			segment.channel.close();
+			if (!segment.file.delete()) throw new IOException("Can't delete segment "+segment.file);
+		}
+	}
+
+	/**
+	 * @param segment
+	 * @return Ids of the messages whose removals are held by the segment. Only the headers are read.
+	 * @throws IOException If the segment could not be read.
+	 */
+	private List<Long> removals(Segment segment) throws IOException {
+		List<Long> ids = new ArrayList<Long>();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long position = 0;
+		while (position + HEADER_SIZE <= segment.size) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			header.flip();
+			byte kind = header.get();
+			long id = header.getLong();
+			int nameLength = header.getShort() & 0xFFFF;
+			int bodyLength = header.getInt();
+			if (kind == REMOVE_RECORD) ids.add(id);
+			position += HEADER_SIZE + nameLength + bodyLength;
+		}
+		return ids;
+	}
+
+	/**
+	 * @param segment
+	 * @param id
+	 * @return true if a segment older than the specified one may hold the {@code Message} with the id.
+	 */
+	private boolean storedBefore(Segment segment, long id) {
+		for (Segment older : segments.headMap(segment.number).values()) {
+			if (id >= older.minId && id <= older.maxId) return true;
+		}
+		return false;
+	}
+
+	private void rollIfFull() throws IOException {
+		if (current.size >= segmentSize) current = createSegment(current.number + 1);
+	}
+
+	private Segment createSegment(int number) throws IOException {
+		Segment segment = new Segment(number, new File(directory, String.format("%010d", number)+SEGMENT_SUFFIX));
+		segments.put(number, segment);
+		return segment;
+	}
+
+	private ByteBuffer header(byte kind, long id, int nameLength, int bodyLength) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(kind).putLong(id).putShort((short) nameLength).putInt(bodyLength);
+		header.flip();
+		return header;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of segment.");
+		}
+	}
+
+	/**
+	 * Position of a stored {@code Message}. It may change when its segment is compacted.
+	 */
+	public static class Record {
+
+		private long id;
+		private String name;
+		private int segment;
+		private long offset;
+		private int length;
+
+		private Record(long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		/**
+		 * @return Destination name of the stored {@code Message}.
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static class Segment {
+
+		private int number;
+		private File file;
+		private FileChannel channel;
+		private long size;
+		private long liveBytes;
+		private Set<Record> live;
+		private long minId = Long.MAX_VALUE;
+		private long maxId = -1;
+		private int removals;
+
+		public Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			size = channel.size();
+			live = new LinkedHashSet<Record>();
+		}
+
+		/**
+		 * Widens the range of ids of the messages that have been stored in this segment.
+		 * @param id
+		 */
+		public void stored(long id) {
+			minId = Math.min(minId, id);
+			maxId = Math.max(maxId, id);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package persistence;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import domain.LogEntry;
+import domain.LogSink;
+import domain.TimeFormat;
+
+/**
+ * <p>{@code LogSink} that appends the entries to a text file, one line per entry with its time and level. 
+ * When the file grows over the size limit it is renamed to {@code <name>.1}, the older files are shifted up to the maximum number of files kept, 
+ * and a new file is started.</p>
+ * <p>Every line is built in the same buffers, so writing an entry allocates nothing but the text of its time once a second.</p>
+ */
+public class RollingLogFile implements LogSink {
+
+	private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private File file;
+	private long maxSize;
+	private int maxFiles;
+	private Writer writer;
+	private long size;
+	private TimeFormat dateFormat;
+	private StringBuilder line;
+	private char[] chars;
+
+	/**
+	 * Opens the file to append entries to it.
+	 * @param file
+	 * @param maxSize Size in bytes after which the file is rolled.
+	 * @param maxFiles Number of rolled files kept besides the current one.
+	 * @throws IOException If the file could not be opened.
+	 */
+	public RollingLogFile(File file, long maxSize, int maxFiles) throws IOException {
+		this.file = file;
+		this.maxSize = maxSize;
+		this.maxFiles = maxFiles;
+		dateFormat = TimeFormat.of(DATE_FORMAT);
+		line = new StringBuilder(256);
+		chars = new char[256];
+		open();
+	}
+
+	@Override
+	public void write(List<LogEntry> entries) {
+		if (writer == null) return;
+		try {
+			for (LogEntry entry : entries) {
+				line.setLength(0);
+				appendTime(entry.getTime());
+				line.append(' ').append(entry.getLevel()).append(' ');
+				entry.appendTo(line).append(LINE_SEPARATOR);
+				int length = line.length();
+				if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+				line.getChars(0, length, chars, 0);
+				writer.write(chars, 0, length);
+				size += encodedLength(chars, length);
+			}
+			writer.flush();
+			if (size > maxSize) roll();
+		} catch (IOException e) {
+			System.err.println("Log file "+file+" could not be written: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		if (writer == null) return;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			System.err.println("Log file "+file+" could not be closed: "+e.getMessage());
+		}
+		writer = null;
+	}
+
+	/**
+	 * Appends the time to the line as {@value RollingLogFile#DATE_FORMAT} followed by the milliseconds.
+	 * @param time
+	 */
+	private void appendTime(long time) {
+		int millis = (int) Math.floorMod(time, 1000L);
+		line.append(dateFormat.format(time)).append('.');
+		if (millis < 100) line.append('0');
+		if (millis < 10) line.append('0');
+		line.append(millis);
+	}
+
+	/**
+	 * @param chars
+	 * @param length Number of chars used.
+	 * @return Number of bytes of the chars encoded in UTF-8. A surrogate pair takes 4 bytes, 2 for each of its chars.
+	 */
+	private static int encodedLength(char[] chars, int length) {
+		int bytes = 0;
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			if (c < 0x80) bytes += 1;
+			else if (c < 0x800 || Character.isSurrogate(c)) bytes += 2;
+			else bytes += 3;
+		}
+		return bytes;
+	}
+
+	private void open() throws IOException {
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		size = file.length();
+	}
+
+	/**
+	 * Shifts the rolled files, renames the current one and opens a new one.
+	 * @throws IOException If the new file could not be opened.
+	 */
+	private void roll() throws IOException {
+		writer.close();
+		writer = null;
+		new File(file.getPath()+"."+maxFiles).delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			new File(file.getPath()+"."+i).renameTo(new File(file.getPath()+"."+(i + 1)));
+		}
+		if (maxFiles > 0) file.renameTo(new File(file.getPath()+".1"));
+		else file.delete();
+		open();
+	}
+}
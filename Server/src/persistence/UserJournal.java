@@ -0,0 +1,426 @@
+package persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import application.ServerController;
+import domain.User;
+import domain.UserData;
+import domain.UserDataListener;
+
+/**
+ * <p>Write-ahead log of the changes made to a {@code UserData} since the last snapshot. Every record is:</p>
+ * <ul>
+ * <li>4 bytes with the length of the rest of the record and 4 bytes with its CRC32.</li>
+ * <li>8 bytes with the sequence number of the record.</li>
+ * <li>1 byte with the kind of change followed by its data: the whole {@code User} followed by its version for registrations and updates, the name for removals and for users handed to another node, 
+ * and the user, contact and text for chat appends. Text is written as a 4 byte length followed by its UTF-8 bytes.</li>
+ * </ul>
+ * <p>Records are written in groups by a background thread. Depending on the sync policy the file is forced to disk after every group, and the threads that made 
+ * the changes wait for it ({@value UserJournal#SYNC_ALWAYS}), every {@code syncInterval} milliseconds ({@value UserJournal#SYNC_INTERVAL}) 
+ * or only when the log is rotated or closed ({@value UserJournal#SYNC_NEVER}). 
+ * Threads wait once they have released the locks of the {@code UserData}, so a change waiting for the disk does not hold back the rest of changes nor the snapshots.</p>
+ * <p>The log is split in files named after the sequence number of their first record, a new one is started every time a snapshot is taken.</p>
+ */
+public class UserJournal implements UserDataListener {
+
+	public static final String SYNC_ALWAYS = "always";
+	public static final String SYNC_INTERVAL = "interval";
+	public static final String SYNC_NEVER = "never";
+
+	private static final String LOG_PREFIX = "user_data.";
+	private static final String LOG_SUFFIX = ".log";
+	private static final int HEADER_SIZE = 8;
+	private static final byte REGISTER = 1;
+	private static final byte UPDATE = 2;
+	private static final byte REMOVE = 3;
+	private static final byte CHAT_APPEND = 4;
+	private static final byte RELEASE = 5;
+
+	private File directory;
+	private String syncPolicy;
+	private long syncInterval;
+	private FileChannel channel;
+	private List<ByteBuffer> pending;
+	private long lastSequence;
+	private long durableSequence;
+	private long lastSync;
+	private boolean closed;
+	private Object ioLock;
+	private ThreadLocal<Long> unsynced;
+
+	/**
+	 * Starts a new log file after the last sequence number and the thread that writes the records.
+	 * @param directory
+	 * @param lastSequence Sequence number of the last record already applied.
+	 * @param syncPolicy {@value UserJournal#SYNC_ALWAYS}, {@value UserJournal#SYNC_INTERVAL} or {@value UserJournal#SYNC_NEVER}.
+	 * @param syncInterval Milliseconds between syncs with the {@value UserJournal#SYNC_INTERVAL} policy.
+	 * @throws IOException If the log file could not be created.
+	 */
+	public UserJournal(File directory, long lastSequence, String syncPolicy, long syncInterval) throws IOException {
+		this.directory = directory;
+		this.lastSequence = lastSequence;
+		this.durableSequence = lastSequence;
+		this.syncPolicy = syncPolicy;
+		this.syncInterval = syncInterval;
+		pending = new ArrayList<ByteBuffer>();
+		ioLock = new Object();
+		unsynced = new ThreadLocal<Long>();
+		channel = open(lastSequence + 1);
+		startWriter();
+	}
+
+	/**
+	 * <p>Applies to the {@code UserData} all the records of the log files in the directory with a sequence number greater than the specified one.
+	 * Replay stops at the first record that is incomplete or corrupted, which is removed together with the rest of the log.</p>
+	 * @param directory
+	 * @param userData
+	 * @param sequence Sequence number of the last change contained in the {@code UserData}.
+	 * @return Sequence number of the last record applied.
+	 * @throws IOException If a log file could not be read.
+	 */
+	public static long replay(File directory, UserData userData, long sequence) throws IOException {
+		TreeMap<Long, File> files = logFiles(directory);
+		boolean corrupted = false;
+		for (File file : files.values()) {
+			if (corrupted) {
+				if (!file.delete()) throw new IOException("Can't delete "+file);
+				continue;
+			}
+			FileChannel log = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				long position = 0;
+				long end = log.size();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (position + HEADER_SIZE <= end) {
+					header.clear();
+					readFully(log, header, position);
+					header.flip();
+					int length = header.getInt();
+					long crc = header.getInt() & 0xFFFFFFFFL;
+					if (length < 9 || position + HEADER_SIZE + length > end) break;
+					ByteBuffer record = ByteBuffer.allocate(length);
+					readFully(log, record, position + HEADER_SIZE);
+					if (crc(record.array(), 0, length) != crc) break;
+					record.flip();
+					long recordSequence = record.getLong();
+					if (recordSequence > sequence) {
+						apply(userData, record);
+						sequence = recordSequence;
+					}
+					position += HEADER_SIZE + length;
+				}
+				if (position < end) {
+					log.truncate(position);
+					corrupted = true;
+				}
+			} finally {
+				log.close();
+			}
+		}
+		return sequence;
+	}
+
+	@Override
+	public void userRegistered(User user) {
+		append(REGISTER, user.getName(), user);
+	}
+
+	@Override
+	public void userUpdated(User user) {
+		append(UPDATE, user.getName(), user);
+	}
+
+	@Override
+	public void userRemoved(String name) {
+		append(REMOVE, name, null);
+	}
+
+	@Override
+	public void userReleased(String name) {
+		append(RELEASE, name, null);
+	}
+
+	@Override
+	public void chatAppended(String name, String contact, String text) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			writeText(out, name);
+			writeText(out, contact);
+			writeText(out, text);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		append(CHAT_APPEND, bytes.toByteArray());
+	}
+
+	/**
+	 * <p>With the {@value UserJournal#SYNC_ALWAYS} policy, waits until the records appended by the calling thread are on disk.</p>
+	 */
+	@Override
+	public void unlocked() {
+		Long sequence = unsynced.get();
+		if (sequence == null) return;
+		unsynced.remove();
+		synchronized (this) {
+			while (durableSequence < sequence && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Writes all pending records, forces them to disk and starts a new log file. 
+	 * It must be called while no changes can be made to the {@code UserData}, so that the returned sequence number matches its content.</p>
+	 * @return Sequence number of the last record of the previous file.
+	 * @throws IOException If the records could not be written or the new file could not be created.
+	 */
+	public long rotate() throws IOException {
+		synchronized (ioLock) {
+			long sequence = flush(true);
+			channel.close();
+			channel = open(sequence + 1);
+			return sequence;
+		}
+	}
+
+	/**
+	 * <p>Deletes the log files that only contain records up to the specified sequence number, which are already in a snapshot.</p>
+	 * @param sequence
+	 * @throws IOException If a file could not be deleted.
+	 */
+	public void discard(long sequence) throws IOException {
+		synchronized (ioLock) {
+			TreeMap<Long, File> files = logFiles(directory);
+			for (File file : files.headMap(sequence + 1, false).values()) {
+				if (!file.delete()) throw new IOException("Can't delete "+file);
+			}
+		}
+	}
+
+	/**
+	 * @return Sequence number of the last record appended.
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Writes all pending records, forces them to disk and closes the log.
+	 * @throws IOException If the records could not be written.
+	 */
+	public void close() throws IOException {
+		synchronized (ioLock) {
+			flush(true);
+			channel.close();
+		}
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	private void append(byte kind, String name, User user) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			writeText(out, name);
+			if (user != null) {
+				writeText(out, user.getPassword());
+				out.writeInt(user.getContacts().size());
+				for (String contact : user.getContacts()) {
+					writeText(out, contact);
+					writeText(out, user.getChat(contact));
+				}
+				out.writeLong(user.getVersion());
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		append(kind, bytes.toByteArray());
+	}
+
+	/**
+	 * <p>Queues the record for the writer thread. With the {@value UserJournal#SYNC_ALWAYS} policy, the calling thread waits until the record is on disk 
+	 * in {@link UserJournal#unlocked()}.</p>
+	 * @param kind
+	 * @param data
+	 */
+	private void append(byte kind, byte[] data) {
+		long sequence;
+		synchronized (this) {
+			if (closed) throw new IllegalStateException("Journal is closed.");
+			sequence = ++lastSequence;
+			ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 9 + data.length);
+			record.putInt(9 + data.length);
+			record.putInt(0);
+			record.putLong(sequence);
+			record.put(kind);
+			record.put(data);
+			record.putInt(4, (int) crc(record.array(), HEADER_SIZE, 9 + data.length));
+			record.flip();
+			pending.add(record);
+			notifyAll();
+		}
+		if (SYNC_ALWAYS.equals(syncPolicy)) unsynced.set(sequence);
+	}
+
+	/**
+	 * Writes the pending records in a single write.
+	 * @param force If the file has to be forced to disk after writting.
+	 * @return Sequence number of the last record written.
+	 * @throws IOException If the records could not be written.
+	 */
+	private long flush(boolean force) throws IOException {
+		ByteBuffer[] records;
+		long sequence;
+		synchronized (this) {
+			records = pending.toArray(new ByteBuffer[pending.size()]);
+			pending.clear();
+			sequence = lastSequence;
+		}
+		long remaining = 0;
+		for (ByteBuffer record : records) {
+			remaining += record.remaining();
+		}
+		while (remaining > 0) {
+			remaining -= channel.write(records);
+		}
+		if (force) {
+			channel.force(false);
+			lastSync = System.currentTimeMillis();
+			synchronized (this) {
+				durableSequence = sequence;
+				notifyAll();
+			}
+		}
+		return sequence;
+	}
+
+	private void startWriter() {
+		Thread writer = new Thread("UserJournal") {
+			public void run() {
+				while (true) {
+					synchronized (UserJournal.this) {
+						while (pending.isEmpty() && !closed) {
+							try {
+								UserJournal.this.wait(SYNC_INTERVAL.equals(syncPolicy) ? syncInterval : 0);
+							} catch (InterruptedException e) {
+								return;
+							}
+							if (SYNC_INTERVAL.equals(syncPolicy) && durableSequence < lastSequence) break;
+						}
+						if (closed) return;
+					}
+					try {
+						synchronized (ioLock) {
+							if (!channel.isOpen()) continue;
+							boolean force = SYNC_ALWAYS.equals(syncPolicy) || (SYNC_INTERVAL.equals(syncPolicy) && System.currentTimeMillis() - lastSync >= syncInterval);
+							flush(force);
+						}
+					} catch (IOException e) {
+						ServerController.getInstance().exception(e);
+					}
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private FileChannel open(long firstSequence) throws IOException {
+		File file = new File(directory, LOG_PREFIX+String.format("%019d", firstSequence)+LOG_SUFFIX);
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private static TreeMap<Long, File> logFiles(File directory) {
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		File[] list = directory.listFiles();
+		if (list != null) {
+			for (File file : list) {
+				String name = file.getName();
+				if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+					try {
+						files.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), file);
+					} catch (NumberFormatException e) {
+						//Not a log file
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	private static void apply(UserData userData, ByteBuffer record) {
+		byte kind = record.get();
+		String name = readText(record);
+		switch (kind) {
+		case REGISTER:
+		case UPDATE:
+			User user = new User(name, readText(record));
+			for (int contacts = record.getInt(); contacts > 0; contacts--) {
+				String contact = readText(record);
+				user.addContact(contact);
+				user.addToChat(contact, readText(record));
+			}
+			if (record.hasRemaining()) user.setVersion(record.getLong());
+			if (!userData.updateUser(user)) userData.registerUser(user);
+			break;
+			
+		case REMOVE:
+			userData.removeUser(name);
+			break;
+			
+		case RELEASE:
+			userData.releaseUser(name);
+			break;
+			
+		case CHAT_APPEND:
+			userData.addToChat(name, readText(record), readText(record));
+			break;
+			
+		default:
+			break;
+		}
+	}
+
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readText(ByteBuffer record) {
+		byte[] bytes = new byte[record.getInt()];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return crc.getValue();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of log.");
+		}
+	}
+}